@@ -0,0 +1,145 @@
+package be.re.bench;
+
+import be.re.net.HTTPClient;
+import be.re.util.Threads;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Sends a number of concurrent GET requests, each from its own thread, to a
+ * local <code>StubServer</code>. Run it with the system property
+ * "be.re.threads" set to "virtual" to use virtual threads.
+ *
+ * A heartbeat thread from the same factory wakes up every 10 milliseconds and
+ * records how late it is. When threads that wait for a connection or for the
+ * server pin their carriers, the heartbeat can't get one and its lateness
+ * grows with the load. The run fails when a request fails or when the
+ * heartbeat is late by more than the given limit.
+ *
+ * Usage: be.re.bench.ConcurrentGets [requests [max_lateness_ms]]
+ * @author Werner Donn\u00e9
+ */
+
+public class ConcurrentGets
+
+{
+
+  private static final long	HEARTBEAT = 10;
+
+
+
+  public static void
+  main(String[] args) throws Exception
+  {
+    final int		requests =
+      args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    long		maxLateness =
+      args.length > 1 ? Long.parseLong(args[1]) : 1000;
+    final AtomicInteger	failed = new AtomicInteger();
+    final long[]	lateness = new long[1];
+    final CountDownLatch	done = new CountDownLatch(requests);
+    StubServer		server = new StubServer(64, 5);
+    final URL		url = server.getUrl();
+    Thread		heartbeat =
+      Threads.start
+      (
+        new Runnable()
+        {
+          public void
+          run()
+          {
+            while (done.getCount() > 0)
+            {
+              long	start = System.nanoTime();
+
+              try
+              {
+                Thread.sleep(HEARTBEAT);
+              }
+
+              catch (InterruptedException e)
+              {
+                return;
+              }
+
+              long	late =
+                (System.nanoTime() - start) / 1000000 - HEARTBEAT;
+
+              synchronized (lateness)
+              {
+                lateness[0] = Math.max(lateness[0], late);
+              }
+            }
+          }
+        },
+        "heartbeat",
+        true
+      );
+    long		start = System.currentTimeMillis();
+
+    for (int i = 0; i < requests; ++i)
+    {
+      Threads.start
+      (
+        new Runnable()
+        {
+          public void
+          run()
+          {
+            try
+            {
+              InputStream	in = HTTPClient.request(HTTPClient.GET, url);
+
+              while (in.read() != -1);
+              in.close();
+            }
+
+            catch (Throwable e)
+            {
+              if (failed.incrementAndGet() == 1)
+              {
+                e.printStackTrace();
+              }
+            }
+
+            finally
+            {
+              done.countDown();
+            }
+          }
+        },
+        null,
+        true
+      );
+    }
+
+    done.await();
+
+    long	elapsed = System.currentTimeMillis() - start;
+
+    heartbeat.join();
+    server.stop();
+
+    long	late;
+
+    synchronized (lateness)
+    {
+      late = lateness[0];
+    }
+
+    System.out.println
+    (
+      (Threads.isVirtual() ? "virtual" : "platform") + " threads, " +
+        requests + " GETs, " + failed.get() + " failed, " + elapsed + " ms, " +
+        HTTPClient.getStatistics().getConnections() + " connections, " +
+        "heartbeat at most " + late + " ms late"
+    );
+
+    System.exit(failed.get() == 0 && late <= maxLateness ? 0 : 1);
+  }
+
+} // ConcurrentGets
@@ -0,0 +1,98 @@
+package be.re.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+
+/**
+ * A local HTTP server that answers every request with a short body after a
+ * fixed delay. The delay keeps the connections of the client busy, like a
+ * server on the network would.
+ * @author Werner Donn\u00e9
+ */
+
+public class StubServer
+
+{
+
+  private static final byte[]	BODY = "hello".getBytes();
+
+  private ExecutorService	executor;
+  private HttpServer		server;
+
+
+
+  /**
+   * @param threads the number of requests that are handled at the same time.
+   * @param delay the time in milliseconds before a request is answered.
+   */
+
+  public
+  StubServer(int threads, final long delay) throws IOException
+  {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+    executor = Executors.newFixedThreadPool(threads);
+
+    server.createContext
+    (
+      "/",
+      new HttpHandler()
+      {
+        public void
+        handle(HttpExchange exchange) throws IOException
+        {
+          InputStream	in = exchange.getRequestBody();
+
+          while (in.read() != -1);
+
+          try
+          {
+            Thread.sleep(delay);
+          }
+
+          catch (InterruptedException e)
+          {
+          }
+
+          exchange.sendResponseHeaders(200, BODY.length);
+
+          OutputStream	out = exchange.getResponseBody();
+
+          out.write(BODY);
+          out.close();
+        }
+      }
+    );
+
+    server.setExecutor(executor);
+    server.start();
+  }
+
+
+
+  public URL
+  getUrl() throws IOException
+  {
+    return
+      new URL("http://localhost:" + server.getAddress().getPort() + "/");
+  }
+
+
+
+  public void
+  stop()
+  {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+} // StubServer
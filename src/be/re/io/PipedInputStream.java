@@ -2,6 +2,8 @@ package be.re.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
@@ -15,6 +17,9 @@ import java.io.InputStream;
  * Multiple readers can read from this stream concurrently. The block asked for
  * by a reader is delivered completely, or until the end of the stream if less
  * is available. Other readers can't come in between.
+ *
+ * The waiting is done with a lock instead of the monitor of an object, so a
+ * virtual thread that waits doesn't hold on to its carrier thread.
  * @author Werner Donn\u00e9
  */
 
@@ -23,7 +28,9 @@ public class PipedInputStream extends InputStream
 {
 
   byte[]		buffer;
+  final Condition	changed;
   boolean		closed = false;
+  final ReentrantLock	lock = new ReentrantLock();
   int			readLaps = 0;
   int			readPosition = 0;
   PipedOutputStream	source;
@@ -67,6 +74,8 @@ public class PipedInputStream extends InputStream
   public
   PipedInputStream(PipedOutputStream source, int bufferSize) throws IOException
   {
+    changed = lock.newCondition();
+
     if (source != null)
     {
       connect(source);
@@ -109,11 +118,18 @@ public class PipedInputStream extends InputStream
       throw new IOException("Unconnected pipe");
     }
 
-    synchronized (buffer)
+    lock.lock();
+
+    try
     {
       closed = true;
       // Release any pending writers.
-      buffer.notifyAll();
+      changed.signalAll();
+    }
+
+    finally
+    {
+      lock.unlock();
     }
   }
 
@@ -193,7 +209,9 @@ public class PipedInputStream extends InputStream
 
     int	amount = 0;
 
-    synchronized (buffer)
+    lock.lock();
+
+    try
     {
       // The buffer is only released when the complete desired block was
       // obtained.
@@ -211,7 +229,7 @@ public class PipedInputStream extends InputStream
 
           try
           {
-            buffer.wait();
+            changed.await();
           }
 
           catch (InterruptedException e)
@@ -244,7 +262,12 @@ public class PipedInputStream extends InputStream
         }
       }
 
-      buffer.notifyAll();
+      changed.signalAll();
+    }
+
+    finally
+    {
+      lock.unlock();
     }
 
     return amount;
@@ -14,6 +14,9 @@ import java.io.OutputStream;
  *
  * Multiple writers can write in this stream concurrently. The block written
  * by a writer is put in completely. Other writers can't come in between.
+ *
+ * The waiting is done with the lock of the <code>PipedInputStream</code>, so
+ * a virtual thread that waits doesn't hold on to its carrier thread.
  * @author Werner Donn\u00e9
  */
 
@@ -81,11 +84,18 @@ public class PipedOutputStream extends OutputStream
       throw new IOException("Unconnected pipe");
     }
 
-    synchronized (sink.buffer)
+    sink.lock.lock();
+
+    try
     {
       sink.closed = true;
       flush();
     }
+
+    finally
+    {
+      sink.lock.unlock();
+    }
   }
 
 
@@ -119,10 +129,17 @@ public class PipedOutputStream extends OutputStream
   public void
   flush() throws IOException
   {
-    synchronized (sink.buffer)
+    sink.lock.lock();
+
+    try
     {
       // Release all readers.
-      sink.buffer.notifyAll();
+      sink.changed.signalAll();
+    }
+
+    finally
+    {
+      sink.lock.unlock();
     }
   }
 
@@ -163,7 +180,9 @@ public class PipedOutputStream extends OutputStream
 
     int	amount = 0;
 
-    synchronized (sink.buffer)
+    sink.lock.lock();
+
+    try
     {
       // The buffer is only released when the complete desired block was
       // written.
@@ -181,7 +200,7 @@ public class PipedOutputStream extends OutputStream
 
           try
           {
-            sink.buffer.wait();
+            sink.changed.await();
           }
 
           catch (InterruptedException e)
@@ -225,7 +244,12 @@ public class PipedOutputStream extends OutputStream
         }
       }
 
-      sink.buffer.notifyAll();
+      sink.changed.signalAll();
+    }
+
+    finally
+    {
+      sink.lock.unlock();
     }
   }
 
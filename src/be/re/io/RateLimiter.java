@@ -0,0 +1,214 @@
+package be.re.io;
+
+import java.io.InterruptedIOException;
+
+
+
+/**
+ * A token bucket. Tokens are added at the rate per second up to the burst
+ * size. A caller that asks for more tokens than there are available gets them
+ * on credit and sleeps until the bucket would have had them. This way large
+ * requests are not starved and callers that share a limiter are served in the
+ * order they came.
+ *
+ * The rate can be changed at any time. A rate of 0 or less means there is no
+ * limit, in which case acquiring tokens costs nearly nothing. The time callers
+ * have been put to sleep is accumulated.
+ * @author Werner Donn\u00e9
+ */
+
+public class RateLimiter
+
+{
+
+  private double		available;
+  private long			burst;
+  private long			last = System.nanoTime();
+  private volatile long		rate;
+  private long			throttled;
+  private long			throttledCount;
+
+
+
+  public
+  RateLimiter()
+  {
+    this(0);
+  }
+
+
+
+  /**
+   * @param rate the number of tokens per second. The burst size is the rate,
+   * which is the amount for one second.
+   */
+
+  public
+  RateLimiter(long rate)
+  {
+    setRate(rate);
+  }
+
+
+
+  /**
+   * Takes the tokens, sleeping as long as necessary.
+   */
+
+  public void
+  acquire(long tokens) throws InterruptedIOException
+  {
+    if (rate <= 0 || tokens <= 0)
+    {
+      return;
+    }
+
+    long	delay = reserve(tokens);
+
+    if (delay > 0)
+    {
+      try
+      {
+        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+      }
+
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.getMessage());
+      }
+    }
+  }
+
+
+
+  public synchronized long
+  getBurst()
+  {
+    return burst;
+  }
+
+
+
+  public long
+  getRate()
+  {
+    return rate;
+  }
+
+
+
+  /**
+   * Returns the number of times a caller had to sleep.
+   */
+
+  public synchronized long
+  getThrottledCount()
+  {
+    return throttledCount;
+  }
+
+
+
+  /**
+   * Returns the accumulated time in milliseconds callers have been put to
+   * sleep.
+   */
+
+  public synchronized long
+  getThrottledTime()
+  {
+    return throttled / 1000000;
+  }
+
+
+
+  private void
+  refill(long now)
+  {
+    if (rate > 0)
+    {
+      available =
+        Math.min((double) burst, available + (now - last) * (rate / 1e9));
+    }
+
+    last = now;
+  }
+
+
+
+  /**
+   * Takes the tokens on credit and returns how many nanoseconds the caller
+   * should wait for them.
+   */
+
+  private synchronized long
+  reserve(long tokens)
+  {
+    if (rate <= 0)
+    {
+      return 0;
+    }
+
+    refill(System.nanoTime());
+    available -= tokens;
+
+    if (available >= 0)
+    {
+      return 0;
+    }
+
+    long	result = (long) (-available * (1e9 / rate));
+
+    throttled += result;
+    ++throttledCount;
+
+    return result;
+  }
+
+
+
+  public synchronized void
+  resetCounters()
+  {
+    throttled = 0;
+    throttledCount = 0;
+  }
+
+
+
+  /**
+   * Changes the rate. The burst size becomes the new rate.
+   */
+
+  public void
+  setRate(long rate)
+  {
+    setRate(rate, rate);
+  }
+
+
+
+  /**
+   * Changes the rate and the burst size. The tokens that were taken on credit
+   * remain due.
+   */
+
+  public synchronized void
+  setRate(long rate, long burst)
+  {
+    long	now = System.nanoTime();
+
+    refill(now);
+
+    if (this.rate <= 0)
+    {
+      available = burst; // Coming from no limit.
+    }
+
+    this.rate = rate;
+    this.burst = Math.max(burst, 1);
+    available = Math.min(available, (double) this.burst);
+  }
+
+} // RateLimiter
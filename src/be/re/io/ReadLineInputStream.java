@@ -16,6 +16,10 @@ public class ReadLineInputStream extends FilterInputStream
 
 {
 
+  private boolean	readAhead = false;
+
+
+
   public
   ReadLineInputStream(InputStream in)
   {
@@ -24,6 +28,20 @@ public class ReadLineInputStream extends FilterInputStream
 
 
 
+  /**
+   * Returns <code>true</code> when the last line was ended by a single '\r'
+   * and the byte after it has been read ahead. Until it is read the
+   * underlying stream is one byte further than this one.
+   */
+
+  public boolean
+  hasReadAhead()
+  {
+    return readAhead;
+  }
+
+
+
   /**
    * Reads bytes until '\r', '\n' or "\r\n" is encountered and returns them in
    * an array. The line termination sequence is discarded and not included in
@@ -58,6 +76,7 @@ public class ReadLineInputStream extends FilterInputStream
   readLine(byte[] buffer, int off, boolean includeEOL) throws IOException
   {
     Arrays.fill(buffer, off, buffer.length, (byte) 0);
+    readAhead = false;
 
     int	i;
 
@@ -85,6 +104,7 @@ public class ReadLineInputStream extends FilterInputStream
         if (b != '\n')
         {
           ((PushbackInputStream) in).unread(b);
+          readAhead = true;
         }
         else
         {
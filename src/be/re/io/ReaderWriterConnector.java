@@ -1,5 +1,6 @@
 package be.re.io;
 
+import be.re.util.Threads;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
@@ -54,28 +55,26 @@ public class ReaderWriterConnector
     final boolean	closeOutput
   )
   {
-    (
-      thread =
-        new Thread
-        (
-          new Runnable()
+    thread =
+      Threads.start
+      (
+        new Runnable()
+        {
+          public void
+          run()
           {
-            public void
-            run()
+            try
             {
-              try
-              {
-                copy(in, out, bufferSize, closeInput, closeOutput);
-              }
-
-              catch (IOException e)
-              {
-                exception = e;
-              }
+              copy(in, out, bufferSize, closeInput, closeOutput);
+            }
+
+            catch (IOException e)
+            {
+              exception = e;
             }
           }
-        )
-    ).start();
+        }
+      );
   }
 
 
@@ -1,5 +1,6 @@
 package be.re.io;
 
+import be.re.util.Threads;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -9,7 +10,7 @@ import java.io.OutputStream;
 /**
  * This class reads data from an input stream and writes it to an output stream
  * in a separate thread. The thread stops when the input stream is closed
- * or when an exception occurs.
+ * or when an exception occurs. The thread comes from <code>Threads</code>.
  * @author Werner Donn\u00e9
  */
 
@@ -85,36 +86,26 @@ public class StreamConnector
     final boolean	flush
   )
   {
-    (
-      thread =
-        new Thread
-        (
-          new Runnable()
+    thread =
+      Threads.start
+      (
+        new Runnable()
+        {
+          public void
+          run()
           {
-            public void
-            run()
+            try
             {
-              try
-              {
-                copy
-                (
-                  in,
-                  out,
-                  bufferSize,
-                  closeInput,
-                  closeOutput,
-                  flush
-                );
-              }
-
-              catch (IOException e)
-              {
-                exception = e;
-              }
+              copy(in, out, bufferSize, closeInput, closeOutput, flush);
+            }
+
+            catch (IOException e)
+            {
+              exception = e;
             }
           }
-        )
-    ).start();
+        }
+      );
   }
 
 
@@ -0,0 +1,84 @@
+package be.re.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * Reads no faster than the rate of a limiter allows. The bytes are paid for
+ * after they have been read, with small reads, so the stream doesn't take
+ * tokens it never uses.
+ * @author Werner Donn\u00e9
+ */
+
+public class ThrottledInputStream extends FilterInputStream
+
+{
+
+  private static final int	MAX_READ = 0x4000;
+
+  private RateLimiter	limiter;
+
+
+
+  public
+  ThrottledInputStream(InputStream in, RateLimiter limiter)
+  {
+    super(in);
+    this.limiter = limiter;
+  }
+
+
+
+  public int
+  read() throws IOException
+  {
+    int	result = in.read();
+
+    if (result != -1)
+    {
+      limiter.acquire(1);
+    }
+
+    return result;
+  }
+
+
+
+  public int
+  read(byte[] b, int off, int len) throws IOException
+  {
+    int	result =
+      in.read
+      (
+        b,
+        off,
+        limiter.getRate() > 0 ? Math.min(len, MAX_READ) : len
+      );
+
+    if (result > 0)
+    {
+      limiter.acquire(result);
+    }
+
+    return result;
+  }
+
+
+
+  public long
+  skip(long n) throws IOException
+  {
+    long	result = in.skip(n);
+
+    if (result > 0)
+    {
+      limiter.acquire(result);
+    }
+
+    return result;
+  }
+
+} // ThrottledInputStream
@@ -0,0 +1,62 @@
+package be.re.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+
+/**
+ * Writes no faster than the rate of a limiter allows. Large writes are cut in
+ * pieces, so the traffic stays smooth.
+ * @author Werner Donn\u00e9
+ */
+
+public class ThrottledOutputStream extends FilterOutputStream
+
+{
+
+  private static final int	MAX_WRITE = 0x4000;
+
+  private RateLimiter	limiter;
+
+
+
+  public
+  ThrottledOutputStream(OutputStream out, RateLimiter limiter)
+  {
+    super(out);
+    this.limiter = limiter;
+  }
+
+
+
+  public void
+  write(int b) throws IOException
+  {
+    limiter.acquire(1);
+    out.write(b);
+  }
+
+
+
+  public void
+  write(byte[] b, int off, int len) throws IOException
+  {
+    if (limiter.getRate() <= 0)
+    {
+      out.write(b, off, len);
+
+      return;
+    }
+
+    for (int i = 0; i < len; i += MAX_WRITE)
+    {
+      int	n = Math.min(MAX_WRITE, len - i);
+
+      limiter.acquire(n);
+      out.write(b, off + i, n);
+    }
+  }
+
+} // ThrottledOutputStream
@@ -3,6 +3,7 @@ package be.re.io;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
@@ -12,6 +13,8 @@ public class Tracer extends FilterOutputStream
 
   private static Tracer	defaultTracer = new Tracer(System.out);
 
+  private final ReentrantLock	lock = new ReentrantLock();
+
 
 
   public
@@ -47,14 +50,24 @@ public class Tracer extends FilterOutputStream
 
 
   /**
-   * Flushes at each call.
+   * Flushes at each call. The writes of concurrent threads are not mixed.
    */
 
-  public synchronized void
+  public void
   write(byte[] b, int off, int len) throws IOException
   {
-    out.write(b, off, len);
-    out.flush();
+    lock.lock();
+
+    try
+    {
+      out.write(b, off, len);
+      out.flush();
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
   }
 
 } // Tracer
@@ -7,6 +7,7 @@ import be.re.net.JNDIInitialContext;
 import be.re.net.ProxyManager;
 import be.re.net.URLManager;
 import be.re.net.URLManagerJMS;
+import be.re.util.Threads;
 import be.re.webdav.Client;
 import java.io.File;
 import java.io.IOException;
@@ -722,7 +723,7 @@ public class URLOutputStream extends OutputStream
       PipedOutputStream		out = new PipedOutputStream();
       final PipedInputStream	in = new PipedInputStream(out);
 
-      new Thread
+      Threads.start
       (
         new Runnable()
         {
@@ -757,7 +758,7 @@ public class URLOutputStream extends OutputStream
             }
           }
         }
-      ).start();
+      );
 
       return out;
     }
@@ -0,0 +1,121 @@
+package be.re.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Counts the connections that are made and how long it took. The time to
+ * open the TCP connection and the time of the TLS handshake are kept apart.
+ * A handshake is counted as resumed when the session existed before it
+ * started, which means the expensive part of the handshake was skipped.
+ * @author Werner Donn\u00e9
+ */
+
+public class ConnectionStatistics
+
+{
+
+  private AtomicLong	connectTime = new AtomicLong();
+  private AtomicLong	connections = new AtomicLong();
+  private AtomicLong	handshakeTime = new AtomicLong();
+  private AtomicLong	handshakes = new AtomicLong();
+  private AtomicLong	resumed = new AtomicLong();
+
+
+
+  void
+  connected(long nanos)
+  {
+    connections.incrementAndGet();
+    connectTime.addAndGet(nanos);
+  }
+
+
+
+  /**
+   * Returns the accumulated time in milliseconds to open connections.
+   */
+
+  public long
+  getConnectTime()
+  {
+    return connectTime.get() / 1000000;
+  }
+
+
+
+  public long
+  getConnections()
+  {
+    return connections.get();
+  }
+
+
+
+  /**
+   * Returns the accumulated time in milliseconds of the TLS handshakes.
+   */
+
+  public long
+  getHandshakeTime()
+  {
+    return handshakeTime.get() / 1000000;
+  }
+
+
+
+  public long
+  getHandshakes()
+  {
+    return handshakes.get();
+  }
+
+
+
+  public long
+  getResumedHandshakes()
+  {
+    return resumed.get();
+  }
+
+
+
+  void
+  handshaken(long nanos, boolean resumedSession)
+  {
+    handshakes.incrementAndGet();
+    handshakeTime.addAndGet(nanos);
+
+    if (resumedSession)
+    {
+      resumed.incrementAndGet();
+    }
+  }
+
+
+
+  public void
+  reset()
+  {
+    connections.set(0);
+    connectTime.set(0);
+    handshakes.set(0);
+    handshakeTime.set(0);
+    resumed.set(0);
+  }
+
+
+
+  public String
+  toString()
+  {
+    return
+      "connections: " + String.valueOf(getConnections()) + " (" +
+        String.valueOf(getConnectTime()) + " ms), handshakes: " +
+        String.valueOf(getHandshakes()) + ", resumed: " +
+        String.valueOf(getResumedHandshakes()) + " (" +
+        String.valueOf(getHandshakeTime()) + " ms)";
+  }
+
+} // ConnectionStatistics
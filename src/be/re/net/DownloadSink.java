@@ -0,0 +1,316 @@
+package be.re.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+
+/**
+ * A file that receives a download. It is written through a file channel in
+ * large blocks, which are aligned on the block size in the file. Only the
+ * first and the last block can be shorter. When the length of the download is
+ * known, the file is given its final length before anything is written. The
+ * JDK has no means to reserve the space itself, so how much this helps
+ * against fragmentation depends on the file system. When less arrives than
+ * was announced, the file is cut back when the sink is closed. This doesn't
+ * happen when the process dies, so a file from which a download is resumed
+ * according to its length should be opened with the length -1.
+ *
+ * <code>HTTPClient.download</code> fills the buffer of the sink straight from
+ * the connection when it can. The buffers are direct and reused.
+ * @author Werner Donn\u00e9
+ */
+
+public class DownloadSink extends OutputStream
+
+{
+
+  private static final int	BLOCK_SIZE = 0x100000;
+  private static final int	BUFFERS = 16;
+
+  private static final BlockingQueue<ByteBuffer>	buffers =
+    new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+
+  private ByteBuffer	buffer;
+  private FileChannel	channel;
+  private boolean	closed = false;
+  private MessageDigest	digest;
+  private boolean	failed = false;
+  private long		position;
+    // The position in the file of the start of the buffer.
+
+
+
+  public
+  DownloadSink(File file, boolean append, long length) throws IOException
+  {
+    this(file, append, length, null);
+  }
+
+
+
+  /**
+   * @param append the download is written after the current contents of the
+   * file instead of replacing it.
+   * @param length the number of bytes that is expected or -1 when it is not
+   * known or when the file should not be given its final length up front.
+   * @param digest when it is not <code>null</code> it is updated with the
+   * content that is written.
+   */
+
+  public
+  DownloadSink
+  (
+    File		file,
+    boolean		append,
+    long		length,
+    MessageDigest	digest
+  ) throws IOException
+  {
+    RandomAccessFile	f = new RandomAccessFile(file, "rw");
+
+    try
+    {
+      if (!append)
+      {
+        f.setLength(0);
+      }
+
+      position = f.length();
+
+      if (length > 0)
+      {
+        f.setLength(position + length);
+      }
+    }
+
+    catch (IOException e)
+    {
+      f.close();
+      throw e;
+    }
+
+    channel = f.getChannel();
+    this.digest = digest;
+    buffer = buffers.poll();
+
+    if (buffer == null)
+    {
+      buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    }
+
+    startBlock();
+  }
+
+
+
+  /**
+   * Writes what is left and cuts the file at the end of the download.
+   */
+
+  public void
+  close() throws IOException
+  {
+    if (!closed)
+    {
+      closed = true;
+
+      try
+      {
+        if (!failed)
+        {
+          flush();
+        }
+
+        if (channel.size() > position)
+        {
+          channel.truncate(position);
+        }
+      }
+
+      finally
+      {
+        channel.close();
+        buffers.offer(buffer);
+        buffer = null;
+      }
+    }
+  }
+
+
+
+  /**
+   * Writes the buffer, even if the block isn't complete.
+   */
+
+  public void
+  flush() throws IOException
+  {
+    if (buffer.position() > 0)
+    {
+      writeBlock();
+    }
+  }
+
+
+
+  /**
+   * Writes the buffer and waits until the file is on the storage device.
+   */
+
+  public void
+  force() throws IOException
+  {
+    flush();
+    channel.force(true);
+  }
+
+
+
+  /**
+   * Returns the position in the file up to which the download has been
+   * received.
+   */
+
+  public long
+  getPosition()
+  {
+    return position + buffer.position();
+  }
+
+
+
+  /**
+   * Returns <code>true</code> when writing the file has failed. The download
+   * can't be resumed into it then.
+   */
+
+  boolean
+  isFailed()
+  {
+    return failed;
+  }
+
+
+
+  /**
+   * Reads at most <code>max</code> bytes from the channel directly into the
+   * buffer.
+   * @return the number of bytes that were read or -1 at the end of the
+   * channel.
+   */
+
+  int
+  read(ReadableByteChannel in, long max) throws IOException
+  {
+    int	limit = buffer.limit();
+
+    if (max < buffer.remaining())
+    {
+      buffer.limit(buffer.position() + (int) max);
+    }
+
+    int	result;
+
+    try
+    {
+      result = in.read(buffer);
+    }
+
+    finally
+    {
+      buffer.limit(limit);
+    }
+
+    if (!buffer.hasRemaining())
+    {
+      writeBlock();
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * The block ends on the next multiple of the block size in the file.
+   */
+
+  private void
+  startBlock()
+  {
+    buffer.clear();
+    buffer.limit(BLOCK_SIZE - (int) (position % BLOCK_SIZE));
+  }
+
+
+
+  public void
+  write(int b) throws IOException
+  {
+    buffer.put((byte) b);
+
+    if (!buffer.hasRemaining())
+    {
+      writeBlock();
+    }
+  }
+
+
+
+  public void
+  write(byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0)
+    {
+      int	n = Math.min(len, buffer.remaining());
+
+      buffer.put(b, off, n);
+      off += n;
+      len -= n;
+
+      if (!buffer.hasRemaining())
+      {
+        writeBlock();
+      }
+    }
+  }
+
+
+
+  private void
+  writeBlock() throws IOException
+  {
+    buffer.flip();
+
+    if (digest != null)
+    {
+      digest.update(buffer.duplicate());
+    }
+
+    try
+    {
+      while (buffer.hasRemaining())
+      {
+        position += channel.write(buffer, position);
+      }
+    }
+
+    catch (IOException e)
+    {
+      failed = true;
+      throw e;
+    }
+
+    startBlock();
+  }
+
+} // DownloadSink
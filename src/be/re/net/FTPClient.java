@@ -6,6 +6,7 @@ import be.re.cache.LRUCache;
 import be.re.gui.util.InteractiveAuthenticator;
 import be.re.io.Tracer;
 import be.re.pool.ConnectionPool;
+import be.re.pool.Partition;
 import be.re.pool.Resource;
 import be.re.pool.ResourceAdapter;
 import be.re.pool.ResourceException;
@@ -73,6 +74,15 @@ public class FTPClient
         return ((Connection) object).type.equals((ConnectionType) refData);
       }
     };
+  private static Partition	partition =
+    new Partition()
+    {
+      public Object
+      getKey(Object refData)
+      {
+        return ((ConnectionType) refData).getKey();
+      }
+    };
   private static ConnectionPool	pool =
     new ConnectionPool
     (
@@ -93,7 +103,7 @@ public class FTPClient
         }
       },
       POOL_SIZE,
-      equivalenceClass,
+      partition,
       EQUAL_CONNECTIONS,
       true
     );
@@ -1748,6 +1758,28 @@ public class FTPClient
           username.equals(((ConnectionType) object).username);
     }
 
+
+
+    /**
+     * Returns a key that is the same for equal connection types.
+     */
+
+    private String
+    getKey()
+    {
+      try
+      {
+        return
+          (Util.isUrl(resource) ? new URL(resource).getHost() : resource) +
+            " " + username;
+      }
+
+      catch (MalformedURLException e)
+      {
+        throw new RuntimeException(e); // Would be a bug.
+      }
+    }
+
   } // ConnectionType
 
 
@@ -0,0 +1,370 @@
+package be.re.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+
+
+
+/**
+ * A transport on top of <code>java.net.http.HttpClient</code>, which uses
+ * HTTP/2 when the server agrees to it through ALPN. The concurrent requests
+ * to a host are then streams on one connection, so they don't each need a
+ * connection and a TLS handshake and a slow response doesn't hold up the
+ * others. Otherwise the exchange falls back to HTTP/1.1.
+ *
+ * The SSL context of <code>HTTPClient</code> is used, so its key and trust
+ * managers apply. Proxies are not supported. Trailers are not available.
+ * @author Werner Donn\u00e9
+ */
+
+public class HTTP2Transport implements Transport
+
+{
+
+  private static final Set<String>	CONNECTION_HEADERS =
+    new HashSet<String>
+    (
+      Arrays.asList
+      (
+        new String[]
+        {
+          "connection", "content-length", "expect", "host", "keep-alive",
+          "proxy-connection", "te", "transfer-encoding", "upgrade"
+        }
+      )
+    );
+
+  private HttpClient	client;
+  private SSLContext	context;
+
+
+
+  public InputStream
+  exchange
+  (
+    String	method,
+    URL		url,
+    Headers	headersIn,
+    InputStream	body,
+    long	contentLength,
+    boolean	expect100,
+    Headers	headersOut
+  ) throws IOException
+  {
+    HttpRequest.Builder					builder;
+    BodyInputStream					in = new BodyInputStream();
+    HttpResponse<Flow.Publisher<List<ByteBuffer>>>	response;
+
+    try
+    {
+      builder = HttpRequest.newBuilder(url.toURI());
+    }
+
+    catch (URISyntaxException e)
+    {
+      throw new MalformedURLException(e.getMessage());
+    }
+
+    builder.expectContinue(expect100 && body != null);
+    builder.method(method, getPublisher(body, contentLength));
+
+    if (HTTPClient.getTimeout() > 0)
+    {
+      builder.timeout(Duration.ofMillis(HTTPClient.getTimeout()));
+    }
+
+    Headers.Header[]	headers = headersIn.getAll();
+
+    for (int i = 0; i < headers.length; ++i)
+    {
+      if
+      (
+        !CONNECTION_HEADERS.contains(headers[i].getName().toLowerCase())
+      )
+      {
+        builder.header(headers[i].getName(), headers[i].getValue());
+      }
+    }
+
+    try
+    {
+      response =
+        getClient().
+          send(builder.build(), HttpResponse.BodyHandlers.ofPublisher());
+    }
+
+    catch (InterruptedException e)
+    {
+      throw new InterruptedIOException(e.getMessage());
+    }
+
+    headersOut.clear();
+
+    for
+    (
+      Map.Entry<String,List<String>> entry:
+        response.headers().map().entrySet()
+    )
+    {
+      if (!entry.getKey().startsWith(":")) // HTTP/2 pseudo header
+      {
+        for (String value: entry.getValue())
+        {
+          headersOut.add(entry.getKey(), value);
+        }
+      }
+    }
+
+    headersOut.set("Status-Code", String.valueOf(response.statusCode()));
+
+    headersOut.set
+    (
+      "Status-Message",
+      HTTPClient.getResponseMessage(response.statusCode())
+    );
+
+    response.body().subscribe(in);
+
+    return in;
+  }
+
+
+
+  private synchronized HttpClient
+  getClient()
+  {
+    SSLContext	current = HTTPClient.getSSLContext();
+
+    if (client == null || context != current)
+    {
+      HttpClient.Builder	builder =
+        HttpClient.newBuilder().
+          version(HttpClient.Version.HTTP_2).
+          followRedirects(HttpClient.Redirect.NEVER);
+
+      if (current != null)
+      {
+        builder.sslContext(current);
+      }
+
+      if (HTTPClient.getTimeout() > 0)
+      {
+        builder.connectTimeout(Duration.ofMillis(HTTPClient.getTimeout()));
+      }
+
+      client = builder.build();
+      context = current;
+    }
+
+    return client;
+  }
+
+
+
+  private static HttpRequest.BodyPublisher
+  getPublisher(final InputStream body, long contentLength)
+  {
+    if (body == null)
+    {
+      return HttpRequest.BodyPublishers.noBody();
+    }
+
+    HttpRequest.BodyPublisher	result =
+      HttpRequest.BodyPublishers.ofInputStream
+      (
+        new Supplier<InputStream>()
+        {
+          public InputStream
+          get()
+          {
+            return body;
+          }
+        }
+      );
+
+    return
+      contentLength != -1 ?
+        HttpRequest.BodyPublishers.fromPublisher(result, contentLength) :
+        result;
+  }
+
+
+
+  /**
+   * The response body. Unlike the stream of <code>java.net.http</code> a read
+   * gives up after the timeout of <code>HTTPClient</code>, as it would on a
+   * socket.
+   */
+
+  private static class BodyInputStream extends InputStream
+    implements Flow.Subscriber<List<ByteBuffer>>
+
+  {
+
+    private static final List<ByteBuffer>	END = new ArrayList<ByteBuffer>();
+
+    private ByteBuffer		buffer;
+    private Iterator<ByteBuffer>	buffers;
+    private boolean		done;
+    private Throwable		error;
+    private BlockingQueue<List<ByteBuffer>>	queue =
+      new LinkedBlockingQueue<List<ByteBuffer>>();
+    private Flow.Subscription	subscription;
+
+
+
+    public void
+    close()
+    {
+      if (!done)
+      {
+        done = true;
+        subscription.cancel();
+      }
+    }
+
+
+
+    public void
+    onComplete()
+    {
+      queue.offer(END);
+    }
+
+
+
+    public void
+    onError(Throwable e)
+    {
+      error = e;
+      queue.offer(END);
+    }
+
+
+
+    public void
+    onNext(List<ByteBuffer> item)
+    {
+      queue.offer(item);
+    }
+
+
+
+    public void
+    onSubscribe(Flow.Subscription subscription)
+    {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+
+
+    public int
+    read() throws IOException
+    {
+      byte[]	b = new byte[1];
+
+      return read(b, 0, 1) == -1 ? -1 : (0xff & b[0]);
+    }
+
+
+
+    public int
+    read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0)
+      {
+        return 0;
+      }
+
+      while (buffer == null || !buffer.hasRemaining())
+      {
+        if (buffers != null && buffers.hasNext())
+        {
+          buffer = buffers.next();
+        }
+        else
+        {
+          if (done)
+          {
+            return -1;
+          }
+
+          take();
+        }
+      }
+
+      int	result = Math.min(len, buffer.remaining());
+
+      buffer.get(b, off, result);
+
+      return result;
+    }
+
+
+
+    private void
+    take() throws IOException
+    {
+      List<ByteBuffer>	item;
+
+      try
+      {
+        item =
+          HTTPClient.getTimeout() > 0 ?
+            queue.poll(HTTPClient.getTimeout(), TimeUnit.MILLISECONDS) :
+            queue.take();
+      }
+
+      catch (InterruptedException e)
+      {
+        throw new InterruptedIOException(e.getMessage());
+      }
+
+      if (item == null)
+      {
+        close();
+        throw new SocketTimeoutException("Read timed out");
+      }
+
+      if (item == END)
+      {
+        done = true;
+
+        if (error != null)
+        {
+          throw new be.re.io.IOException(error);
+        }
+
+        return;
+      }
+
+      buffers = item.iterator();
+      subscription.request(1);
+    }
+
+  } // BodyInputStream
+
+} // HTTP2Transport
@@ -3,39 +3,69 @@ package be.re.net;
 import be.re.gui.util.InteractiveAuthenticator;
 import be.re.io.DevNullOutputStream;
 import be.re.io.LimitedLengthInputStream;
+import be.re.io.PipedInputStream;
+import be.re.io.PipedOutputStream;
+import be.re.io.RateLimiter;
 import be.re.io.ReadLineInputStream;
 import be.re.io.StreamConnector;
 import be.re.io.TeeOutputStream;
+import be.re.io.ThrottledInputStream;
+import be.re.io.ThrottledOutputStream;
 import be.re.io.Tracer;
 import be.re.pool.ConnectionPool;
+import be.re.pool.Partition;
 import be.re.pool.Resource;
 import be.re.pool.ResourceAdapter;
 import be.re.pool.ResourceException;
 import be.re.pool.ResourceFactory;
 import be.re.util.Base64;
 import be.re.util.Equal;
+import be.re.util.Threads;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.InflaterInputStream;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManager;
@@ -50,10 +80,50 @@ import javax.net.ssl.TrustManager;
  * When the returned <code>InputStream</code> is completely read the output
  * headers may have changed if the transfer encoding was "chunked".
  *
+ * A request body of which the length is not known is streamed with the
+ * chunked transfer encoding, compressed on the fly if possible. When a host
+ * doesn't accept this it is remembered and from then on such bodies are
+ * spooled to obtain their length. Small bodies are spooled in memory, others
+ * in a temporary file.
+ *
+ * A body that is a <code>FileInputStream</code> with a known length is taken
+ * from the channel of the file. On a plain connection the kernel copies it to
+ * the socket with <code>transferTo</code>, unless the traffic is traced. Over
+ * TLS it is read in large buffers, which are reused.
+ *
+ * A response body can be written in a file with <code>download</code>. When
+ * it has a known length and isn't compressed, it goes from the channel of the
+ * connection into the file without passing through a stream.
+ *
+ * Connections are kept alive for a configurable time and number of requests.
+ * The "Keep-Alive" hints of the server are honoured when they are stricter. A
+ * background thread closes the connections that have expired, and a
+ * connection that has been idle for a while is checked before it is used
+ * again. A request that fails on a reused connection before anything of the
+ * response has arrived is retried right away on another one, provided its
+ * body can be sent again.
+ *
+ * The exchanges with a host can be given to another transport with
+ * <code>setTransport</code>, for example an <code>HTTP2Transport</code>, so
+ * concurrent requests share one connection. Everything else, such as
+ * redirection, authentication and compression, stays the same.
+ *
+ * TLS sessions are cached per host and port, so new connections can resume
+ * them with an abbreviated handshake. Connections can be opened ahead of time
+ * with the <code>prewarm</code> method. The time to connect and the time of
+ * the handshakes are counted separately in the statistics.
+ *
  * Pipelining, content negotiation and HTTP caching are not implemented.
  * Request and response headers are part of the <code>request</code> method,
  * which enables a content negotiation and HTTP caching implementation outside
  * of this class.
+ *
+ * The traffic of all requests in the JVM can be limited. There is a limiter
+ * for the bytes/s of the request bodies, one for the bytes/s of the response
+ * bodies and one for the requests/s per host. They can be changed at any
+ * time. The initial rates come from the system properties
+ * "be.re.http.upload-rate", "be.re.http.download-rate" and
+ * "be.re.http.request-rate". By default there is no limit.
  * @author Werner Donn\u00e9
  */
 
@@ -93,9 +163,17 @@ public class HTTPClient
   public static final String	VERSION_CONTROL = "VERSION-CONTROL";
 
   private static final int	CHUNK_SIZE = 0x10000;
+  private static final long	EVICT_INTERVAL = 5000;
+  private static final int	FILE_BUFFER_SIZE = 0x20000;
+  private static final int	FILE_BUFFERS = 16;
+  private static final long	HINT_MARGIN = 1000;
   private static final int	MAX_REDIRECTIONS = 5;
   private static final int	MAX_RETRIES = 2;
-  private static final int	TIME_DELTA = 10000;
+  private static final int	POOL_SIZE = 100;
+  private static final long	PROBE_AFTER = 1000;
+  private static final int	SPOOL_MEMORY = 0x10000;
+  private static final int	THROTTLED_TRANSFER_SIZE = 0x4000;
+  private static final int	TRANSFER_SIZE = 0x100000;
 
   private static Authenticate		authenticator;
   private static final String[]		compressedTypes =
@@ -122,8 +200,22 @@ public class HTTPClient
           }
         }
       },
-      100
+      POOL_SIZE,
+      new Partition()
+      {
+        public Object
+        getKey(Object refData)
+        {
+          return
+            ((URL) refData).getProtocol() + "://" +
+              ((URL) refData).getAuthority();
+        }
+      },
+      POOL_SIZE,
+      true
     );
+  private static final RateLimiter	downloadLimiter =
+    new RateLimiter(Long.getLong("be.re.http.download-rate", 0).longValue());
   private static Equal                  equal =
     new Equal()
     {
@@ -137,18 +229,38 @@ public class HTTPClient
               getProtocol());
       }
     };
+  private static Timer			evictor;
+  private static final BlockingQueue<byte[]>	fileBuffers =
+    new ArrayBlockingQueue<byte[]>(FILE_BUFFERS);
   private static boolean		interactive = false;
+  private static int			keepAliveRequests =
+    Integer.getInteger("be.re.http.keep-alive-requests", 0).intValue();
+  private static long			keepAliveTimeout =
+    Long.getLong("be.re.http.keep-alive-timeout", 10000).longValue();
   private static KeyManager		keyManager;
   private static Set			noCompress = new HashSet();
   private static Set			noExpect100 = new HashSet();
+  private static final Map<String,RateLimiter>	requestLimiters =
+    new HashMap<String,RateLimiter>();
+  private static long			requestRate =
+    Long.getLong("be.re.http.request-rate", 0).longValue();
+  private static int			sessionCacheSize =
+    Integer.getInteger("be.re.http.tls-session-cache", 256).intValue();
   private static boolean		shouldCompress =
     System.getProperty("be.re.http.no-compress") == null;
   private static boolean		shouldExpect100 =
     System.getProperty("be.re.http.no-expect100") == null;
   private static SSLContext		sslContext = null;
+  private static final ReentrantLock	sslLock = new ReentrantLock();
+  private static final ConnectionStatistics	statistics =
+    new ConnectionStatistics();
   private static int			timeout = 0;
   private static Tracer			tracer;
+  private static final Map<String,Transport>	transports =
+    new ConcurrentHashMap<String,Transport>();
   private static TrustManager		trustManager;
+  private static final RateLimiter	uploadLimiter =
+    new RateLimiter(Long.getLong("be.re.http.upload-rate", 0).longValue());
   private static String			userAgent = null;
 
 
@@ -175,6 +287,55 @@ public class HTTPClient
     {
       throw new RuntimeException(e);
     }
+
+    if (System.getProperty("be.re.http.http2-hosts") != null)
+    {
+      Transport	transport = new HTTP2Transport();
+      String[]	hosts =
+        be.re.util.Util.
+          split(System.getProperty("be.re.http.http2-hosts"), " ,");
+
+      for (int i = 0; i < hosts.length; ++i)
+      {
+        setTransport(hosts[i], transport);
+      }
+    }
+  }
+
+
+
+  /**
+   * Writes a response body in a sink. A body with a known length that is
+   * neither compressed nor traced is read straight from the channel of the
+   * connection into the buffer of the sink. Other bodies are copied. A
+   * download that fails is resumed as the stream would be. The body is not
+   * closed.
+   * @param in a response body as returned by <code>request</code>.
+   * @return the number of bytes that were written in the sink.
+   */
+
+  public static long
+  download(InputStream in, DownloadSink sink) throws IOException
+  {
+    long	start = sink.getPosition();
+
+    if (in instanceof Request.ResumingInputStream)
+    {
+      ((Request.ResumingInputStream) in).download(sink);
+    }
+    else
+    {
+      if (in instanceof ConsumeResponseInputStream)
+      {
+        ((ConsumeResponseInputStream) in).download(sink);
+      }
+      else
+      {
+        StreamConnector.copy(in, sink, CHUNK_SIZE, false, false, false);
+      }
+    }
+
+    return sink.getPosition() - start;
   }
 
 
@@ -232,6 +393,18 @@ public class HTTPClient
 
 
 
+  /**
+   * Returns the limiter for the bytes/s of all response bodies.
+   */
+
+  public static RateLimiter
+  getDownloadLimiter()
+  {
+    return downloadLimiter;
+  }
+
+
+
   public static boolean
   getExpect100()
   {
@@ -248,6 +421,22 @@ public class HTTPClient
 
 
 
+  public static int
+  getKeepAliveRequests()
+  {
+    return keepAliveRequests;
+  }
+
+
+
+  public static long
+  getKeepAliveTimeout()
+  {
+    return keepAliveTimeout;
+  }
+
+
+
   public static KeyManager
   getKeyManager()
   {
@@ -278,7 +467,64 @@ public class HTTPClient
 
 
 
-  private static String
+  /**
+   * Returns the limiter for the requests/s to the host of the URL.
+   */
+
+  public static RateLimiter
+  getRequestLimiter(URL url)
+  {
+    synchronized (requestLimiters)
+    {
+      RateLimiter	result = requestLimiters.get(hostValue(url));
+
+      if (result == null)
+      {
+        result = new RateLimiter(requestRate);
+        requestLimiters.put(hostValue(url), result);
+      }
+
+      return result;
+    }
+  }
+
+
+
+  public static long
+  getRequestRate()
+  {
+    synchronized (requestLimiters)
+    {
+      return requestRate;
+    }
+  }
+
+
+
+  /**
+   * Returns the time in milliseconds requests have been held back, for all
+   * hosts together.
+   */
+
+  public static long
+  getRequestThrottledTime()
+  {
+    long	result = 0;
+
+    synchronized (requestLimiters)
+    {
+      for (RateLimiter limiter: requestLimiters.values())
+      {
+        result += limiter.getThrottledTime();
+      }
+    }
+
+    return result;
+  }
+
+
+
+  static String
   getResponseMessage(int responseCode)
   {
     try
@@ -294,48 +540,69 @@ public class HTTPClient
 
 
 
-  private static SSLContext
+  public static int
+  getSessionCacheSize()
+  {
+    return sessionCacheSize;
+  }
+
+
+
+  static SSLContext
   getSSLContext()
   {
-    if (sslContext == null)
-    {
-      sslContext = getSSLContext("TLS");
+    sslLock.lock();
 
+    try
+    {
       if (sslContext == null)
       {
-        sslContext = getSSLContext("SSL");
-      }
+        sslContext = getSSLContext("TLS");
 
-      if (sslContext != null)
-      {
-        if (keyManager == null)
+        if (sslContext == null)
         {
-          keyManager = new ClientKeyManager(interactive);
+          sslContext = getSSLContext("SSL");
         }
 
-        if (trustManager == null)
+        if (sslContext != null)
         {
-          trustManager = new ClientTrustManager(interactive);
-        }
+          if (keyManager == null)
+          {
+            keyManager = new ClientKeyManager(interactive);
+          }
 
-        try
-        {
-          sslContext.init
-          (
-            new KeyManager[]{keyManager},
-            new TrustManager[]{trustManager},
-            null
-          );
-        }
+          if (trustManager == null)
+          {
+            trustManager = new ClientTrustManager(interactive);
+          }
 
-        catch (Exception e)
-        {
-          throw new RuntimeException(e);
+          try
+          {
+            sslContext.init
+            (
+              new KeyManager[]{keyManager},
+              new TrustManager[]{trustManager},
+              null
+            );
+
+            sslContext.getClientSessionContext().
+              setSessionCacheSize(sessionCacheSize);
+          }
+
+          catch (Exception e)
+          {
+            throw new RuntimeException(e);
+          }
         }
       }
+
+      return sslContext;
     }
 
-    return sslContext;
+    finally
+    {
+      sslLock.unlock();
+    }
   }
 
 
@@ -356,6 +623,14 @@ public class HTTPClient
 
 
 
+  public static ConnectionStatistics
+  getStatistics()
+  {
+    return statistics;
+  }
+
+
+
   public static int
   getTimeout()
   {
@@ -372,6 +647,22 @@ public class HTTPClient
 
 
 
+  /**
+   * Returns the transport that is set for the host or for all hosts with
+   * "*". When there is none <code>null</code> is returned, which stands for
+   * the built-in HTTP/1.1 connections.
+   */
+
+  public static Transport
+  getTransport(String host)
+  {
+    Transport	result = transports.get(host.toLowerCase());
+
+    return result != null ? result : transports.get("*");
+  }
+
+
+
   public static TrustManager
   getTrustManager()
   {
@@ -380,6 +671,18 @@ public class HTTPClient
 
 
 
+  /**
+   * Returns the limiter for the bytes/s of all request bodies.
+   */
+
+  public static RateLimiter
+  getUploadLimiter()
+  {
+    return uploadLimiter;
+  }
+
+
+
   public static String
   getUserAgent()
   {
@@ -434,6 +737,101 @@ public class HTTPClient
 
 
 
+  /**
+   * Opens connections to the authority of the URL ahead of time, so that the
+   * requests that follow don't have to wait for the connection and the TLS
+   * handshake. The connections are made in parallel and left in the pool.
+   * Connections that are already idle in the pool count. Nothing is done for
+   * a host that is reached through a proxy or that has its own transport.
+   * @return the number of connections that are available.
+   */
+
+  public static int
+  prewarm(final URL url, int connections)
+  {
+    try
+    {
+      if
+      (
+        ProxyManager.getProxy(url.getHost(), "http") != null	||
+        getTransport(url.getHost()) != null
+      )
+      {
+        return 0;
+      }
+    }
+
+    catch (Throwable e)
+    {
+      return 0;
+    }
+
+    final Queue<Resource>	resources = new ConcurrentLinkedQueue<Resource>();
+    Thread[]			threads =
+      new Thread[Math.min(connections, POOL_SIZE)];
+
+    for (int i = 0; i < threads.length; ++i)
+    {
+      threads[i] =
+        Threads.newThread
+        (
+          new Runnable()
+          {
+            public void
+            run()
+            {
+              try
+              {
+                resources.add(connectionPool.get(this, equal, url));
+              }
+
+              catch (Throwable e)
+              {
+                // It is only an optimisation.
+              }
+            }
+          },
+          "be.re.net.HTTPClient prewarm",
+          true
+        );
+
+      threads[i].start();
+    }
+
+    for (int i = 0; i < threads.length; ++i)
+    {
+      try
+      {
+        threads[i].join();
+      }
+
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    int	result = 0;
+
+    for (Resource resource: resources)
+    {
+      try
+      {
+        release(resource);
+        ++result;
+      }
+
+      catch (IOException e)
+      {
+      }
+    }
+
+    return result;
+  }
+
+
+
   private static void
   release(Resource resource) throws IOException
   {
@@ -663,6 +1061,48 @@ public class HTTPClient
     boolean	chunkedRequest,
     long	contentLength
   ) throws HTTPProtocolException, IOException
+  {
+    return
+      request
+      (
+        method,
+        url,
+        body,
+        username,
+        password,
+        headersIn,
+        headersOut,
+        trailerIn,
+        trailerOut,
+        chunkedRequest,
+        contentLength,
+        null
+      );
+  }
+
+
+
+  /**
+   * @param digest when it is not <code>null</code> it is updated with the
+   * body as it is sent, also when the kernel copies a file to the socket.
+   */
+
+  public static InputStream
+  request
+  (
+    String		method,
+    URL			url,
+    InputStream		body,
+    String		username,
+    String		password,
+    Headers		headersIn,
+    Headers		headersOut,
+    Headers		trailerIn,
+    Headers		trailerOut,
+    boolean		chunkedRequest,
+    long		contentLength,
+    MessageDigest	digest
+  ) throws HTTPProtocolException, IOException
   {
     if
     (
@@ -698,7 +1138,7 @@ public class HTTPClient
         );
     }
 
-    return
+    Request	request =
       new Request
       (
         method,
@@ -711,8 +1151,20 @@ public class HTTPClient
         trailerIn,
         trailerOut,
         chunkedRequest,
-        contentLength
-      ).getInputStream();
+        contentLength,
+        digest
+      );
+
+    try
+    {
+      return request.getInputStream();
+    }
+
+    finally
+    {
+      request.close();
+        // The body has been sent by now, so the spool is no longer needed.
+    }
   }
 
 
@@ -756,7 +1208,7 @@ public class HTTPClient
         (
           in,
           connection,
-          Integer.parseInt(headers.get("Content-Length")[0])
+          Long.parseLong(headers.get("Content-Length")[0])
         ) :
         (
           headers.get("Transfer-Encoding").length > 0 &&
@@ -801,32 +1253,129 @@ public class HTTPClient
 
 
 
+  /**
+   * Sets the maximum number of requests on a connection. A value of 0 or less
+   * means there is no maximum.
+   */
+
   public static void
-  setKeyManager(KeyManager value)
+  setKeepAliveRequests(int value)
   {
-    keyManager = value;
+    keepAliveRequests = value;
   }
 
 
 
+  /**
+   * Sets the time in milliseconds after which an idle connection is closed.
+   */
+
   public static void
-  setTimeout(int value)
+  setKeepAliveTimeout(long value)
   {
-    timeout = value;
+    keepAliveTimeout = value;
   }
 
 
 
   public static void
-  setTracer(Tracer value)
+  setKeyManager(KeyManager value)
   {
-    tracer = value;
+    keyManager = value;
   }
 
 
 
+  /**
+   * Sets the maximum number of requests per second for each host. A value of
+   * 0 or less means there is no limit.
+   */
+
   public static void
-  setTrustManager(TrustManager value)
+  setRequestRate(long value)
+  {
+    synchronized (requestLimiters)
+    {
+      requestRate = value;
+
+      for (RateLimiter limiter: requestLimiters.values())
+      {
+        limiter.setRate(value);
+      }
+    }
+  }
+
+
+
+  /**
+   * Sets the number of TLS sessions that are kept for resumption. It should
+   * be at least the number of hosts that are talked to.
+   */
+
+  public static void
+  setSessionCacheSize(int value)
+  {
+    sessionCacheSize = value;
+    sslLock.lock();
+
+    try
+    {
+      if (sslContext != null)
+      {
+        sslContext.getClientSessionContext().setSessionCacheSize(value);
+      }
+    }
+
+    finally
+    {
+      sslLock.unlock();
+    }
+  }
+
+
+
+  public static void
+  setTimeout(int value)
+  {
+    timeout = value;
+  }
+
+
+
+  public static void
+  setTracer(Tracer value)
+  {
+    tracer = value;
+  }
+
+
+
+  /**
+   * Sets the transport for a host. The host "*" stands for all hosts that
+   * don't have their own transport. A <code>null</code> transport brings the
+   * host back to the built-in HTTP/1.1 connections, which are also always
+   * used for requests that go through a proxy. With the system property
+   * <code>be.re.http.http2-hosts</code>, a comma-separated list of hosts,
+   * those hosts get an <code>HTTP2Transport</code>.
+   */
+
+  public static void
+  setTransport(String host, Transport transport)
+  {
+    if (transport == null)
+    {
+      transports.remove(host.toLowerCase());
+    }
+    else
+    {
+      transports.put(host.toLowerCase(), transport);
+    }
+  }
+
+
+
+  public static void
+  setTrustManager(TrustManager value)
   {
     trustManager = value;
   }
@@ -841,6 +1390,31 @@ public class HTTPClient
 
 
 
+  private static synchronized void
+  startEvictor()
+  {
+    if (evictor == null)
+    {
+      evictor = new Timer("be.re.net.HTTPClient evictor", true);
+
+      evictor.schedule
+      (
+        new TimerTask()
+        {
+          public void
+          run()
+          {
+            connectionPool.purge();
+          }
+        },
+        EVICT_INTERVAL,
+        EVICT_INTERVAL
+      );
+    }
+  }
+
+
+
   private static boolean
   supportsCompress(URL url)
   {
@@ -870,211 +1444,677 @@ public class HTTPClient
 
 
 
-  private static class Connection implements ResourceAdapter
+  /**
+   * Compresses a body on the fly for a transport, which takes an input
+   * stream. A thread writes the compressed body into a pipe. When that fails,
+   * the end of the stream is reported as the failure, so a truncated body is
+   * never taken as complete.
+   */
+
+  private static class CompressingInputStream extends FilterInputStream
 
   {
 
-    private boolean	closed = false;
-    private boolean	mustClose = false;
-    private Socket	socket;
-    private long	timestamp = new Date().getTime();
-    private URL         url;
+    private IOException	exception;
+    private Thread	thread;
 
 
 
     private
-    Connection(URL url) throws IOException
+    CompressingInputStream(final InputStream body) throws IOException
     {
-      this.socket =
-        "https".equals(url.getProtocol()) ?
-          getSSLContext().getSocketFactory().createSocket
-          (
-            url.getHost(),
-            url.getPort() == -1 ? 443 : url.getPort()
-          ) :
-          new Socket(url.getHost(), url.getPort() == -1 ? 80 : url.getPort());
-      this.url = url;
+      super(new PipedInputStream());
 
-      if (socket instanceof SSLSocket)
-      {
-        ((SSLSocket) socket).setUseClientMode(true);
-      }
+      final PipedOutputStream	out =
+        new PipedOutputStream((PipedInputStream) in);
 
-      socket.setSoTimeout(timeout);
+      thread =
+        Threads.start
+        (
+          new Runnable()
+          {
+            public void
+            run()
+            {
+              try
+              {
+                StreamConnector.copy
+                (
+                  body,
+                  new GZIPOutputStream(out, CHUNK_SIZE),
+                  false,
+                  true
+                );
+              }
+
+              catch (IOException e)
+              {
+                exception = e;
+
+                try
+                {
+                  out.close(); // Release the reader.
+                }
+
+                catch (IOException ex)
+                {
+                }
+              }
+            }
+          }
+        );
     }
 
 
 
     public void
-    acquired()
+    close() throws IOException
     {
+      thread.interrupt();
+      in.close();
     }
 
 
 
-    public synchronized void
-    close() throws ResourceException
+    private int
+    end(int result) throws IOException
     {
-      if (!closed)
+      if (result == -1)
       {
-        closed = true;
-
         try
         {
-          if (socket != null)
-          {
-            socket.close();
-          }
+          thread.join();
         }
 
-        catch (IOException e)
+        catch (InterruptedException e)
+        {
+          throw new InterruptedIOException(e.getMessage());
+        }
+
+        if (exception != null)
         {
-          throw new ResourceException(e);
+          throw exception;
         }
       }
+
+      return result;
     }
 
 
 
-    protected void
-    finalize() throws Throwable
+    public int
+    read() throws IOException
     {
-      close();
+      return end(in.read());
     }
 
 
 
-    public Object
-    getConnection()
+    public int
+    read(byte[] b, int off, int len) throws IOException
     {
-      return this;
+      return end(in.read(b, off, len));
     }
 
+  } // CompressingInputStream
 
 
-    private Socket
-    getSocket()
-    {
-      return socket;
-    }
 
+  private static class Connection implements ResourceAdapter
 
+  {
 
-    public URL
-    getUrl()
-    {
-      return url;
-    }
+    private volatile boolean	closed = false;
+    private long		hintedTimeout = -1;
+    private final ReentrantLock	lock = new ReentrantLock();
+    private boolean		mustClose = false;
+    private int			remaining = -1;
+    private int			requests = 0;
+    private Socket		socket;
+    private long		timestamp = System.currentTimeMillis();
+    private URL			url;
 
 
 
-    public boolean
-    isAlive()
+    private
+    Connection(URL url) throws IOException
     {
-      long	newTimestamp = new Date().getTime();
+      boolean	secure = "https".equals(url.getProtocol());
+      int	port =
+        url.getPort() != -1 ? url.getPort() : (secure ? 443 : 80);
+      long	start = System.nanoTime();
 
-      if (newTimestamp - timestamp <= TIME_DELTA)
+      this.socket =
+        secure ?
+          new Socket(url.getHost(), port) :
+          SocketChannel.open(new InetSocketAddress(url.getHost(), port)).
+            socket();
+          // The channel lets a file body go to the socket without copying.
+      this.url = url;
+      statistics.connected(System.nanoTime() - start);
+      socket.setSoTimeout(timeout);
+
+      if (secure)
       {
-        timestamp = newTimestamp;
-        return true;
+        try
+        {
+          socket = handshake(socket, url.getHost(), port);
+        }
+
+        catch (IOException e)
+        {
+          socket.close();
+          throw e;
+        }
       }
 
-      return false;
+      startEvictor();
     }
 
 
 
-    public boolean
-    mustClose()
+    public void
+    acquired()
     {
-      return mustClose;
+      ++requests;
     }
 
 
 
     public void
-    released()
+    close() throws ResourceException
     {
-      timestamp = new Date().getTime();
-    }
+      lock.lock();
+
+      try
+      {
+        if (!closed)
+        {
+          closed = true;
 
+          if (socket != null)
+          {
+            socket.close();
+          }
+        }
+      }
 
+      catch (IOException e)
+      {
+        throw new ResourceException(e);
+      }
 
-    public void
-    setMustClose(boolean value)
-    {
-      mustClose = value;
+      finally
+      {
+        lock.unlock();
+      }
     }
 
-  } // Connection
 
 
+    protected void
+    finalize() throws Throwable
+    {
+      close();
+    }
 
-  private static class ConsumeResponseInputStream extends FilterInputStream
 
-  {
 
-    private boolean	closed = false;
+    public Object
+    getConnection()
+    {
+      return this;
+    }
 
 
 
-    private
-    ConsumeResponseInputStream(InputStream in)
+    private Socket
+    getSocket()
     {
-      super(in);
+      return socket;
     }
 
 
 
-    public void
-    close() throws IOException
+    /**
+     * Layers TLS over the connection. The host is given explicitly, so that
+     * the session can be resumed and the server name is sent. Only HTTP/1.1
+     * is offered to the server.
+     */
+
+    private static Socket
+    handshake(Socket socket, String host, int port) throws IOException
     {
-      if (!closed)
+      SSLSocket		result =
+        (SSLSocket) getSSLContext().getSocketFactory().
+          createSocket(socket, host, port, true);
+      SSLParameters	parameters = result.getSSLParameters();
+
+      result.setUseClientMode(true);
+      parameters.setApplicationProtocols(new String[] {"http/1.1"});
+
+      if (!isAddress(host))
       {
-        closed = true;
-        StreamConnector.copy(in, new DevNullOutputStream());
+        try
+        {
+          parameters.setServerNames
+          (
+            Collections.singletonList((SNIServerName) new SNIHostName(host))
+          );
+        }
+
+        catch (IllegalArgumentException e)
+        {
+          // Not a name the server can be asked for.
+        }
       }
+
+      result.setSSLParameters(parameters);
+
+      long	started = System.currentTimeMillis();
+      long	start = System.nanoTime();
+
+      result.startHandshake();
+
+      statistics.handshaken
+      (
+        System.nanoTime() - start,
+        result.getSession().getCreationTime() < started
+      );
+
+      return result;
     }
 
-  } // ConsumeResponseInputStream
 
 
+    public URL
+    getUrl()
+    {
+      return url;
+    }
 
-  /**
-   * The class gets rid of the socket connection as soon as possible.
-   */
 
-  private static class FixedLengthInputStream extends LimitedLengthInputStream
 
-  {
+    /**
+     * Returns the time in milliseconds the connection may stay idle. The
+     * timeout announced by the server is shortened a bit, because the server
+     * starts counting earlier.
+     */
 
-    private boolean	closed = false;
-    private Resource	connection;
+    private long
+    getIdleTimeout()
+    {
+      return
+        hintedTimeout != -1 ?
+          Math.min(keepAliveTimeout, Math.max(0, hintedTimeout - HINT_MARGIN)) :
+          keepAliveTimeout;
+    }
 
 
 
-    private
-    FixedLengthInputStream(InputStream in, Resource connection, int length)
-      throws IOException
+    public boolean
+    isAlive()
     {
-      super(in, length);
-      this.connection = connection;
+      long	idle = System.currentTimeMillis() - timestamp;
+
+      return
+        !closed && !mustClose() && idle <= getIdleTimeout() &&
+          (idle < PROBE_AFTER || isOpen());
     }
 
 
 
-    public void
-    close() throws IOException
+    /**
+     * Checks if the server hasn't closed the connection in the meantime. An
+     * idle connection should have nothing to read. When the server has closed
+     * it the end of the stream is seen immediately.
+     */
+
+    private static boolean
+    isAddress(String host)
     {
-      if (!closed)
+      if (host.indexOf(':') != -1)
       {
-        closed = true;
+        return true;
+      }
 
-        if (connection != null)
+      for (int i = 0; i < host.length(); ++i)
+      {
+        if (host.charAt(i) != '.' && !Character.isDigit(host.charAt(i)))
         {
-          release(connection);
+          return false;
         }
       }
+
+      return true;
+    }
+
+
+
+    private boolean
+    isOpen()
+    {
+      if
+      (
+        socket.isClosed()		||
+        socket.isInputShutdown()	||
+        socket.isOutputShutdown()
+      )
+      {
+        return false;
+      }
+
+      try
+      {
+        socket.setSoTimeout(1);
+        socket.getInputStream().read();
+
+        return false; // Either the end of the stream or unexpected data.
+      }
+
+      catch (SocketTimeoutException e)
+      {
+        return true;
+      }
+
+      catch (IOException e)
+      {
+        return false;
+      }
+
+      finally
+      {
+        try
+        {
+          socket.setSoTimeout(timeout);
+        }
+
+        catch (IOException e)
+        {
+        }
+      }
+    }
+
+
+
+    private boolean
+    isReused()
+    {
+      return requests > 1;
+    }
+
+
+
+    public boolean
+    mustClose()
+    {
+      return
+        mustClose || remaining == 0 ||
+          (keepAliveRequests > 0 && requests >= keepAliveRequests);
+    }
+
+
+
+    public void
+    released()
+    {
+      timestamp = System.currentTimeMillis();
+    }
+
+
+
+    /**
+     * Takes the hints of a "Keep-Alive" response header, which has the form
+     * "timeout=seconds, max=requests".
+     */
+
+    private void
+    setKeepAlive(String[] values)
+    {
+      for (int i = 0; i < values.length; ++i)
+      {
+        StringTokenizer	tokenizer = new StringTokenizer(values[i], " ,");
+
+        while (tokenizer.hasMoreTokens())
+        {
+          String	token = tokenizer.nextToken().toLowerCase();
+          int		equal = token.indexOf('=');
+
+          try
+          {
+            if (equal != -1 && token.startsWith("timeout"))
+            {
+              hintedTimeout =
+                Long.parseLong(token.substring(equal + 1).trim()) * 1000;
+            }
+            else
+            {
+              if (equal != -1 && token.startsWith("max"))
+              {
+                remaining = Integer.parseInt(token.substring(equal + 1).trim());
+              }
+            }
+          }
+
+          catch (NumberFormatException e)
+          {
+          }
+        }
+      }
+    }
+
+
+
+    public void
+    setMustClose(boolean value)
+    {
+      mustClose = value;
+    }
+
+  } // Connection
+
+
+
+  private static class ConsumeResponseInputStream extends FilterInputStream
+
+  {
+
+    private boolean	closed = false;
+    private InputStream	data;
+
+
+
+    private
+    ConsumeResponseInputStream(InputStream in)
+    {
+      this(in, null);
+    }
+
+
+
+    /**
+     * @param data the body as it comes from the connection, before it is
+     * throttled and decoded.
+     */
+
+    private
+    ConsumeResponseInputStream(InputStream in, InputStream data)
+    {
+      super(in);
+      this.data = data;
+    }
+
+
+
+    public void
+    close() throws IOException
+    {
+      if (!closed)
+      {
+        closed = true;
+        StreamConnector.copy(in, new DevNullOutputStream());
+      }
+    }
+
+
+
+    private void
+    download(DownloadSink sink) throws IOException
+    {
+      if
+      (
+        !(data instanceof FixedLengthInputStream)		||
+        !(in instanceof ThrottledInputStream)			||
+          // The body is decoded.
+        !((FixedLengthInputStream) data).download(sink)
+      )
+      {
+        StreamConnector.copy(in, sink, CHUNK_SIZE, false, false, false);
+      }
+    }
+
+  } // ConsumeResponseInputStream
+
+
+
+  /**
+   * The class gets rid of the socket connection as soon as possible.
+   */
+
+  private static class FixedLengthInputStream extends LimitedLengthInputStream
+
+  {
+
+    private boolean	closed = false;
+    private Resource	connection;
+    private long	remaining;
+
+
+
+    private
+    FixedLengthInputStream(InputStream in, Resource connection, long length)
+      throws IOException
+    {
+      super(in, length);
+      this.connection = connection;
+      remaining = length;
+    }
+
+
+
+    public void
+    close() throws IOException
+    {
+      if (!closed)
+      {
+        closed = true;
+
+        if (connection != null)
+        {
+          release(connection);
+        }
+      }
+    }
+
+
+
+    public int
+    available() throws IOException
+    {
+      return (int) Math.min((long) super.available(), remaining);
+    }
+
+
+
+    /**
+     * Writes the rest of the body in the sink straight from the channel of the
+     * connection. This is only possible on a plain connection without a
+     * timeout, because a read on the channel doesn't time out, and when
+     * nothing has been read ahead of the body.
+     * @return <code>false</code> when the body has to be read as a stream.
+     */
+
+    private boolean
+    download(DownloadSink sink) throws IOException
+    {
+      SocketChannel	channel =
+        connection != null && !closed && timeout == 0 && getTracer() == null &&
+          in instanceof ReadLineInputStream &&
+          !((ReadLineInputStream) in).hasReadAhead() ?
+          ((Connection) connection.getConnection()).getSocket().getChannel() :
+          null;
+
+      if (channel == null)
+      {
+        return false;
+      }
+
+      while (remaining > 0)
+      {
+        int	result;
+
+        try
+        {
+          result = sink.read(channel, remaining);
+        }
+
+        catch (IOException e)
+        {
+          if (!sink.isFailed())
+          {
+            ((Connection) connection.getConnection()).setMustClose(true);
+          }
+
+          throw e;
+        }
+
+        if (result == -1)
+        {
+          ((Connection) connection.getConnection()).setMustClose(true);
+
+          throw new IOException("Premature end of the response body");
+        }
+
+        remaining -= result;
+        downloadLimiter.acquire(result);
+      }
+
+      return true;
+    }
+
+
+
+    /**
+     * A body that ends before its announced length is an error, because it
+     * would otherwise be taken for the complete body.
+     */
+
+    public int
+    read(byte[] b, int off, int len) throws IOException
+    {
+      if (remaining <= 0)
+      {
+        return -1; // The rest may have gone through the channel.
+      }
+
+      int	result = super.read(b, off, (int) Math.min(len, remaining));
+
+      if (result == -1 && remaining > 0 && len > 0)
+      {
+        if (connection != null)
+        {
+          ((Connection) connection.getConnection()).setMustClose(true);
+        }
+
+        throw new IOException("Premature end of the response body");
+      }
+
+      if (result > 0)
+      {
+        remaining -= result;
+      }
+
+      return result;
     }
 
   } // FixedLengthInputStream
@@ -1125,12 +2165,17 @@ public class HTTPClient
     private boolean	chunkedRequest;
     private boolean	compress;
     private long	contentLength;
-    private byte[]	data;
+    private Spool	data;
+    private MessageDigest	digest;
+      // The digest is updated with the body as it is sent.
     private Headers	headersIn;
     private Headers	headersOut;
     private String	method;
     private URL		proxy;
+    private boolean	received;
+      // Something of the response has arrived on the current connection.
     private int		redirectionCount = 0;
+    private ResumingInputStream	resuming;
     private int		retryCount = 0;
     private boolean	shouldTunnel = false;
     private Headers	trailerIn;
@@ -1152,7 +2197,8 @@ public class HTTPClient
       Headers		trailerIn,
       Headers		trailerOut,
       boolean		chunkedRequest,
-      long		contentLength
+      long		contentLength,
+      MessageDigest	digest
     ) throws IOException, MalformedURLException
     {
       this.method = method;
@@ -1171,6 +2217,7 @@ public class HTTPClient
           // If the contentLength is given the client wants to stream the body.
           // In that case we can't predict the size of the compressed stream.
       this.contentLength = contentLength;
+      this.digest = digest;
 
       try
       {
@@ -1387,34 +2434,129 @@ public class HTTPClient
 
 
     private void
-    decompressData() throws IOException
+    close()
     {
-      ByteArrayOutputStream	out = new ByteArrayOutputStream();
-
-      StreamConnector.
-        copy(new GZIPInputStream(new ByteArrayInputStream(data)), out);
-      data = out.toByteArray();
-      headersIn.set("Content-Length", String.valueOf(data.length));
+      if (data != null)
+      {
+        data.delete();
+        data = null;
+      }
     }
 
 
 
-    private InputStream
-    getInputStream() throws HTTPProtocolException, IOException
+    private void
+    decompressData() throws IOException
     {
-      Resource	connection = connect(url);
+      Spool	out = new Spool();
 
       try
       {
-        ReadLineInputStream	in = wrapIn(connection);
-        OutputStream		out = wrapOut(connection);
-
-        if (shouldTunnel)
-        {
-          createTunnel(in, out);
-        }
+        StreamConnector.
+          copy(new GZIPInputStream(data.getInputStream()), out, true, true);
+      }
 
-        setContentEncoding();
+      catch (IOException e)
+      {
+        out.delete();
+        throw e;
+      }
+
+      finally
+      {
+        data.delete();
+      }
+
+      data = out;
+      headersIn.set("Content-Length", String.valueOf(data.length()));
+    }
+
+
+
+    /**
+     * Returns the body, which updates the digest when it is read. The body is
+     * read only once, so the digest starts from scratch.
+     */
+
+    private InputStream
+    getBody()
+    {
+      if (digest == null)
+      {
+        return body;
+      }
+
+      digest.reset();
+
+      return new DigestInputStream(body, digest);
+    }
+
+
+
+    private static byte[]
+    getFileBuffer()
+    {
+      byte[]	buffer = fileBuffers.poll();
+
+      return buffer != null ? buffer : new byte[FILE_BUFFER_SIZE];
+    }
+
+
+
+    /**
+     * Returns the channel of a file body that is sent as it is, or
+     * <code>null</code> when the body is something else, its length is not
+     * known or it is compressed on the fly.
+     */
+
+    private FileChannel
+    getFileChannel()
+    {
+      return
+        body instanceof FileInputStream					&&
+          data == null							&&
+          contentLength != -1						&&
+          !(chunkedRequest && compress && !isCompressed()) ?
+          ((FileInputStream) body).getChannel() : null;
+    }
+
+
+
+    private InputStream
+    getInputStream() throws HTTPProtocolException, IOException
+    {
+      getRequestLimiter(url).acquire(1);
+
+      Transport	transport = getTransport(url.getHost());
+
+      if
+      (
+        transport != null					&&
+        proxy == null						&&
+        (
+          "http".equals(url.getProtocol())			||
+          "https".equals(url.getProtocol())
+        )
+      )
+      {
+        return getInputStream(transport);
+      }
+
+      Resource	connection = connect(url);
+
+      received = false;
+
+      try
+      {
+        ReadLineInputStream	in = wrapIn(connection);
+        OutputStream		out = wrapOut(connection);
+
+        if (shouldTunnel)
+        {
+          createTunnel(in, out);
+        }
+
+        setContentEncoding();
 
         writeRequest
         (
@@ -1437,7 +2579,12 @@ public class HTTPClient
 
           if (response == 100)
           {
-            writeBody(out);
+            writeBody
+            (
+              out,
+              ((Connection) connection.getConnection()).getSocket()
+            );
+
             response = processHeaders(in, connection);
           }
         }
@@ -1445,7 +2592,11 @@ public class HTTPClient
         {
           if (data != null || contentLength != -1)
           {
-            writeBody(out);
+            writeBody
+            (
+              out,
+              ((Connection) connection.getConnection()).getSocket()
+            );
           }
 
           response = processHeaders(in, connection);
@@ -1498,17 +2649,36 @@ public class HTTPClient
           return getInputStream();
         }
 
-        return
+        InputStream	data =
+          method.equals("HEAD") || response == 204 || response == 205 ?
+            null : searchForData(in, connection, headersOut, trailerOut);
+        InputStream	result =
           new ConsumeResponseInputStream
           (
-            method.equals("HEAD") || response == 204 || response == 205 ?
+            data == null ?
               new FixedLengthInputStream(in, connection, 0) :
               decode
               (
-                searchForData(in, connection, headersOut, trailerOut),
+                new ThrottledInputStream(data, downloadLimiter),
                 headersOut
-              )
+              ),
+            data
           );
+
+        if (resuming != null)
+        {
+          resuming.connection = connection;
+
+          return result;
+        }
+
+        String	validator = getValidator(response);
+        long	position = response == 206 ? getRangeStart() : 0;
+
+        return
+          validator != null && position != -1 ?
+            new ResumingInputStream(result, connection, validator, position) :
+            result;
       }
 
       catch (HTTPProtocolException e)
@@ -1544,6 +2714,174 @@ public class HTTPClient
 
 
 
+    private InputStream
+    getInputStream(Transport transport)
+      throws HTTPProtocolException, IOException
+    {
+      boolean	compressing =
+        data == null && chunkedRequest && compress && !isCompressed();
+
+      setContentEncoding();
+
+      InputStream	in;
+      InputStream	requestBody =
+        data != null ?
+          data.getInputStream() :
+          (
+            body == null ?
+              null :
+              (
+                compressing ?
+                  new CompressingInputStream(getBody()) : getBody()
+              )
+          );
+
+      try
+      {
+        in =
+          transport.exchange
+          (
+            method,
+            url,
+            headersIn,
+            requestBody != null ?
+              new ThrottledInputStream(requestBody, uploadLimiter) : null,
+            data != null ? data.length() : (compressing ? -1 : contentLength),
+            chunkedRequest,
+            headersOut
+          );
+      }
+
+      catch (IOException e)
+      {
+        if (compressing)
+        {
+          requestBody.close();
+        }
+
+        if (body != null && data == null)
+        {
+          throw e; // The body has been consumed, so it can't be sent again.
+        }
+
+        if (++retryCount > MAX_RETRIES)
+        {
+          throw e;
+        }
+
+        try
+        {
+          Thread.sleep(retryCount * 1000);
+        }
+
+        catch (InterruptedException ex)
+        {
+          throw e;
+        }
+
+        return getInputStream();
+      }
+
+      int	response = Integer.parseInt(headersOut.get("Status-Code")[0]);
+
+      if (processResponse(response))
+      {
+        in.close();
+
+        if (++redirectionCount > MAX_REDIRECTIONS)
+        {
+          throw
+            new HTTPProtocolException
+            (
+              be.re.net.Util.getResource("http_redirect")
+            );
+        }
+
+        return getInputStream();
+      }
+
+      InputStream	result =
+        new ConsumeResponseInputStream
+        (
+          method.equals("HEAD") || response == 204 || response == 205 ?
+            in :
+            decode(new ThrottledInputStream(in, downloadLimiter), headersOut)
+        );
+
+      if (resuming != null)
+      {
+        resuming.connection = null;
+
+        return result;
+      }
+
+      String	validator = getValidator(response);
+      long	position = response == 206 ? getRangeStart() : 0;
+
+      return
+        validator != null && position != -1 ?
+          new ResumingInputStream(result, null, validator, position) :
+          result;
+    }
+
+
+
+    private long
+    getRangeStart()
+    {
+      String[]	range = headersOut.get("Content-Range");
+
+      if (range.length > 0)
+      {
+        StringTokenizer	tokenizer = new StringTokenizer(range[0], " -/");
+
+        if
+        (
+          tokenizer.countTokens() == 4			&&
+          tokenizer.nextToken().equalsIgnoreCase("bytes")
+        )
+        {
+          try
+          {
+            return Long.parseLong(tokenizer.nextToken());
+          }
+
+          catch (NumberFormatException e)
+          {
+          }
+        }
+      }
+
+      return -1;
+    }
+
+
+
+    /**
+     * Returns the strong ETag if the body of the response can be resumed with
+     * a range request.
+     */
+
+    private String
+    getValidator(int response)
+    {
+      String[]	etag = headersOut.get("ETag");
+
+      return
+        GET.equals(method)						&&
+          (response == 200 || response == 206)				&&
+          etag.length > 0						&&
+          !etag[0].startsWith("W/")					&&
+          headersOut.get("Content-Encoding").length == 0		&&
+          be.re.util.Array.inArray
+          (
+            headersOut.getValuesFromList("Accept-Ranges"),
+            "bytes"
+          ) ? etag[0] : null;
+    }
+
+
+
     private boolean
     isCompressed()
     {
@@ -1600,6 +2938,8 @@ public class HTTPClient
         return -1;
       }
 
+      received = true;
+
       StringTokenizer	tokenizer = new StringTokenizer(new String(line));
 
       if (tokenizer.countTokens() < 2)
@@ -1612,6 +2952,12 @@ public class HTTPClient
 
       String	protocol = tokenizer.nextToken();
 
+      if (connection != null)
+      {
+        ((Connection) connection.getConnection()).
+          setKeepAlive(headersOut.get("Keep-Alive"));
+      }
+
       if
       (
         connection != null						&&
@@ -1756,12 +3102,27 @@ public class HTTPClient
 
 
 
+    /**
+     * A failure on a reused connection most likely means the server had
+     * closed it. When nothing of the response has arrived and the body can be
+     * sent again, the request is tried again on another connection without
+     * counting it. The connection is closed, so this ends when a new one is
+     * made.
+     */
+
     private InputStream
     retryRequest(Resource connection, IOException e) throws IOException
     {
+      boolean	reused = ((Connection) connection.getConnection()).isReused();
+
       ((Connection) connection.getConnection()).setMustClose(true);
       release(connection);
 
+      if (reused && !received && (body == null || data != null))
+      {
+        return getInputStream();
+      }
+
       if (++retryCount > MAX_RETRIES)
       {
         throw e;
@@ -1810,19 +3171,30 @@ public class HTTPClient
       {
         if (contentLength == -1)
         {
-          ByteArrayOutputStream	accu = new ByteArrayOutputStream();
+          Spool	accu = new Spool();
 
-          StreamConnector.copy
-          (
-            body,
-            compress && !isCompressed() ?
-              (OutputStream) new GZIPOutputStream(accu) : (OutputStream) accu,
-            false,
-            true
-          );
+          try
+          {
+            StreamConnector.copy
+            (
+              getBody(),
+              compress && !isCompressed() ?
+                (OutputStream) new GZIPOutputStream(accu, CHUNK_SIZE) :
+                (OutputStream) accu,
+              false,
+              true
+            );
+          }
+
+          catch (IOException e)
+          {
+            accu.delete();
+            throw e;
+          }
 
-          data = accu.toByteArray();
-          headersIn.set("Content-Length", String.valueOf(data.length));
+          close();
+          data = accu;
+          headersIn.set("Content-Length", String.valueOf(data.length()));
         }
         else
         {
@@ -1882,18 +3254,66 @@ public class HTTPClient
 
 
     private void
-    tryNotChunked() throws IOException
+    notChunked() throws IOException
     {
       chunkedRequest = false;
       headersIn.remove("Expect", "100-continue");
       headersIn.remove("Transfer-Encoding", "chunked");
       headersIn.remove("TE", "trailers");
-      markExpect100(url);
       setData();
     }
 
 
 
+    private void
+    tryNotChunked() throws IOException
+    {
+      notChunked();
+      markExpect100(url);
+    }
+
+
+
+    /**
+     * Reads a range of the file that has been sent into the digest.
+     */
+
+    private void
+    updateDigest(FileChannel file, long position, long length)
+      throws IOException
+    {
+      byte[]	buffer = getFileBuffer();
+      long	end = position + length;
+
+      try
+      {
+        ByteBuffer	wrapper = ByteBuffer.wrap(buffer);
+
+        while (position < end)
+        {
+          wrapper.clear();
+          wrapper.limit((int) Math.min(buffer.length, end - position));
+
+          int	n = file.read(wrapper, position);
+
+          if (n == -1)
+          {
+            throw new IOException("Premature end of file");
+          }
+
+          digest.update(buffer, 0, n);
+          position += n;
+        }
+      }
+
+      finally
+      {
+        fileBuffers.offer(buffer);
+      }
+    }
+
+
+
     private ReadLineInputStream
     wrapIn(Resource connection) throws IOException
     {
@@ -1939,10 +3359,26 @@ public class HTTPClient
 
 
     private void
-    writeBody(OutputStream out)
+    writeBody(OutputStream out, Socket socket)
     {
       try
       {
+        FileChannel	file = getFileChannel();
+
+        if (file != null)
+        {
+          writeFile
+          (
+            file,
+            out,
+            getTracer() == null ? socket.getChannel() : null
+          );
+
+          return;
+        }
+
+        out = new ThrottledOutputStream(out, uploadLimiter);
+
         if (chunkedRequest)
         {
           out =
@@ -1951,18 +3387,18 @@ public class HTTPClient
                 new GZIPOutputStream(new TransferOutputStream(out, trailerIn)) :
               (OutputStream) new TransferOutputStream(out, trailerIn);
 
-          StreamConnector.copy(body, out, false, true);
+          StreamConnector.copy(getBody(), out, false, true);
             // out is closed because of the trailers.
         }
         else
         {
           if (contentLength == -1)
           {
-            out.write(data);
+            StreamConnector.copy(data.getInputStream(), out, true, false);
           }
           else
           {
-            StreamConnector.copy(body, out, false, false);
+            StreamConnector.copy(getBody(), out, false, false);
           }
         }
 
@@ -1985,6 +3421,115 @@ public class HTTPClient
 
 
 
+    /**
+     * Sends the file from its current position. With a socket channel the
+     * kernel copies the file to the socket. Otherwise the file is read in a
+     * buffer from the pool. A chunked body consists of one chunk, because its
+     * length is known. The digest is updated from the file either way. After
+     * a transfer by the kernel the blocks are read again while they are still
+     * in the page cache.
+     * @param channel the channel of the socket or <code>null</code>.
+     */
+
+    private void
+    writeFile(FileChannel file, OutputStream out, SocketChannel channel)
+      throws IOException
+    {
+      long	end = file.position() + contentLength;
+      long	position = file.position();
+
+      if (chunkedRequest && contentLength > 0)
+      {
+        out.write((Long.toHexString(contentLength) + "\r\n").getBytes());
+      }
+
+      out.flush();
+
+      if (digest != null)
+      {
+        digest.reset();
+      }
+
+      if (channel != null)
+      {
+        int	size =
+          uploadLimiter.getRate() > 0 ? THROTTLED_TRANSFER_SIZE : TRANSFER_SIZE;
+
+        while (position < end)
+        {
+          long	n = Math.min(size, end - position);
+
+          uploadLimiter.acquire(n);
+          n = file.transferTo(position, n, channel);
+
+          if (n == 0)
+          {
+            throw new IOException("Premature end of file");
+          }
+
+          if (digest != null)
+          {
+            updateDigest(file, position, n);
+          }
+
+          position += n;
+        }
+      }
+      else
+      {
+        byte[]		buffer = getFileBuffer();
+        OutputStream	throttled = new ThrottledOutputStream(out, uploadLimiter);
+
+        try
+        {
+          ByteBuffer	wrapper = ByteBuffer.wrap(buffer);
+
+          while (position < end)
+          {
+            wrapper.clear();
+            wrapper.limit((int) Math.min(buffer.length, end - position));
+
+            int	n = file.read(wrapper, position);
+
+            if (n == -1)
+            {
+              throw new IOException("Premature end of file");
+            }
+
+            if (digest != null)
+            {
+              digest.update(buffer, 0, n);
+            }
+
+            throttled.write(buffer, 0, n);
+            position += n;
+          }
+        }
+
+        finally
+        {
+          fileBuffers.offer(buffer);
+        }
+      }
+
+      file.position(position);
+
+      if (chunkedRequest)
+      {
+        out.write
+        (
+          (
+            (contentLength > 0 ? "\r\n" : "") + "0\r\n" +
+              (trailerIn != null ? trailerIn.toString() : "") + "\r\n"
+          ).getBytes()
+        );
+      }
+
+      out.flush();
+    }
+
+
+
     private void
     writeRequest(OutputStream out, Socket socket) throws IOException
     {
@@ -2013,6 +3558,194 @@ public class HTTPClient
       out.flush();
     }
 
+
+
+    /**
+     * Continues the body of a GET response with a range request when the
+     * connection breaks while it is read. The range is made conditional with
+     * the ETag of the response, so a resource that has changed in the meantime
+     * causes the original exception to be thrown.
+     */
+
+    private class ResumingInputStream extends FilterInputStream
+
+    {
+
+      private Resource	connection;
+      private long	position;
+      private String	validator;
+
+
+
+      private
+      ResumingInputStream
+      (
+        InputStream	in,
+        Resource	connection,
+        String		validator,
+        long		position
+      )
+      {
+        super(in);
+        this.connection = connection;
+        this.validator = validator;
+        this.position = position;
+      }
+
+
+
+      private void
+      download(DownloadSink sink) throws IOException
+      {
+        for (;;)
+        {
+          long	start = sink.getPosition();
+
+          try
+          {
+            HTTPClient.download(in, sink);
+            position += sink.getPosition() - start;
+
+            return;
+          }
+
+          catch (IOException e)
+          {
+            position += sink.getPosition() - start;
+
+            if (sink.isFailed())
+            {
+              throw e;
+            }
+
+            resume(e);
+          }
+        }
+      }
+
+
+
+      public int
+      read() throws IOException
+      {
+        for (;;)
+        {
+          try
+          {
+            int	b = in.read();
+
+            if (b != -1)
+            {
+              ++position;
+            }
+
+            return b;
+          }
+
+          catch (IOException e)
+          {
+            resume(e);
+          }
+        }
+      }
+
+
+
+      public int
+      read(byte[] b, int off, int len) throws IOException
+      {
+        for (;;)
+        {
+          try
+          {
+            int	result = in.read(b, off, len);
+
+            if (result > 0)
+            {
+              position += result;
+            }
+
+            return result;
+          }
+
+          catch (IOException e)
+          {
+            resume(e);
+          }
+        }
+      }
+
+
+
+      private void
+      resume(IOException e) throws IOException
+      {
+        if (connection != null) // Otherwise it belongs to a transport.
+        {
+          ((Connection) connection.getConnection()).setMustClose(true);
+
+          try
+          {
+            release(connection);
+          }
+
+          catch (Exception ex)
+          {
+          }
+        }
+
+        if (++retryCount > MAX_RETRIES)
+        {
+          throw e;
+        }
+
+        try
+        {
+          Thread.sleep(retryCount * 1000);
+        }
+
+        catch (InterruptedException ex)
+        {
+          throw e;
+        }
+
+        Headers	saved = new Headers();
+
+        saved.add(headersOut);
+        headersIn.set("Range", "bytes=" + String.valueOf(position) + "-");
+        headersIn.set("If-Range", validator);
+        headersIn.set("Accept-Encoding", "identity");
+        resuming = this;
+
+        try
+        {
+          InputStream	next = getInputStream();
+
+          if
+          (
+            !"206".equals(headersOut.get("Status-Code")[0])	||
+            getRangeStart() != position
+          )
+          {
+            next.close();
+
+            throw e;
+          }
+
+          in = next;
+        }
+
+        finally
+        {
+          resuming = null;
+          headersOut.clear();
+          headersOut.add(saved);
+            // The caller has seen the headers of the original response.
+        }
+      }
+
+    } // ResumingInputStream
+
   } // Request
 
 
@@ -2084,6 +3817,141 @@ public class HTTPClient
 
 
 
+  /**
+   * Collects a request body to find out its length. It stays in memory until
+   * it grows too large, after which it moves to a temporary file. The body
+   * can be read as many times as the request has to be sent.
+   */
+
+  private static class Spool extends OutputStream
+
+  {
+
+    private File		file;
+    private long		length;
+    private OutputStream	out = new ByteArrayOutputStream();
+
+
+
+    public void
+    close() throws IOException
+    {
+      out.close();
+    }
+
+
+
+    private void
+    delete()
+    {
+      if (file != null)
+      {
+        try
+        {
+          out.close();
+        }
+
+        catch (IOException e)
+        {
+        }
+
+        file.delete();
+        file = null;
+      }
+    }
+
+
+
+    public void
+    flush() throws IOException
+    {
+      out.flush();
+    }
+
+
+
+    private InputStream
+    getInputStream() throws IOException
+    {
+      return
+        file != null ?
+          (InputStream) new FileInputStream(file) :
+          (InputStream)
+            new ByteArrayInputStream(((ByteArrayOutputStream) out).
+              toByteArray());
+    }
+
+
+
+    private long
+    length()
+    {
+      return length;
+    }
+
+
+
+    private void
+    toFile() throws IOException
+    {
+      file = File.createTempFile("be.re.net.HTTPClient", ".spool");
+
+      OutputStream	fileOut = null;
+
+      try
+      {
+        fileOut =
+          new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+        ((ByteArrayOutputStream) out).writeTo(fileOut);
+        out = fileOut;
+      }
+
+      catch (IOException e)
+      {
+        if (fileOut != null)
+        {
+          try
+          {
+            fileOut.close();
+          }
+
+          catch (IOException ex)
+          {
+          }
+        }
+
+        file.delete();
+        file = null;
+        throw e;
+      }
+    }
+
+
+
+    public void
+    write(int b) throws IOException
+    {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+
+
+    public void
+    write(byte[] b, int off, int len) throws IOException
+    {
+      if (file == null && length + len > SPOOL_MEMORY)
+      {
+        toFile();
+      }
+
+      out.write(b, off, len);
+      length += len;
+    }
+
+  } // Spool
+
+
+
   private static class TransferInputStream extends ChunkedInputStream
 
   {
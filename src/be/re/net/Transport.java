@@ -0,0 +1,41 @@
+package be.re.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Carries the exchanges of <code>HTTPClient</code> for a host. A transport
+ * only sends a request and receives the response. Redirection,
+ * authentication, compression, rate limits and retries stay with
+ * <code>HTTPClient</code>, so a transport shouldn't do any of them.
+ * @see HTTPClient#setTransport
+ * @author Werner Donn\u00e9
+ */
+
+public interface Transport
+{
+  /**
+   * Sends a request and waits for the response headers. The headers that
+   * are about the connection, such as <code>Connection</code>,
+   * <code>Content-Length</code> and <code>Transfer-Encoding</code>, are
+   * the transport's business and may be ignored.
+   * @param body the request body or <code>null</code>.
+   * @param contentLength the length of the body or -1 when it is unknown.
+   * @param expect100 wait for the server to accept the request before the
+   * body is sent.
+   * @param headersOut receives the response headers, with the status in the
+   * pseudo headers <code>Status-Code</code> and <code>Status-Message</code>.
+   * @return the response body, which is not decoded.
+   */
+
+  public InputStream	exchange	(
+					  String	method,
+					  URL		url,
+					  Headers	headersIn,
+					  InputStream	body,
+					  long		contentLength,
+					  boolean	expect100,
+					  Headers	headersOut
+					) throws IOException;
+}
@@ -5,14 +5,29 @@ import be.re.util.Equal;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Deque;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
 /**
- * A generic connection pool.
+ * A generic connection pool. The pool is divided in equivalence classes, each
+ * with its own deque of idle resources, so getting and releasing a resource
+ * takes constant time and doesn't lock the pool as a whole. The most recently
+ * released resource of a class is handed out first.
+ *
+ * The number of resources that are in use is limited per class and for the
+ * complete pool. Requests that exceed a limit wait in the order they came, or
+ * fail immediately if the pool is not blocking. Waiting is done with
+ * semaphores and locks, never with monitors, so virtual threads that wait
+ * don't hold on to their carrier threads.
  * @author Werner Donn\u00e9
  */
 
@@ -20,13 +35,21 @@ public class ConnectionPool
 
 {
 
-  private int			blockedRequests;
+  private static final Object	SINGLE_CLASS = new Object();
+
+  private AtomicInteger		blockedRequests = new AtomicInteger();
   private boolean	        blocking;
-  private Equal		        equivalenceClass;
-  private int		        equivalenceClassSize;
+  private Map<ResourceAdapter,Tuple>	busy =
+    new ConcurrentHashMap<ResourceAdapter,Tuple>();
+  private Map<Object,Slot>	classes = new ConcurrentHashMap<Object,Slot>();
   private ResourceFactory       factory;
-  private int		        poolSize;
-  private List		        resources = new ArrayList();
+  private volatile int		generation;
+  private final ReentrantLock	lock = new ReentrantLock();
+  private Partition		partition;
+  private int			partitionSize;
+  private Permits		permits;
+  private volatile int	        poolSize;
+  private AtomicInteger		size = new AtomicInteger();
   private static Tracer		tracer = initTrace();
 
 
@@ -59,14 +82,12 @@ public class ConnectionPool
    * Creates a connection pool.
    * @param factory to produce new resource instances.
    * @param poolSize the overall maximum number of resource instances.
-   * @param equivalenceClass divides the pool in equivalence classes. The value
+   * @param partition divides the pool in equivalence classes. The value
    * <code>null</code> indicates there are no classes.
-   * @param equivalenceClassSize the maximum number of resource instances per
-   * equivalence class. The first argument of its <code>equal</code> method
-   * is always a resource adapter.
-   * @param blocking indicates if the <code>get</method> blocks or not when no
-   * resources are available.
+   * @param partitionSize the maximum number of resource instances per
    * equivalence class.
+   * @param blocking indicates if the <code>get</code> method blocks or not when
+   * no resources are available.
    */
 
   public
@@ -74,33 +95,105 @@ public class ConnectionPool
   (
     ResourceFactory	factory,
     int			poolSize,
-    Equal		equivalenceClass,
-    int			equivalenceClassSize,
+    Partition		partition,
+    int			partitionSize,
     boolean		blocking
   )
   {
     this.factory = factory;
     this.poolSize = poolSize;
+    this.partition = partition;
+    this.partitionSize = partition != null ? partitionSize : poolSize;
     this.blocking = blocking;
+    permits = new Permits(poolSize);
+  }
+
+
 
-    if (equivalenceClass != null)
+  private boolean
+  acquire(Semaphore semaphore, Object client) throws ResourceException
+  {
+    try
     {
-      this.equivalenceClass = equivalenceClass;
-      this.equivalenceClassSize = equivalenceClassSize;
+      if (semaphore.tryAcquire(0, TimeUnit.MILLISECONDS))
+        // Unlike tryAcquire() this respects the waiting order.
+      {
+        return true;
+      }
+
+      if (!blocking)
+      {
+        return false;
+      }
+
+      trace("blocking", this, client);
+      blockedRequests.incrementAndGet();
+
+      try
+      {
+        semaphore.acquire();
+      }
+
+      finally
+      {
+        blockedRequests.decrementAndGet();
+      }
+
+      return true;
     }
-    else
+
+    catch (InterruptedException e)
     {
-      this.equivalenceClass =
-        new Equal()
-        {
-          public boolean
-          equal(Object object, Object refData)
-          {
-            return true;
-          }
-        };
+      throw new ResourceException(e);
+    }
+  }
+
+
 
-      this.equivalenceClassSize = poolSize;
+  private void
+  close(Tuple entry, Object client) throws ResourceException
+  {
+    size.decrementAndGet();
+    entry.slot.size.decrementAndGet();
+    trace("close", entry.adapter, client);
+    entry.adapter.close();
+  }
+
+
+
+  private void
+  closeQuietly(Tuple entry, Object client)
+  {
+    try
+    {
+      close(entry, client);
+    }
+
+    catch (ResourceException e)
+    {
+      trace("close failed", entry.adapter, client);
+    }
+  }
+
+
+
+  /**
+   * Closes an idle resource of any class to make room for a new one.
+   */
+
+  private void
+  evict(Object client)
+  {
+    for (Slot slot: classes.values())
+    {
+      Tuple	entry = slot.idle.pollLast();
+
+      if (entry != null)
+      {
+        closeQuietly(entry, client);
+
+        return;
+      }
     }
   }
 
@@ -138,7 +231,8 @@ public class ConnectionPool
    * available, depending on the mode set in the constructor.
    * @param client the object asking for the resource.
    * @param criterion executed on a resource adapter instance to check if it
-   * qualifies.
+   * qualifies. Only the resources in the equivalence class of
+   * <code>refData</code> are considered.
    * @param refData second argument to <code>criterion</code>. If a match
    * couldn't be found, this argument is passed to the resource factory.
    * @return the returned <code>Resource</code> implementation releases the
@@ -151,67 +245,58 @@ public class ConnectionPool
   {
     trace("get from", this, client);
 
-    synchronized (resources)
+    Slot	slot = getSlot(refData);
+
+    if (!acquire(slot.permits, client))
     {
-      for (int i = 0; i < resources.size(); ++i)
-      {
-        Tuple	entry = (Tuple) resources.get(i);
+      return null;
+    }
 
-        if (criterion.equal(entry.adapter, refData))
+    if (!acquire(permits, client))
+    {
+      slot.permits.release();
+
+      return null;
+    }
+
+    try
+    {
+      Tuple	entry;
+
+      while ((entry = takeIdle(slot, criterion, refData)) != null)
+      {
+        if (entry.generation == generation && entry.adapter.isAlive())
         {
-          if (entry.occupied == null)
-          {
-            if (entry.adapter.isAlive())
-            {
-              trace("available", entry.adapter, client);
-              entry.occupied = client;
-              entry.adapter.acquired();
-
-              return new ResourceCollector(client, entry.adapter);
-            }
-
-            trace("dead", entry.adapter, client);
-            resources.remove(i--);
-            entry.equivalenceClass.remove(entry.adapter);
-          }
-          else
-          {
-            trace("occupied", entry.adapter, client);
-          }
+          trace("available", entry.adapter, client);
+          occupy(entry, client);
+
+          return new ResourceCollector(client, entry.adapter);
         }
-      }
 
-      if (resources.size() >= poolSize)
-      {
-        return resourceWhenPoolFull(client, criterion, refData);
+        trace("dead", entry.adapter, client);
+        closeQuietly(entry, client);
       }
 
-      for (int i = 0; i < resources.size(); ++i)
+      if (size.get() >= poolSize)
       {
-        Tuple	entry = (Tuple) resources.get(i);
+        evict(client);
+      }
 
-        synchronized (entry.equivalenceClass)
-        {
-          if (equivalenceClass.equal(entry.adapter, refData))
-          {
-            if (entry.equivalenceClass.size() == equivalenceClassSize)
-            {
-              return
-                resourceWhenClassFull
-                (
-                  client,
-                  criterion,
-                  refData,
-                  entry.equivalenceClass
-                );
-            }
-          }
+      return newResource(client, refData, slot);
+    }
 
-          return newResource(client, refData, entry.equivalenceClass);
-        }
-      }
+    catch (ResourceException e)
+    {
+      slot.permits.release();
+      permits.release();
+      throw e;
+    }
 
-      return newResource(client, refData, null);
+    catch (RuntimeException e)
+    {
+      slot.permits.release();
+      permits.release();
+      throw e;
     }
   }
 
@@ -220,7 +305,7 @@ public class ConnectionPool
   public int
   getBlockedRequests()
   {
-    return blockedRequests;
+    return blockedRequests.get();
   }
 
 
@@ -228,17 +313,7 @@ public class ConnectionPool
   public int
   getOccupiedCount()
   {
-    int	result = 0;
-
-    for (int i = 0; i < resources.size(); ++i)
-    {
-      if (((Tuple) resources.get(i)).occupied != null)
-      {
-        ++result;
-      }
-    }
-
-    return result;
+    return busy.size();
   }
 
 
@@ -254,7 +329,28 @@ public class ConnectionPool
   public int
   getResourceCount()
   {
-    return resources.size();
+    return size.get();
+  }
+
+
+
+  private Slot
+  getSlot(Object refData)
+  {
+    Object	key = partition != null ? partition.getKey(refData) : SINGLE_CLASS;
+    Slot	result = classes.get(key);
+
+    if (result == null)
+    {
+      Slot	previous = classes.putIfAbsent(key, result = new Slot());
+
+      if (previous != null)
+      {
+        result = previous;
+      }
+    }
+
+    return result;
   }
 
 
@@ -278,19 +374,32 @@ public class ConnectionPool
 
 
   private Resource
-  newResource(Object client, Object refData, Set equivalenceClass)
+  newResource(Object client, Object refData, Slot slot)
     throws ResourceException
   {
     Tuple	entry = new Tuple();
 
-    trace("new", entry.adapter, client);
-    entry.adapter = factory.newInstance(refData);
-    entry.equivalenceClass =
-      equivalenceClass != null ? equivalenceClass : new HashSet();
-    entry.occupied = client;
-    entry.equivalenceClass.add(entry.adapter);
-    resources.add(entry);
-    entry.adapter.acquired();
+    trace("new", null, client);
+    size.incrementAndGet();
+    slot.size.incrementAndGet();
+
+    try
+    {
+      entry.adapter = factory.newInstance(refData);
+    }
+
+    finally
+    {
+      if (entry.adapter == null)
+      {
+        size.decrementAndGet();
+        slot.size.decrementAndGet();
+      }
+    }
+
+    entry.generation = generation;
+    entry.slot = slot;
+    occupy(entry, client);
     trace("created", entry.adapter, client);
 
     return new ResourceCollector(client, entry.adapter);
@@ -298,6 +407,45 @@ public class ConnectionPool
 
 
 
+  private void
+  occupy(Tuple entry, Object client)
+  {
+    entry.occupied = client;
+    busy.put(entry.adapter, entry);
+    entry.adapter.acquired();
+  }
+
+
+
+  /**
+   * Closes the idle resources that are no longer alive. In each equivalence
+   * class it starts with the resource that has been idle for the longest time
+   * and stops at the first one that is still alive.
+   */
+
+  public void
+  purge()
+  {
+    for (Slot slot: classes.values())
+    {
+      Tuple	entry;
+
+      while ((entry = slot.idle.pollLast()) != null)
+      {
+        if (entry.generation == generation && entry.adapter.isAlive())
+        {
+          slot.idle.offerLast(entry);
+          break;
+        }
+
+        trace("expired", entry.adapter, null);
+        closeQuietly(entry, null);
+      }
+    }
+  }
+
+
+
   /**
    * Makes the <code>adapter</code> available again for selection from the
    * pool. Its <code>mustClose</code> method is called. If it returns
@@ -313,48 +461,54 @@ public class ConnectionPool
   public void
   release(Object client, ResourceAdapter adapter) throws ResourceException
   {
-    synchronized (resources)
+    Tuple	entry = busy.get(adapter);
+
+    if
+    (
+      entry == null			||
+      client != entry.occupied		|| // Test reference to avoid races.
+      !busy.remove(adapter, entry)
+    )
     {
-      for (int i = 0; i < resources.size(); ++i)
-      {
-        Tuple	entry = (Tuple) resources.get(i);
-
-        if (entry.adapter.equals(adapter) && client == entry.occupied)
-                                             // Test reference to avoid races.
-        {
-          entry.occupied = null;
-
-          if (resources.size() > poolSize || adapter.mustClose())
-          {
-            resources.remove(i);
-
-            synchronized (entry.equivalenceClass)
-            {
-              entry.equivalenceClass.remove(entry.adapter);
-            }
-
-            trace("close", entry.adapter, client);
-            adapter.close();
-          }
-
-          trace("notify", entry.adapter, client);
+      return;
+    }
 
-          synchronized (resources)
-          {
-            resources.notifyAll();
-          }
+    entry.occupied = null;
 
-          synchronized (entry.equivalenceClass)
-          {
-            entry.equivalenceClass.notifyAll();
-          }
+    try
+    {
+      if
+      (
+        size.get() > poolSize				||
+        entry.slot.size.get() > partitionSize		||
+        entry.generation != generation			||
+        adapter.mustClose()
+      )
+      {
+        try
+        {
+          close(entry, client);
+        }
 
+        finally
+        {
           trace("release", entry.adapter, client);
-          entry.adapter.released();
-
-          return;
+          adapter.released();
         }
       }
+      else
+      {
+        trace("release", entry.adapter, client);
+        adapter.released();
+        entry.slot.idle.offerFirst(entry);
+      }
+    }
+
+    finally
+    {
+      trace("notify", entry.adapter, client);
+      entry.slot.permits.release();
+      permits.release();
     }
   }
 
@@ -362,97 +516,107 @@ public class ConnectionPool
 
   /**
    * Clears the current resources. This may be required when some global
-   * properties of resource creation have changed.
+   * properties of resource creation have changed. The resources that are in
+   * use are closed when they are released.
    */
 
   public void
   reset()
   {
-    synchronized (resources)
-    {
-      resources.clear();
-    }
-  }
-
+    lock.lock();
 
-
-  private Resource
-  resourceWhenClassFull
-  (
-    Object	client,
-    Equal	criterion,
-    Object	refData,
-    Set		equivalenceClass
-  ) throws ResourceException
-  {
-    if (blocking)
+    try
     {
-      try
+      ++generation;
+
+      for (Slot slot: classes.values())
       {
-        synchronized (equivalenceClass)
+        Tuple	entry;
+
+        while ((entry = slot.idle.pollFirst()) != null)
         {
-          trace("blocking on equivalence class", equivalenceClass, client);
-          ++blockedRequests;
-          equivalenceClass.wait();
-          --blockedRequests;
+          closeQuietly(entry, null);
         }
       }
-
-      catch (InterruptedException e)
-      {
-        throw new ResourceException(e);
-      }
-
-      return get(client, criterion, refData);
     }
 
-    return null;
+    finally
+    {
+      lock.unlock();
+    }
   }
 
 
 
-  private Resource
-  resourceWhenPoolFull(Object client, Equal criterion, Object refData)
-    throws ResourceException
+  public void
+  setPoolSize(int value)
   {
-    if (blocking)
+    lock.lock();
+
+    try
     {
-      try
+      if (value > poolSize)
       {
-        synchronized (resources)
-        {
-          trace("blocking on pool", this, client);
-          ++blockedRequests;
-          resources.wait();
-          --blockedRequests;
-        }
+        permits.release(value - poolSize);
       }
-
-      catch (InterruptedException e)
+      else
       {
-        throw new ResourceException(e);
+        permits.reduce(poolSize - value);
       }
 
-      return get(client, criterion, refData);
+      poolSize = value;
     }
 
-    return null;
+    finally
+    {
+      lock.unlock();
+    }
   }
 
 
 
-  public void
-  setPoolSize(int value)
+  public static void
+  setTracer(Tracer value)
   {
-    poolSize = value;
+    tracer = value;
   }
 
 
 
-  public static void
-  setTracer(Tracer value)
+  /**
+   * Takes the first idle resource that satisfies the criterion. The others
+   * that are looked at are put back in the same order.
+   */
+
+  private static Tuple
+  takeIdle(Slot slot, Equal criterion, Object refData)
   {
-    tracer = value;
+    List<Tuple>	skipped = null;
+    Tuple	result;
+
+    while
+    (
+      (result = slot.idle.pollFirst()) != null	&&
+      !criterion.equal(result.adapter, refData)
+    )
+    {
+      if (skipped == null)
+      {
+        skipped = new ArrayList<Tuple>();
+      }
+
+      skipped.add(result);
+    }
+
+    if (skipped != null)
+    {
+      for (int i = skipped.size() - 1; i >= 0; --i)
+      {
+        slot.idle.offerFirst(skipped.get(i));
+      }
+    }
+
+    return result;
   }
 
 
@@ -485,6 +649,32 @@ public class ConnectionPool
 
 
 
+  private static class Permits extends Semaphore
+
+  {
+
+    private static final long	serialVersionUID = 1L;
+
+
+
+    private
+    Permits(int permits)
+    {
+      super(permits, true);
+    }
+
+
+
+    private void
+    reduce(int reduction)
+    {
+      reducePermits(reduction);
+    }
+
+  } // Permits
+
+
+
   /**
    * The <code>get</code> method always returns an instance of this class. It
    * makes sure that when clients don't release the resource, the garbage
@@ -540,13 +730,30 @@ public class ConnectionPool
 
 
 
+  /**
+   * An equivalence class of the pool.
+   */
+
+  private class Slot
+
+  {
+
+    private Deque<Tuple>	idle = new ConcurrentLinkedDeque<Tuple>();
+    private Semaphore		permits = new Semaphore(partitionSize, true);
+    private AtomicInteger	size = new AtomicInteger();
+
+  } // Slot
+
+
+
   private class Tuple
 
   {
 
     private ResourceAdapter	adapter;
-    private Set			equivalenceClass;
-    private Object		occupied = null;
+    private int			generation;
+    private volatile Object	occupied = null;
+    private Slot		slot;
 
   } // Tuple
 
@@ -0,0 +1,18 @@
+package be.re.pool;
+
+/**
+ * Divides a connection pool in equivalence classes. The resources of a class
+ * are kept apart, so finding one doesn't require looking at the others.
+ * @author Werner Donn\u00e9
+ */
+
+public interface Partition
+{
+  /**
+   * Returns the key of the class the reference data of a request belongs to.
+   * Keys are compared with their <code>equals</code> and
+   * <code>hashCode</code> methods.
+   */
+
+  public Object	getKey	(Object refData);
+}
@@ -0,0 +1,215 @@
+package be.re.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+
+/**
+ * Creates the threads of the library. The factory can be replaced, for example
+ * by one that produces virtual threads. With the system property
+ * "be.re.threads" set to "virtual" this is done from the start when the JVM
+ * supports it. Virtual threads are found through reflection, so the library
+ * still runs on JVMs that don't have them.
+ * @author Werner Donn\u00e9
+ */
+
+public class Threads
+
+{
+
+  private static volatile ThreadFactory	factory =
+    new ThreadFactory()
+    {
+      public Thread
+      newThread(Runnable runnable)
+      {
+        return new Thread(runnable);
+      }
+    };
+
+
+
+  static
+  {
+    if ("virtual".equals(System.getProperty("be.re.threads")))
+    {
+      ThreadFactory	virtual = newVirtualFactory();
+
+      if (virtual != null)
+      {
+        factory = virtual;
+      }
+    }
+  }
+
+
+
+  public static ThreadFactory
+  getFactory()
+  {
+    return factory;
+  }
+
+
+
+  /**
+   * Returns <code>true</code> if the threads of the factory are virtual.
+   */
+
+  public static boolean
+  isVirtual()
+  {
+    Thread	thread = factory.newThread(new Runnable() {public void run() {}});
+
+    try
+    {
+      return
+        ((Boolean) Thread.class.getMethod("isVirtual").invoke(thread)).
+          booleanValue();
+    }
+
+    catch (Exception e)
+    {
+      return false;
+    }
+  }
+
+
+
+  /**
+   * Creates a thread pool with threads from the factory. When they are
+   * virtual there is no point in limiting their number, so every task gets
+   * its own thread.
+   */
+
+  public static ExecutorService
+  newPool(int threads, String name, boolean daemon)
+  {
+    ThreadFactory	named = newFactory(name, daemon);
+
+    return
+      isVirtual() ?
+        Executors.newCachedThreadPool(named) :
+        Executors.newFixedThreadPool(threads, named);
+  }
+
+
+
+  /**
+   * Returns a factory that names the threads of the current factory and sets
+   * their daemon status.
+   */
+
+  public static ThreadFactory
+  newFactory(final String name, final boolean daemon)
+  {
+    return
+      new ThreadFactory()
+      {
+        public Thread
+        newThread(Runnable runnable)
+        {
+          return Threads.newThread(runnable, name, daemon);
+        }
+      };
+  }
+
+
+
+  /**
+   * Creates a thread with the current factory. It is not started. Virtual
+   * threads are always daemon threads.
+   */
+
+  public static Thread
+  newThread(Runnable runnable, String name, boolean daemon)
+  {
+    Thread	result = factory.newThread(runnable);
+
+    if (name != null)
+    {
+      result.setName(name);
+    }
+
+    if (result.isDaemon() != daemon)
+    {
+      try
+      {
+        result.setDaemon(daemon);
+      }
+
+      catch (IllegalArgumentException e)
+      {
+        // A virtual thread.
+      }
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Returns a factory of virtual threads or <code>null</code> if the JVM
+   * doesn't have them.
+   */
+
+  public static ThreadFactory
+  newVirtualFactory()
+  {
+    try
+    {
+      Object	builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+      return
+        (ThreadFactory)
+          Class.forName("java.lang.Thread$Builder").getMethod("factory").
+            invoke(builder);
+    }
+
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+
+
+  public static void
+  setFactory(ThreadFactory value)
+  {
+    factory = value;
+  }
+
+
+
+  /**
+   * Starts a thread that is created with the current factory. Like a thread
+   * that is created directly it is a daemon thread if the current thread is.
+   */
+
+  public static Thread
+  start(Runnable runnable)
+  {
+    return start(runnable, null, Thread.currentThread().isDaemon());
+  }
+
+
+
+  /**
+   * Starts a thread that is created with the current factory.
+   */
+
+  public static Thread
+  start(Runnable runnable, String name, boolean daemon)
+  {
+    Thread	result = newThread(runnable, name, daemon);
+
+    result.start();
+
+    return result;
+  }
+
+} // Threads
@@ -4,16 +4,19 @@ import be.re.io.DevNullInputStream;
 import be.re.io.DevNullOutputStream;
 import be.re.io.StreamConnector;
 import be.re.net.BasicUser;
+import be.re.net.DownloadSink;
 import be.re.net.HTTPClient;
 import be.re.net.HTTPProtocolException;
 import be.re.net.Headers;
 import be.re.net.ProtocolException;
 import be.re.net.User;
 import be.re.util.Array;
+import be.re.util.Threads;
 import be.re.xml.ExpandedName;
 import be.re.xml.sax.DevNullErrorHandler;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -21,11 +24,16 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.XMLEventReader;
@@ -1272,6 +1280,44 @@ public class Client
 
 
 
+  private static Document
+  createSyncCollectionBody
+  (
+    String		syncToken,
+    boolean		infinite,
+    ExpandedName[]	properties
+  )
+  {
+    Document	result = Util.createDAVDocument("sync-collection");
+
+    appendTextElement
+    (
+      result.getDocumentElement(),
+      "sync-token",
+      syncToken != null ? syncToken : ""
+    );
+
+    appendTextElement
+    (
+      result.getDocumentElement(),
+      "sync-level",
+      infinite ? "infinite" : "1"
+    );
+
+    Node	prop =
+      result.getDocumentElement().
+        appendChild(result.createElementNS(Constants.DAV_URI, "prop"));
+
+    for (int i = 0; i < properties.length; ++i)
+    {
+      appendForeign(prop, properties[i]);
+    }
+
+    return result;
+  }
+
+
+
   /**
    * Deletes a resource.
    * @param url the resource.
@@ -4238,6 +4284,45 @@ public class Client
 
 
 
+  /**
+   * Returns the changes in a collection since the state that is identified by
+   * a synchronization token. The report is specified in
+   * <a href="http://www.ietf.org/rfc/rfc6578.txt">RFC 6578</a>.
+   * @param url the collection.
+   * @param syncToken the token from a previous report or <code>null</code> to
+   * get all the members of the collection.
+   * @param infinite if set to <code>true</code> the changes in all the
+   * descendants are reported, otherwise only those of the immediate members.
+   * @param properties the requested properties of the changed members.
+   * @return The response should be closed after consumption. Use
+   * <code>be.re.webdav.Util.readSyncCollection()</code> to process it. A
+   * token the server doesn't accept anymore yields the status code 403 or
+   * 409 with the <code>DAV:valid-sync-token</code> precondition.
+   * @see Util#readSyncCollection(URL, Client.Response, Util.PropertyHandler,
+   * Util.ReportMultistatus)
+   */
+
+  public Response
+  syncCollection
+  (
+    URL			url,
+    String		syncToken,
+    boolean		infinite,
+    ExpandedName[]	properties
+  ) throws IOException, ProtocolException
+  {
+    return
+      report
+      (
+        url,
+        createSyncCollectionBody(syncToken, infinite, properties),
+        null,
+        "0"
+      );
+  }
+
+
+
   private static void
   testDepth(String depth)
   {
@@ -4569,6 +4654,440 @@ public class Client
 
 
 
+  /**
+   * Runs the operations of a client on a pool of worker threads and returns
+   * a future for their results. The number of operations that run at the same
+   * time for one URL authority is limited, and the others wait in line
+   * without taking a thread. This way a few threads can keep many operations
+   * in flight.
+   *
+   * A response with a body counts for the limit until it is closed, because
+   * it holds on to its connection. An operation that is cancelled before it
+   * starts is dropped. When it is cancelled while it runs, the response it
+   * produces is closed, which returns the connection to the pool.
+   * @author Werner Donn\u00e9
+   */
+
+  public static class Async
+
+  {
+
+    private Map<String,Integer>			active =
+      new HashMap<String,Integer>();
+    private Client				client;
+    private ExecutorService			executor;
+    private int					perHost;
+    private Map<String,LinkedList<Runnable>>	ready =
+      new HashMap<String,LinkedList<Runnable>>();
+
+
+
+    /**
+     * @param threads the number of worker threads. It doesn't apply when
+     * <code>Threads</code> produces virtual threads.
+     * @param perHost the maximum number of operations that run at the same
+     * time for a URL authority.
+     */
+
+    public
+    Async(Client client, int threads, int perHost)
+    {
+      if (threads < 1 || perHost < 1)
+      {
+        throw new IllegalArgumentException("The limits should be at least 1.");
+      }
+
+      this.client = client;
+      this.perHost = perHost;
+
+      executor = Threads.newPool(threads, "be.re.webdav.Client", true);
+    }
+
+
+
+    public CompletableFuture<Response>
+    copy
+    (
+      final URL		from,
+      final URL		to,
+      final String	label,
+      final boolean	overwrite,
+      final String	depth
+    )
+    {
+      return
+        submit
+        (
+          from,
+          new Callable<Response>()
+          {
+            public Response
+            call() throws Exception
+            {
+              return client.copy(from, to, label, overwrite, depth);
+            }
+          }
+        );
+    }
+
+
+
+    public CompletableFuture<Void>
+    delete(final URL url)
+    {
+      return
+        submit
+        (
+          url,
+          new Callable<Void>()
+          {
+            public Void
+            call() throws Exception
+            {
+              client.delete(url);
+
+              return null;
+            }
+          }
+        );
+    }
+
+
+
+    private static void
+    discard(Object result)
+    {
+      if (result instanceof Response)
+      {
+        try
+        {
+          ((Response) result).close();
+        }
+
+        catch (IOException e)
+        {
+        }
+      }
+    }
+
+
+
+    private synchronized void
+    dispatch(String key, Runnable task)
+    {
+      Integer	count = active.get(key);
+
+      if (count == null || count.intValue() < perHost)
+      {
+        active.put(key, count == null ? 1 : (count.intValue() + 1));
+        executor.execute(task);
+      }
+      else
+      {
+        LinkedList<Runnable>	queue = ready.get(key);
+
+        if (queue == null)
+        {
+          queue = new LinkedList<Runnable>();
+          ready.put(key, queue);
+        }
+
+        queue.add(task);
+      }
+    }
+
+
+
+    private synchronized void
+    finished(String key)
+    {
+      LinkedList<Runnable>	queue = ready.get(key);
+
+      if (queue != null && queue.size() > 0)
+      {
+        executor.execute(queue.removeFirst());
+      }
+      else
+      {
+        int	count = active.get(key).intValue() - 1;
+
+        if (count == 0)
+        {
+          active.remove(key);
+          ready.remove(key);
+        }
+        else
+        {
+          active.put(key, count);
+        }
+      }
+    }
+
+
+
+    public CompletableFuture<Response>
+    get(final URL url)
+    {
+      return
+        submit
+        (
+          url,
+          new Callable<Response>()
+          {
+            public Response
+            call() throws Exception
+            {
+              return client.get(url);
+            }
+          }
+        );
+    }
+
+
+
+    public Client
+    getClient()
+    {
+      return client;
+    }
+
+
+
+    /**
+     * The body of a response keeps its connection, so the operation counts
+     * for the limit until the body is closed.
+     */
+
+    private void
+    holdUntilClosed(final String key, Response response)
+    {
+      response.body =
+        new FilterInputStream(response.body)
+        {
+          private boolean	closed;
+
+          public void
+          close() throws IOException
+          {
+            if (!closed)
+            {
+              closed = true;
+
+              try
+              {
+                super.close();
+              }
+
+              finally
+              {
+                finished(key);
+              }
+            }
+          }
+        };
+    }
+
+
+
+    public CompletableFuture<Void>
+    move(final URL from, final URL to, final boolean overwrite)
+    {
+      return
+        submit
+        (
+          from,
+          new Callable<Void>()
+          {
+            public Void
+            call() throws Exception
+            {
+              client.move(from, to, overwrite);
+
+              return null;
+            }
+          }
+        );
+    }
+
+
+
+    public CompletableFuture<Response>
+    operation
+    (
+      final String	method,
+      final URL		url,
+      final Headers	headersIn,
+      final InputStream	body
+    )
+    {
+      return
+        submit
+        (
+          url,
+          new Callable<Response>()
+          {
+            public Response
+            call() throws Exception
+            {
+              return client.operation(method, url, headersIn, body);
+            }
+          }
+        );
+    }
+
+
+
+    public CompletableFuture<Response>
+    propfindSpecific
+    (
+      final URL			url,
+      final ExpandedName[]	properties,
+      final String		depth
+    )
+    {
+      return
+        submit
+        (
+          url,
+          new Callable<Response>()
+          {
+            public Response
+            call() throws Exception
+            {
+              return client.propfindSpecific(url, properties, depth);
+            }
+          }
+        );
+    }
+
+
+
+    public CompletableFuture<Response>
+    proppatch(final URL url, final Document document)
+    {
+      return
+        submit
+        (
+          url,
+          new Callable<Response>()
+          {
+            public Response
+            call() throws Exception
+            {
+              return client.proppatch(url, document);
+            }
+          }
+        );
+    }
+
+
+
+    public CompletableFuture<Response>
+    put
+    (
+      final URL		url,
+      final InputStream	in,
+      final String	mimeType,
+      final String	language
+    )
+    {
+      return
+        submit
+        (
+          url,
+          new Callable<Response>()
+          {
+            public Response
+            call() throws Exception
+            {
+              return client.put(url, in, mimeType, language);
+            }
+          }
+        );
+    }
+
+
+
+    /**
+     * Stops the worker threads after the submitted operations have been
+     * executed.
+     */
+
+    public void
+    shutdown()
+    {
+      executor.shutdown();
+    }
+
+
+
+    /**
+     * Runs any operation of the client. The URL tells which limit applies.
+     */
+
+    public <T> CompletableFuture<T>
+    submit(URL url, final Callable<T> operation)
+    {
+      final String		key =
+        url.getProtocol() + "://" + url.getAuthority();
+      final CompletableFuture<T>	result = new CompletableFuture<T>();
+
+      dispatch
+      (
+        key,
+        new Runnable()
+        {
+          public void
+          run()
+          {
+            boolean	holding = false;
+
+            try
+            {
+              if (!result.isDone()) // Otherwise it was cancelled.
+              {
+                T	value = operation.call();
+
+                if
+                (
+                  value instanceof Response		&&
+                  ((Response) value).body != null
+                )
+                {
+                  holdUntilClosed(key, (Response) value);
+                  holding = true;
+                }
+
+                if (!result.complete(value))
+                {
+                  discard(value);
+                }
+              }
+            }
+
+            catch (Throwable e)
+            {
+              result.completeExceptionally(e);
+            }
+
+            finally
+            {
+              if (!holding)
+              {
+                finished(key);
+              }
+            }
+          }
+        }
+      );
+
+      return result;
+    }
+
+  } // Async
+
+
+
   /**
    * An interface to handle a stream of audit trail events.
    * @author Werner Donn\u00e9
@@ -4925,6 +5444,37 @@ public class Client
 
 
 
+    /**
+     * Writes the response body in a sink and closes the body. It can be called
+     * once. Subsequent calls to this method as well as the
+     * <code>getBody</code> method will return 0 and <code>null</code>
+     * respectively. The sink is not closed.
+     * @return the number of bytes that were written in the sink.
+     */
+
+    public long
+    download(DownloadSink sink) throws IOException
+    {
+      InputStream	in = getBody();
+
+      if (in == null)
+      {
+        return 0;
+      }
+
+      try
+      {
+        return HTTPClient.download(in, sink);
+      }
+
+      finally
+      {
+        in.close();
+      }
+    }
+
+
+
     protected void
     finalize() throws Throwable
     {
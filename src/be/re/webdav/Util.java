@@ -2128,6 +2128,98 @@ public class Util
 
 
 
+  /**
+   * Processes the response of a <code>DAV:sync-collection</code> report. The
+   * entries with changed members are passed to the handler. The entries with
+   * another status code, such as 404 for removed members and 507 for a
+   * truncated result, are passed to <code>report</code>.
+   * @param url the request URL.
+   * @param response the multistatus response.
+   * @param handler the handler for the properties of changed members.
+   * @param report the handler for the other entries.
+   * @return The new synchronization token or <code>null</code> if the response
+   * didn't have one.
+   * @see Client#syncCollection(URL, String, boolean, ExpandedName[])
+   */
+
+  public static String
+  readSyncCollection
+  (
+    URL			url,
+    Client.Response	response,
+    PropertyHandler	handler,
+    ReportMultistatus	report
+  ) throws IOException
+  {
+    InputStream	body = response.getBody();
+
+    if (body == null)
+    {
+      return null;
+    }
+
+    String		result = null;
+    XMLEventReader	reader = null;
+
+    try
+    {
+      boolean	stop = false;
+
+      reader = inputFactory.createXMLEventReader(body);
+
+      while (!stop && reader.hasNext())
+      {
+        XMLEvent	event = reader.nextEvent();
+
+        if (isStartDavElement(event, "response"))
+        {
+          Element	element =
+            be.re.xml.stax.Util.accumulate(reader, event.asStartElement());
+          int		statusCode = getStatusCode(element);
+
+          stop =
+            statusCode == -1 || statusCode == 200 ?
+              !readPropertyList(url, element, handler, false) :
+              !reportResponse(url, element, report);
+        }
+        else
+        {
+          if (isStartDavElement(event, "sync-token"))
+          {
+            result = reader.getElementText().trim();
+          }
+        }
+      }
+    }
+
+    catch (Exception e)
+    {
+      throw new be.re.io.IOException(e);
+    }
+
+    finally
+    {
+      if (reader != null)
+      {
+        try
+        {
+          reader.close();
+        }
+
+        catch (Exception e)
+        {
+          throw new be.re.io.IOException(e);
+        }
+      }
+
+      body.close();
+    }
+
+    return result;
+  }
+
+
+
   /**
    * Processes the <code>DAV:href</code> element in the entries in a multistatus
    * response.
@@ -8,6 +8,7 @@ public interface Constants
 
 {
 
+  public static final String	CS_URI = "http://calendarserver.org/ns/";
   public static final String	DAV_URI = be.re.webdav.Constants.DAV_URI;
   public static final String	URI = "urn:be-re:dav-cmd";
 
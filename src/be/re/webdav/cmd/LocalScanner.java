@@ -0,0 +1,314 @@
+package be.re.webdav.cmd;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+
+
+/**
+ * Lists local directories together with the attributes of their members. The
+ * type, size, modification time and file key of a member are obtained in one
+ * call while the directory is read, so that a walk doesn't have to ask for
+ * them one by one.
+ *
+ * When there is more than one thread the subdirectories of a listed directory
+ * are scanned ahead on a fork/join pool, while the caller is still busy with
+ * the directory itself. The number of listings that wait to be taken is
+ * bounded. A listing is taken only once.
+ * @author Werner Donn\u00e9
+ */
+
+public class LocalScanner
+
+{
+
+  private static final int	MAX_PENDING = 1024;
+
+  private FileFilter						descend;
+  private Map<String,ForkJoinTask<SortedMap<String,BasicFileAttributes>>>
+    pending =
+      new ConcurrentHashMap
+        <String,ForkJoinTask<SortedMap<String,BasicFileAttributes>>>();
+  private ForkJoinPool						pool;
+
+
+
+  /**
+   * @param threads the number of threads that scan ahead. With one thread
+   * nothing is scanned ahead.
+   * @param descend tells which subdirectories may be scanned ahead. It may be
+   * <code>null</code>.
+   */
+
+  public
+  LocalScanner(int threads, FileFilter descend)
+  {
+    if (threads < 1)
+    {
+      throw new IllegalArgumentException("The number of threads should be " +
+        "at least 1.");
+    }
+
+    this.descend = descend;
+    pool = threads > 1 ? new ForkJoinPool(threads) : null;
+  }
+
+
+
+  /**
+   * Drops the listings that were not taken and stops the threads.
+   */
+
+  public void
+  close()
+  {
+    for (ForkJoinTask<?> task: pending.values())
+    {
+      task.cancel(false);
+    }
+
+    pending.clear();
+
+    if (pool != null)
+    {
+      pool.shutdownNow();
+    }
+  }
+
+
+
+  private void
+  fanOut(Path directory, SortedMap<String,BasicFileAttributes> listing)
+  {
+    for (Map.Entry<String,BasicFileAttributes> entry: listing.entrySet())
+    {
+      if (pending.size() >= MAX_PENDING)
+      {
+        return; // The rest is scanned when it is taken.
+      }
+
+      Path	path = directory.resolve(entry.getKey());
+
+      if
+      (
+        entry.getValue() != null					&&
+        entry.getValue().isDirectory()				&&
+        (descend == null || descend.accept(path.toFile()))
+      )
+      {
+        ForkJoinTask<SortedMap<String,BasicFileAttributes>>	task =
+          new Scan(path);
+
+        pending.put(path.toString(), task);
+
+        if (ForkJoinTask.inForkJoinPool())
+        {
+          task.fork();
+        }
+        else
+        {
+          pool.execute(task);
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Makes sure the directory is read again the next time it is listed,
+   * because something in it has been changed.
+   */
+
+  public void
+  invalidate(File directory)
+  {
+    ForkJoinTask<?>	task =
+      pending.remove(directory.getAbsoluteFile().toPath().toString());
+
+    if (task != null)
+    {
+      task.cancel(false);
+    }
+  }
+
+
+
+  /**
+   * Returns the members of the directory with their attributes. The names are
+   * in Unicode NFC and sorted. The attributes of a member that couldn't be
+   * read, such as a dangling symbolic link, are <code>null</code>.
+   * @return The listing or <code>null</code> if the directory couldn't be
+   * read.
+   */
+
+  public SortedMap<String,BasicFileAttributes>
+  list(File directory)
+  {
+    Path							path =
+      directory.getAbsoluteFile().toPath();
+    ForkJoinTask<SortedMap<String,BasicFileAttributes>>	task =
+      pending.remove(path.toString());
+
+    if (task != null)
+    {
+      try
+      {
+        SortedMap<String,BasicFileAttributes>	result = task.join();
+
+        if (result != null)
+        {
+          return result;
+        }
+      }
+
+      catch (RuntimeException e)
+      {
+        // Cancelled, so it is read again.
+      }
+    }
+
+    SortedMap<String,BasicFileAttributes>	result = scan(path);
+
+    if (result != null && pool != null)
+    {
+      fanOut(path, result);
+    }
+
+    return result;
+  }
+
+
+
+  private static String
+  normalize(String s)
+  {
+    return Normalizer.normalize(s, Normalizer.Form.NFC);
+  }
+
+
+
+  /**
+   * Returns the attributes of a file that is not in a listing.
+   * @return The attributes or <code>null</code> if the file doesn't exist.
+   */
+
+  public static BasicFileAttributes
+  readAttributes(File file)
+  {
+    try
+    {
+      return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+
+
+
+  private static SortedMap<String,BasicFileAttributes>
+  scan(Path directory)
+  {
+    DirectoryStream<Path>	stream = null;
+
+    try
+    {
+      SortedMap<String,BasicFileAttributes>	result =
+        new TreeMap<String,BasicFileAttributes>();
+
+      stream = Files.newDirectoryStream(directory);
+
+      for (Path path: stream)
+      {
+        BasicFileAttributes	attributes = null;
+
+        try
+        {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+
+        catch (IOException e)
+        {
+          // The file has gone or it is a dangling link.
+        }
+
+        result.put(normalize(path.getFileName().toString()), attributes);
+      }
+
+      return result;
+    }
+
+    catch (Exception e)
+    {
+      return null;
+    }
+
+    finally
+    {
+      if (stream != null)
+      {
+        try
+        {
+          stream.close();
+        }
+
+        catch (IOException e)
+        {
+        }
+      }
+    }
+  }
+
+
+
+  private class Scan
+    extends RecursiveTask<SortedMap<String,BasicFileAttributes>>
+
+  {
+
+    private static final long	serialVersionUID = 1L;
+
+    private Path	directory;
+
+
+
+    private
+    Scan(Path directory)
+    {
+      this.directory = directory;
+    }
+
+
+
+    protected SortedMap<String,BasicFileAttributes>
+    compute()
+    {
+      SortedMap<String,BasicFileAttributes>	result = scan(directory);
+
+      if (result != null && !isCancelled())
+      {
+        fanOut(directory, result);
+      }
+
+      return result;
+    }
+
+  } // Scan
+
+} // LocalScanner
@@ -0,0 +1,340 @@
+package be.re.webdav.cmd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+
+
+/**
+ * Tracks the changes in a local directory tree with a
+ * <code>WatchService</code>. It collects the directories in which something
+ * happened, so that a synchronization cycle only has to walk those. Events
+ * are only drained when the watcher is polled, so an idle tree costs nothing.
+ * A burst of events for the same directory results in one dirty entry.
+ *
+ * A complete rescan is requested for the first cycle, when events were lost
+ * and periodically as a safety net.
+ * @author Werner Donn\u00e9
+ */
+
+public class LocalWatcher
+
+{
+
+  private SortedSet<String>	dirty = new TreeSet<String>();
+  private boolean		full = true;
+  private Map<WatchKey,Path>	keys = new HashMap<WatchKey,Path>();
+  private long			lastEvent = -1;
+  private Map<String,Long>	lastEvents = new HashMap<String,Long>();
+  private long			lastRescan = -1;
+  private long			quietPeriod;
+  private long			rescanInterval;
+  private Path			root;
+  private WatchService		service;
+
+
+
+  /**
+   * @param root the directory tree that is watched.
+   * @param quietPeriod the time in milliseconds without events after which a
+   * file is considered to be stable.
+   * @param rescanInterval the time in milliseconds after which a complete
+   * rescan is requested.
+   */
+
+  public
+  LocalWatcher(File root, long quietPeriod, long rescanInterval)
+    throws IOException
+  {
+    this.root = root.getAbsoluteFile().toPath();
+    this.quietPeriod = quietPeriod;
+    this.rescanInterval = rescanInterval;
+    service = FileSystems.getDefault().newWatchService();
+
+    try
+    {
+      register(this.root);
+    }
+
+    catch (IOException e)
+    {
+      service.close();
+      throw e;
+    }
+  }
+
+
+
+  public synchronized void
+  close() throws IOException
+  {
+    keys.clear();
+    service.close();
+  }
+
+
+
+  private String
+  directoryKey(Path directory)
+  {
+    String	result = relative(directory);
+
+    return result.length() == 0 ? "" : (result + "/");
+  }
+
+
+
+  /**
+   * Tells if there has been no event for the file during the quiet period.
+   */
+
+  public synchronized boolean
+  isQuiet(File file)
+  {
+    poll();
+
+    Long	time = lastEvents.get(relative(file.getAbsoluteFile().toPath()));
+
+    return
+      time == null ||
+        System.currentTimeMillis() - time.longValue() >= quietPeriod;
+  }
+
+
+
+  /**
+   * Returns <code>true</code> when there are changes and the last event is
+   * older than the quiet period, or when a complete rescan is due.
+   */
+
+  public synchronized boolean
+  isReady()
+  {
+    poll();
+
+    long	now = System.currentTimeMillis();
+
+    return
+      full || now - lastRescan >= rescanInterval ||
+        (dirty.size() > 0 && now - lastEvent >= quietPeriod);
+  }
+
+
+
+  /**
+   * Makes sure the directory is walked again in the next cycle.
+   */
+
+  public synchronized void
+  markDirty(File directory)
+  {
+    dirty.add(directoryKey(directory.getAbsoluteFile().toPath()));
+  }
+
+
+
+  /**
+   * Requests a complete rescan for the next cycle.
+   */
+
+  public synchronized void
+  markFull()
+  {
+    full = true;
+  }
+
+
+
+  private static String
+  normalize(String s)
+  {
+    return Normalizer.normalize(s, Normalizer.Form.NFC);
+  }
+
+
+
+  /**
+   * Drains the pending events without blocking.
+   */
+
+  public synchronized void
+  poll()
+  {
+    WatchKey	key;
+
+    try
+    {
+      while ((key = service.poll()) != null)
+      {
+        Path	directory = keys.get(key);
+
+        if (directory != null)
+        {
+          for (WatchEvent<?> event: key.pollEvents())
+          {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+              full = true;
+            }
+            else
+            {
+              Path	path = directory.resolve((Path) event.context());
+
+              record(directory, path);
+
+              if
+              (
+                event.kind() == StandardWatchEventKinds.ENTRY_CREATE	&&
+                Files.isDirectory(path)
+              )
+              {
+                try
+                {
+                  register(path);
+                }
+
+                catch (IOException e)
+                {
+                  full = true;
+                }
+              }
+            }
+          }
+        }
+
+        if (!key.reset())
+        {
+          keys.remove(key);
+        }
+      }
+    }
+
+    catch (Exception e)
+    {
+      // The service has been closed.
+
+      full = true;
+    }
+  }
+
+
+
+  private void
+  record(Path directory, Path path)
+  {
+    long	now = System.currentTimeMillis();
+
+    lastEvent = now;
+    lastEvents.put(relative(path), now);
+
+    dirty.add(directoryKey(directory));
+  }
+
+
+
+  private void
+  register(Path directory) throws IOException
+  {
+    Files.walkFileTree
+    (
+      directory,
+      new SimpleFileVisitor<Path>()
+      {
+        public FileVisitResult
+        preVisitDirectory(Path dir, BasicFileAttributes attributes)
+          throws IOException
+        {
+          keys.put
+          (
+            dir.register
+            (
+              service,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE,
+              StandardWatchEventKinds.ENTRY_MODIFY
+            ),
+            dir
+          );
+
+          dirty.add(directoryKey(dir));
+            // Things may have been created before the registration.
+
+          return FileVisitResult.CONTINUE;
+        }
+
+        public FileVisitResult
+        visitFileFailed(Path file, IOException e)
+        {
+          return FileVisitResult.CONTINUE;
+        }
+      }
+    );
+  }
+
+
+
+  private String
+  relative(Path path)
+  {
+    return
+      normalize
+      (
+        root.relativize(path).toString().replace(File.separatorChar, '/')
+      );
+  }
+
+
+
+  /**
+   * Returns the directories that have changed since the previous call and
+   * resets the collection. The paths are relative to the root, end with a
+   * slash and are in Unicode NFC. The root itself is the empty string.
+   * @return The sorted paths or <code>null</code> if a complete rescan should
+   * be done.
+   */
+
+  public synchronized SortedSet<String>
+  takeDirty()
+  {
+    poll();
+
+    long		now = System.currentTimeMillis();
+    SortedSet<String>	result =
+      full || now - lastRescan >= rescanInterval ? null : dirty;
+
+    if (result == null)
+    {
+      full = false;
+      lastRescan = now;
+    }
+
+    dirty = new TreeSet<String>();
+
+    for (Iterator<Long> i = lastEvents.values().iterator(); i.hasNext();)
+    {
+      if (now - i.next().longValue() >= quietPeriod)
+      {
+        i.remove();
+      }
+    }
+
+    return result;
+  }
+
+} // LocalWatcher
@@ -0,0 +1,308 @@
+package be.re.webdav.cmd;
+
+import java.io.File;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+
+/**
+ * The operations a synchronization has decided upon while walking the trees.
+ * Transfers and remote deletions carry the task that performs them, so they
+ * can be executed after the walk in another order. In a dry run nothing is
+ * executed and the plan also contains the operations that are otherwise done
+ * during the walk.
+ *
+ * Tasks are not serialized, so a plan that has been read back can only be
+ * inspected.
+ * @author Werner Donn\u00e9
+ */
+
+public class Plan implements Serializable
+
+{
+
+  public static enum Type	{CONFLICT, DELETE, DOWNLOAD, MKCOL, RENAME, UPLOAD};
+
+  private static final long[]	COST_CLASSES =
+    new long[]{1, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+    // The upper bounds of the byte estimates of a class.
+  private static final long	serialVersionUID = 1L;
+
+  private File			local;
+  private List<Operation>	operations = new ArrayList<Operation>();
+  private URL			remote;
+
+
+
+  /**
+   * @param local the local directory the paths are relative to.
+   * @param remote the URL the paths are relative to.
+   */
+
+  public
+  Plan(File local, URL remote)
+  {
+    this.local = local;
+    this.remote = remote;
+  }
+
+
+
+  public synchronized void
+  add(Operation operation)
+  {
+    operations.add(operation);
+  }
+
+
+
+  private static int
+  costClass(Operation operation)
+  {
+    for (int i = 0; i < COST_CLASSES.length; ++i)
+    {
+      if (operation.bytes != -1 && operation.bytes < COST_CLASSES[i])
+      {
+        return i;
+      }
+    }
+
+    return COST_CLASSES.length; // Big or unknown.
+  }
+
+
+
+  private static String
+  directory(String path)
+  {
+    String	s =
+      path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+
+    return s.lastIndexOf('/') != -1 ? s.substring(0, s.lastIndexOf('/')) : "";
+  }
+
+
+
+  /**
+   * Returns the sum of the known byte estimates.
+   */
+
+  public synchronized long
+  getBytes()
+  {
+    long	result = 0;
+
+    for (Operation operation: operations)
+    {
+      if (operation.bytes != -1)
+      {
+        result += operation.bytes;
+      }
+    }
+
+    return result;
+  }
+
+
+
+  public File
+  getLocal()
+  {
+    return local;
+  }
+
+
+
+  public synchronized List<Operation>
+  getOperations()
+  {
+    return new ArrayList<Operation>(operations);
+  }
+
+
+
+  public URL
+  getRemote()
+  {
+    return remote;
+  }
+
+
+
+  public synchronized int
+  size()
+  {
+    return operations.size();
+  }
+
+
+
+  /**
+   * Orders the operations by cost, so that cheap ones don't wait behind big
+   * transfers. The estimates are first divided in a few classes. Within a
+   * class the operations of the same directory are kept together and the
+   * smallest go first. The order is stable otherwise.
+   */
+
+  public synchronized void
+  sort()
+  {
+    Collections.sort
+    (
+      operations,
+      new Comparator<Operation>()
+      {
+        public int
+        compare(Operation o1, Operation o2)
+        {
+          int	result = costClass(o1) - costClass(o2);
+
+          if (result == 0)
+          {
+            result = directory(o1.path).compareTo(directory(o2.path));
+          }
+
+          if (result == 0 && o1.bytes != o2.bytes)
+          {
+            result =
+              o1.bytes == -1 ?
+                1 : (o2.bytes == -1 ? -1 : (o1.bytes < o2.bytes ? -1 : 1));
+          }
+
+          return result;
+        }
+      }
+    );
+  }
+
+
+
+  public String
+  toString()
+  {
+    StringBuilder	result = new StringBuilder();
+
+    for (Operation operation: getOperations())
+    {
+      result.append(operation.toString()).append('\n');
+    }
+
+    return result.toString();
+  }
+
+
+
+  public static class Operation implements Serializable
+
+  {
+
+    private static final long	serialVersionUID = 1L;
+
+    private long				bytes;
+    private boolean				local;
+    private String				path;
+    private String				target;
+    private transient TransferScheduler.Task	task;
+    private Type				type;
+
+
+
+    /**
+     * @param type the kind of operation.
+     * @param path the path relative to the synchronized trees. Collections
+     * have a trailing slash.
+     * @param target the new path of a rename. Otherwise it is
+     * <code>null</code>.
+     * @param local tells if the operation acts on the local tree.
+     * @param bytes the estimated number of bytes that are transferred or -1
+     * if it is not known.
+     * @param task the task that performs the operation or <code>null</code>
+     * if it is only reported.
+     */
+
+    public
+    Operation
+    (
+      Type			type,
+      String			path,
+      String			target,
+      boolean			local,
+      long			bytes,
+      TransferScheduler.Task	task
+    )
+    {
+      this.type = type;
+      this.path = path;
+      this.target = target;
+      this.local = local;
+      this.bytes = bytes;
+      this.task = task;
+    }
+
+
+
+    public long
+    getBytes()
+    {
+      return bytes;
+    }
+
+
+
+    public boolean
+    getLocal()
+    {
+      return local;
+    }
+
+
+
+    public String
+    getPath()
+    {
+      return path;
+    }
+
+
+
+    public String
+    getTarget()
+    {
+      return target;
+    }
+
+
+
+    public TransferScheduler.Task
+    getTask()
+    {
+      return task;
+    }
+
+
+
+    public Type
+    getType()
+    {
+      return type;
+    }
+
+
+
+    public String
+    toString()
+    {
+      return
+        type.toString() + (local ? " local " : " remote ") + path +
+          (target != null ? (" -> " + target) : "") +
+          (bytes != -1 ? (" " + String.valueOf(bytes)) : "");
+    }
+
+  } // Operation
+
+} // Plan
@@ -0,0 +1,308 @@
+package be.re.webdav.cmd;
+
+import be.re.io.RateLimiter;
+import be.re.net.HTTPClient;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+
+/**
+ * Sets the traffic limits of <code>HTTPClient</code> according to the time of
+ * the day. An entry has a kind, a rate and optionally a period, which is a
+ * range of hours such as "8-18". A range can go past midnight, as in "18-8",
+ * and "0-24" is the whole day.
+ * For each kind the first entry of which the period contains the current time
+ * applies. An entry without a period always applies. When no entry applies
+ * there is no limit. Kinds without entries are left alone.
+ *
+ * The limits are shared by all synchronizations in the JVM. Once started the
+ * schedule is checked every minute.
+ * @author Werner Donn\u00e9
+ */
+
+public class RateSchedule
+
+{
+
+  public static enum Kind	{DOWN, REQUESTS, UP};
+
+  private static final long	CHECK_INTERVAL = 60000;
+
+  private List<Entry>	entries = new ArrayList<Entry>();
+  private Timer		timer;
+
+
+
+  /**
+   * Adds an entry.
+   * @param kind the traffic that is limited.
+   * @param spec the rate, optionally followed by "@" and a period. For bytes
+   * the rate may have the suffix "K", "M" or "G". A rate of 0 means there is
+   * no limit.
+   */
+
+  public synchronized void
+  add(Kind kind, String spec)
+  {
+    Entry	entry = new Entry();
+    int		at = spec.indexOf('@');
+    String	rate = at != -1 ? spec.substring(0, at) : spec;
+
+    entry.kind = kind;
+    entry.rate = parseRate(rate, kind != Kind.REQUESTS);
+
+    if (at != -1)
+    {
+      String[]	period = spec.substring(at + 1).split("-");
+
+      if (period.length != 2)
+      {
+        throw new IllegalArgumentException("Bad period in " + spec);
+      }
+
+      entry.from = parseHour(period[0]);
+      entry.to = parseHour(period[1]);
+    }
+
+    entries.add(entry);
+  }
+
+
+
+  /**
+   * Sets the limits that apply now.
+   */
+
+  public void
+  apply()
+  {
+    Calendar	calendar = Calendar.getInstance();
+
+    apply(calendar.get(Calendar.HOUR_OF_DAY));
+  }
+
+
+
+  private synchronized void
+  apply(int hour)
+  {
+    for (Kind kind: Kind.values())
+    {
+      if (hasKind(kind))
+      {
+        setRate(kind, getRate(kind, hour));
+      }
+    }
+  }
+
+
+
+  private long
+  getRate(Kind kind, int hour)
+  {
+    for (Entry entry: entries)
+    {
+      if (entry.kind == kind && entry.contains(hour))
+      {
+        return entry.rate;
+      }
+    }
+
+    return 0;
+  }
+
+
+
+  private boolean
+  hasKind(Kind kind)
+  {
+    for (Entry entry: entries)
+    {
+      if (entry.kind == kind)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+
+  public synchronized boolean
+  isEmpty()
+  {
+    return entries.isEmpty();
+  }
+
+
+
+  private static int
+  parseHour(String s)
+  {
+    try
+    {
+      int	result = Integer.parseInt(s.trim());
+
+      if (result >= 0 && result <= 24)
+      {
+        return result % 24;
+      }
+    }
+
+    catch (NumberFormatException e)
+    {
+    }
+
+    throw new IllegalArgumentException("Bad hour " + s);
+  }
+
+
+
+  private static long
+  parseRate(String s, boolean bytes)
+  {
+    String	number = s.trim().toUpperCase();
+    long	unit = 1;
+
+    if (bytes && number.length() > 0)
+    {
+      switch (number.charAt(number.length() - 1))
+      {
+        case 'K': unit = 1024L; break;
+        case 'M': unit = 1024L * 1024; break;
+        case 'G': unit = 1024L * 1024 * 1024; break;
+      }
+
+      if (unit > 1)
+      {
+        number = number.substring(0, number.length() - 1);
+      }
+    }
+
+    try
+    {
+      long	result = Long.parseLong(number);
+
+      if (result >= 0)
+      {
+        return result * unit;
+      }
+    }
+
+    catch (NumberFormatException e)
+    {
+    }
+
+    throw new IllegalArgumentException("Bad rate " + s);
+  }
+
+
+
+  private static void
+  setRate(Kind kind, long rate)
+  {
+    switch (kind)
+    {
+      case DOWN:
+        setRate(HTTPClient.getDownloadLimiter(), rate);
+        break;
+
+      case REQUESTS:
+        if (HTTPClient.getRequestRate() != rate)
+        {
+          HTTPClient.setRequestRate(rate);
+        }
+        break;
+
+      case UP:
+        setRate(HTTPClient.getUploadLimiter(), rate);
+        break;
+    }
+  }
+
+
+
+  private static void
+  setRate(RateLimiter limiter, long rate)
+  {
+    if (limiter.getRate() != rate)
+    {
+      limiter.setRate(rate);
+    }
+  }
+
+
+
+  /**
+   * Applies the limits now and checks them every minute in a daemon thread.
+   */
+
+  public synchronized void
+  start()
+  {
+    apply();
+
+    if (timer == null)
+    {
+      timer = new Timer("rate schedule", true);
+
+      timer.schedule
+      (
+        new TimerTask()
+        {
+          public void
+          run()
+          {
+            apply();
+          }
+        },
+        CHECK_INTERVAL,
+        CHECK_INTERVAL
+      );
+    }
+  }
+
+
+
+  public synchronized void
+  stop()
+  {
+    if (timer != null)
+    {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+
+
+  private static class Entry
+
+  {
+
+    private int		from = -1;
+    private Kind	kind;
+    private long	rate;
+    private int		to = -1;
+
+
+
+    private boolean
+    contains(int hour)
+    {
+      return
+        from == -1 ||
+          (
+            from < to ?
+              (hour >= from && hour < to) : (hour >= from || hour < to)
+          );
+    }
+
+  } // Entry
+
+} // RateSchedule
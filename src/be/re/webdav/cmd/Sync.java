@@ -4,7 +4,8 @@ import be.re.gui.util.ConfirmationDialog;
 import be.re.gui.util.InteractiveWriter;
 import be.re.gui.util.YesOrNo;
 import be.re.io.ReaderWriterConnector;
-import be.re.io.StreamConnector;
+import be.re.net.ConnectionStatistics;
+import be.re.net.DownloadSink;
 import be.re.net.HTTPClient;
 import be.re.net.Headers;
 import be.re.net.ProtocolException;
@@ -18,33 +19,55 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.text.MessageFormat;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -64,8 +87,14 @@ import org.w3c.dom.Node;
  * Synchronisation can be done from the server to a local directory, the other
  * way around or both ways.
  *
- * File or server resource moves are not detected and WebDAV bindings are not
+ * Server resource moves are detected through their ETag. A local move is
+ * detected through the file key of the file, such as the inode, and is
+ * replayed on the server with a <code>MOVE</code>. WebDAV bindings are not
  * supported.
+ *
+ * The walk through the trees produces a plan. The transfers and remote
+ * deletions in it are executed after the walk, ordered by their estimated
+ * cost. A dry run only reports the plan.
  * @author Werner Donn\u00e9
  */
 
@@ -75,28 +104,108 @@ public class Sync
 
   public static enum ConflictType	{UPDATE, DELETE_LOCAL, DELETE_REMOTE};
   public static enum Direction		{BIDIRECTIONAL, DOWN, UP};
-
-  private static final Pattern	VERSIONED_FILENAME =
+  public static enum Fsync		{FILE, NEVER, RUN};
+
+  private static final Pattern		PARTIAL_FILENAME =
+    Pattern.compile("\\.(.+)\\.([0-9a-f]{16}|0)\\.syncpart");
+    // The names getPartialFile makes.
+  private static final long		QUIET_PERIOD = 2000;
+  private static final long		RESCAN_INTERVAL = 3600000;
+  private static final int		SCAN_THREADS = 4;
+  private static final ExpandedName[]	TREE_PROPERTIES =
+    new ExpandedName[]
+    {
+      new ExpandedName(Constants.DAV_URI, "getcontentlength"),
+      new ExpandedName(Constants.DAV_URI, "getcontenttype"),
+      new ExpandedName(Constants.DAV_URI, "getetag"),
+      new ExpandedName(Constants.DAV_URI, "getlastmodified"),
+      new ExpandedName(Constants.DAV_URI, "resourcetype"),
+      new ExpandedName(Constants.CS_URI, "getctag")
+    };
+  private static final String[][]	UPGRADES =
+    {
+      {
+        "SYNCHRONIZATION",
+        "SYNC_TOKEN",
+        "alter table synchronization " +
+          "add column sync_token character varying(2048)"
+      },
+      {
+        "REMOTE_MEMBER",
+        null,
+        "create table remote_member " +
+          "(" +
+            "content_type character varying(256), " +
+            "etag character varying(2048), " +
+            "last_modified bigint not null, " +
+            "local character varying(2048) not null, " +
+            "path character varying(2048) not null, " +
+            "remote character varying(2048) not null, " +
+            "primary key (local, remote, path)" +
+          ")"
+      },
+      {
+        "REMOTE_MEMBER",
+        "MARKER",
+        "alter table remote_member add column marker character varying(2048)"
+      },
+      {
+        "FILE",
+        "DIGEST",
+        "alter table file add column digest character varying(64)"
+      },
+      {
+        "FILE",
+        "CONTENT_LENGTH",
+        "alter table file add column content_length bigint"
+      },
+      {
+        "REMOTE_PATH",
+        "DIGEST",
+        "alter table remote_path add column digest character varying(64)"
+      },
+      {
+        "FILE",
+        "FILE_KEY",
+        "alter table file add column file_key character varying(256)"
+      },
+      {
+        "REMOTE_MEMBER",
+        "CONTENT_LENGTH",
+        "alter table remote_member add column content_length bigint"
+      }
+    };
+  private static final Pattern		VERSIONED_FILENAME =
     Pattern.compile(".*\\.\\d+");
 
   private Client	client = new Client();
+  private int		concurrency = 1;
+  private int		cycles;
   private boolean	daemonMode;
   private Node		defaultAcl;
   private File		database;
   private Direction	direction;
+  private boolean	dryRun;
   private Pattern[]	exclusionPatterns = new Pattern[0];
   private String[]	exclusions = new String[0];
   private Filter	filter;
+  private Fsync		fsync = Fsync.NEVER;
   private String	hiddenFolderName;
   private boolean	interactive;
-  private Set<Listener>	listeners = new HashSet<Listener>();
+  private Set<Listener>	listeners = new CopyOnWriteArraySet<Listener>();
   private File		local;
   private boolean	noRecursion;
+  private int		prewarm;
+  private Record	previousTree;
   private boolean	recursive;
   private int		renameDepth = 10;
   private boolean	renameFiles;
   private URL		remote;
+  private TransferScheduler	scheduler;
+  private boolean	skipUnchanged;
+  private boolean	streaming;
   private File		trash;
+  private LocalWatcher	watcher;
 
 
 
@@ -108,22 +217,32 @@ public class Sync
 
 
 
+  /**
+   * The database is created when it is first used, which a dry run doesn't
+   * do.
+   */
+
   public
   Sync(File database)
   {
     this.database = database;
+  }
+
 
-    if (!database.exists())
+
+  private static boolean
+  addLimit(RateSchedule limits, String kind, String spec)
+  {
+    try
     {
-      try
-      {
-        createDatabase(database);
-      }
+      limits.add(RateSchedule.Kind.valueOf(kind.toUpperCase()), spec);
 
-      catch (Exception e)
-      {
-        throw new RuntimeException(e);
-      }
+      return true;
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      return false;
     }
   }
 
@@ -174,6 +293,7 @@ public class Sync
       else
       {
         entry.path = record.path;
+        entry.contentLength = record.contentLength;
         entry.contentType = record.contentType;
         entry.etag = record.etag;
         entry.lastModified = record.lastModified;
@@ -185,13 +305,79 @@ public class Sync
 
 
 
+  /**
+   * Waits until the timeout has passed or until the local changes of one of
+   * the synchronizations in daemon mode have settled.
+   */
+
+  private static void
+  awaitChanges(Collection<Sync> syncs, long timeout)
+  {
+    long	end = System.currentTimeMillis() + timeout;
+
+    for (long now = System.currentTimeMillis(); now < end;)
+    {
+      for (Sync sync: syncs)
+      {
+        if (sync.watcher != null && sync.watcher.isReady())
+        {
+          return;
+        }
+      }
+
+      try
+      {
+        Thread.sleep(Math.min(QUIET_PERIOD / 4, end - now));
+      }
+
+      catch (InterruptedException e)
+      {
+        return;
+      }
+
+      now = System.currentTimeMillis();
+    }
+  }
+
+
+
+  /**
+   * Builds the remote tree from a stored listing. The exclusions are applied
+   * here, because the listing is stored unfiltered.
+   */
+
+  private Record
+  buildTree(Map<String,Record> members, Context context)
+  {
+    Record	result = new Record();
+
+    result.path = remote.getFile();
+
+    for (Record record: members.values())
+    {
+      if (record.path.length() > 0) // Not the collection itself.
+      {
+        if (record.etag != null)
+        {
+          context.etagToPath.put(record.etag, record.path);
+        }
+
+        addToTree(result, record);
+      }
+    }
+
+    return result;
+  }
+
+
+
   private boolean
   checkConflicts(Record record, File member, Context context)
     throws IOException, SQLException
   {
     URL		url = getUrl(context.remote, record.path);
     boolean	result =
-      context.direction == Direction.DOWN && member.isDirectory() ?
+      context.direction == Direction.DOWN && isDirectory(member, context) ?
         deleteConflict(member) :
         (
           context.direction == Direction.UP && record.path.endsWith("/") ?
@@ -212,11 +398,13 @@ public class Sync
                   context.lastSynchronization == -1 ? // First synchronization.
                     (
                       context.direction == Direction.DOWN &&
-                        member.lastModified() > record.lastModified ?
+                        getModificationTime(member, context) >
+                          record.lastModified ?
                         updateConflict(member) :
                         (
                           context.direction == Direction.UP &&
-                            record.lastModified > member.lastModified() ?
+                            record.lastModified >
+                              getModificationTime(member, context) ?
                             updateConflict(url) : true
                         )
                     ) : true
@@ -252,8 +440,10 @@ public class Sync
     boolean	result =
       context.direction == Direction.BIDIRECTIONAL &&
         (
-          (record.path.endsWith("/") && !member.isDirectory()) ||
-            (!record.path.endsWith("/") && member.isDirectory())
+          (
+            record.path.endsWith("/") && !isDirectory(member, context)
+          ) ||
+            (!record.path.endsWith("/") && isDirectory(member, context))
         ) ? updateConflict(member, url) : true;
 
     if (!result)
@@ -303,6 +493,7 @@ public class Sync
   {
     if
     (
+      !dryRun						&&
       context.checkedOut != null			&&
       !context.checkedOut.contains(url.toString())
     )
@@ -343,6 +534,51 @@ public class Sync
 
 
 
+  /**
+   * Adds the directories of which the remote members differ between the two
+   * trees.
+   */
+
+  private static void
+  collectRemoteChanges
+  (
+    Record	previous,
+    Record	current,
+    String	path,
+    Set<String>	dirty
+  )
+  {
+    if (!previous.members.keySet().equals(current.members.keySet()))
+    {
+      dirty.add(path);
+    }
+
+    for (Map.Entry<String,Record> entry: current.members.entrySet())
+    {
+      Record	after = entry.getValue();
+      Record	before = previous.members.get(entry.getKey());
+
+      if (before != null)
+      {
+        if
+        (
+          before.lastModified != after.lastModified			||
+          !(before.etag == null ?
+            after.etag == null : before.etag.equals(after.etag))	||
+          !(before.path == null ?
+            after.path == null : before.path.equals(after.path))
+        )
+        {
+          dirty.add(path);
+        }
+
+        collectRemoteChanges(before, after, path + entry.getKey() + "/", dirty);
+      }
+    }
+  }
+
+
+
   private static void
   copyLastSynchronization(File file, Context context)
     throws IOException, SQLException
@@ -437,30 +673,11 @@ public class Sync
   private static void
   createDatabase(File database) throws IOException, SQLException
   {
-    Connection		connection = getConnection(database, true);
-    PreparedStatement	statement = null;
+    Connection	connection = getConnection(database, true, false);
 
     try
     {
-      StringWriter	out = new StringWriter();
-
-      ReaderWriterConnector.copy
-      (
-        new InputStreamReader(Sync.class.getResourceAsStream("res/syncdb.sql")),
-        out
-      );
-
-      String[]	statements = be.re.util.Util.split(out.toString(), ";");
-
-      for (int i = 0; i < statements.length; ++i)
-      {
-        if (statements[i].trim().length() > 0)
-        {
-          statement = connection.prepareStatement(statements[i]);
-          statement.execute();
-          release(statement);
-        }
-      }
+      createTables(connection);
     }
 
     finally
@@ -471,15 +688,29 @@ public class Sync
 
 
 
-  private static String
-  createLocalPath(File file, File directory)
+  private static void
+  createTables(Connection connection) throws IOException, SQLException
   {
-    return
-      (
-        file.getParentFile() != null &&
-          !file.getParentFile().equals(directory) ?
-          createLocalPath(file.getParentFile(), directory) : ""
-      ) + file.getName() + (file.isDirectory() ? "/" : "");
+    PreparedStatement	statement = null;
+    StringWriter	out = new StringWriter();
+
+    ReaderWriterConnector.copy
+    (
+      new InputStreamReader(Sync.class.getResourceAsStream("res/syncdb.sql")),
+      out
+    );
+
+    String[]	statements = be.re.util.Util.split(out.toString(), ";");
+
+    for (int i = 0; i < statements.length; ++i)
+    {
+      if (statements[i].trim().length() > 0)
+      {
+        statement = connection.prepareStatement(statements[i]);
+        statement.execute();
+        release(statement);
+      }
+    }
   }
 
 
@@ -514,7 +745,7 @@ public class Sync
   {
     if
     (
-      !member.isDirectory()		&&
+      !isDirectory(member, context)	&&
       hasChanged(member, context)	&&
       !deleteConflict(member)
     )
@@ -534,6 +765,20 @@ public class Sync
       return false;
     }
 
+    if (dryRun)
+    {
+      plan
+      (
+        Plan.Type.DELETE,
+        getPath(context.local, member, isDirectory(member, context)),
+        null,
+        true,
+        context
+      );
+
+      return true;
+    }
+
     for (Listener listener: listeners)
     {
       listener.startDelete(member);
@@ -615,9 +860,10 @@ public class Sync
 
 
   private boolean
-  delete(Record record, Context context) throws IOException, SQLException
+  delete(final Record record, final Context context)
+    throws IOException, SQLException
   {
-    URL	url = getUrl(context.remote, record.path);
+    final URL	url = getUrl(context.remote, record.path);
 
     if
     (
@@ -641,6 +887,29 @@ public class Sync
       return false;
     }
 
+    return
+      schedule
+      (
+        Plan.Type.DELETE,
+        record.path,
+        0,
+        context,
+        new TransferScheduler.Task()
+        {
+          public boolean
+          run() throws Exception
+          {
+            return deleteRemote(record, url, context);
+          }
+        }
+      );
+  }
+
+
+
+  private boolean
+  deleteRemote(Record record, URL url, Context context) throws IOException
+  {
     for (Listener listener: listeners)
     {
       listener.startDelete(url);
@@ -689,12 +958,12 @@ public class Sync
   private static void
   deleteAll(String table, Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
-
-    try
+    synchronized (context)
     {
-      statement =
-        context.connection.prepareStatement
+      context.discard(table);
+
+      PreparedStatement	statement =
+        context.prepare
         (
           "delete from " + table + " where local = ? and remote = ?"
         );
@@ -703,11 +972,6 @@ public class Sync
       statement.setString(2, context.remote.toString());
       statement.execute();
     }
-
-    finally
-    {
-      release(statement);
-    }
   }
 
 
@@ -731,6 +995,11 @@ public class Sync
   private boolean
   deleteConflict(File file)
   {
+    if (dryRun)
+    {
+      return false; // Nobody is asked in a dry run.
+    }
+
     boolean	objection = false;
 
     for (Listener listener: listeners)
@@ -746,6 +1015,11 @@ public class Sync
   private boolean
   deleteConflict(URL url)
   {
+    if (dryRun)
+    {
+      return false; // Nobody is asked in a dry run.
+    }
+
     boolean	objection = false;
 
     for (Listener listener: listeners)
@@ -758,6 +1032,27 @@ public class Sync
 
 
 
+  /**
+   * Performs the remote deletions that were not resolved as a local move.
+   */
+
+  private boolean
+  deleteDisappeared(Context context) throws IOException, SQLException
+  {
+    boolean	updates = false;
+
+    for (Record record: new ArrayList<Record>(context.disappeared.values()))
+    {
+      updates |= delete(record, context);
+    }
+
+    context.disappeared.clear();
+
+    return updates;
+  }
+
+
+
   public static void
   deleteFilename(URL remote, File local, File file, File database)
     throws IOException
@@ -787,27 +1082,30 @@ public class Sync
   private static void
   deleteFilename(File file, Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
+    context.write(context.files, file.getAbsolutePath(), null);
+  }
 
-    try
-    {
-      statement =
-        context.connection.prepareStatement
-        (
-          "delete from file where filename = ? and local = ? and " +
-            "remote = ?"
-        );
 
-      statement.setString(1, file.getAbsolutePath());
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
-      statement.execute();
-    }
 
-    finally
+  /**
+   * A local file that has disappeared may show up elsewhere in the tree later
+   * in the walk, in which case it is moved on the server instead.
+   */
+
+  private boolean
+  deleteOrDefer(Record record, File member, Context context)
+    throws IOException, SQLException
+  {
+    Row	row = context.read(context.files, member.getAbsolutePath());
+
+    if (row != null && row.fileKey != null)
     {
-      release(statement);
+      context.disappeared.put(record.path, record);
+
+      return false;
     }
+
+    return delete(record, context);
   }
 
 
@@ -815,27 +1113,7 @@ public class Sync
   private static void
   deleteRemotePath(String path, Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
-
-    try
-    {
-      statement =
-        context.connection.prepareStatement
-        (
-          "delete from remote_path where path = ? and local = ? and " +
-            "remote = ?"
-        );
-
-      statement.setString(1, path);
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
-      statement.execute();
-    }
-
-    finally
-    {
-      release(statement);
-    }
+    context.write(context.paths, path, null);
   }
 
 
@@ -891,16 +1169,16 @@ public class Sync
 
 
   private boolean
-  exchange(Record record, File member, Context context)
+  exchange(final Record record, final File member, final Context context)
     throws IOException, SQLException
   {
-    URL	url = getUrl(context.remote, record.path);
+    final URL	url = getUrl(context.remote, record.path);
 
     if
     (
       (
         context.direction == Direction.DOWN			&&
-        member.isDirectory()
+        isDirectory(member, context)
       )								||
       (
         (
@@ -914,17 +1192,33 @@ public class Sync
       )
     )
     {
-      boolean	result = get(url, member);
-
-      if (result)
-      {
-        member.setLastModified(record.lastModified);
-      }
+      return
+        schedule
+        (
+          Plan.Type.DOWNLOAD,
+          record.path,
+          record.contentLength,
+          context,
+          new TransferScheduler.Task()
+          {
+            public boolean
+            run() throws Exception
+            {
+              String[]	digest = new String[1];
+              boolean	result =
+                get(url, member, record.etag, digest, context);
 
-      writeFilename(member, context);
-      writeRemotePath(record, context);
+              if (result)
+              {
+                member.setLastModified(record.lastModified);
+                writeFilename(member, digest[0], context);
+                writeRemotePath(record, digest[0], context);
+              }
 
-      return result;
+              return result;
+            }
+          }
+        );
     }
 
     if
@@ -945,22 +1239,40 @@ public class Sync
       )
     )
     {
-      long[]	time = new long[1];
-      boolean	result = put(url, member, record.contentType, time, context);
-
-      record.lastModified =
-        Math.max
+      return
+        schedule
         (
-          cutMillis(time[0]),
-          cutMillis(be.re.net.HTTPClient.Util.getLastModified(url))
-        ) + 2000;
-        // Add a margin in case the update on the server is not visible
-        // immediately.
+          Plan.Type.UPLOAD,
+          record.path,
+          getLength(member, context),
+          context,
+          new TransferScheduler.Task()
+          {
+            public boolean
+            run() throws Exception
+            {
+              String[]	digest = new String[1];
+              Headers	headersOut = new Headers();
+              boolean	result =
+                put(url, member, record, headersOut, digest, context);
 
-      writeFilename(member, context);
-      writeRemotePath(record, context);
+              if (result)
+              {
+                writeUploaded
+                (
+                  record.path,
+                  url,
+                  member,
+                  headersOut,
+                  digest[0],
+                  context
+                );
+              }
 
-      return result;
+              return result;
+            }
+          }
+        );
     }
 
     return false;
@@ -968,21 +1280,82 @@ public class Sync
 
 
 
-  private boolean
-  get(URL url, File member) throws IOException
+  /**
+   * Executes the operations of the plan that have a task. The plan is first
+   * ordered by cost and per directory. With a scheduler the operations run
+   * concurrently. The state is committed each time another directory is
+   * reached, as in the walk.
+   */
+
+  private static boolean
+  execute(Plan plan, Context context) throws IOException, SQLException
   {
-    boolean	create = false;
+    String	directory = null;
+    boolean	result = false;
 
-    if (member.isDirectory())
+    plan.sort();
+
+    if (context.prewarm > 0 && context.batch != null && hasTasks(plan))
     {
-      create = true;
+      // The connections of the walk may have expired in the meantime.
 
-      for (Listener listener: listeners)
+      HTTPClient.prewarm(context.remote, context.prewarm);
+    }
+
+    for (Plan.Operation operation: plan.getOperations())
+    {
+      String	path = operation.getPath();
+      String	parent =
+        path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+
+      if (directory != null && !directory.equals(parent))
       {
-        listener.startDelete(member);
+        context.checkpoint();
       }
 
-      if (hiddenFolderName != null)
+      directory = parent;
+
+      if (operation.getTask() != null)
+      {
+        result |= submit(path, context, operation.getTask());
+      }
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Downloads into a partial file next to the member, which replaces it when
+   * the download is complete. When the resource has a strong ETag the partial
+   * file is kept after a failure and the next attempt only asks for the rest
+   * with <code>Range</code> and <code>If-Range</code>.
+   * @param digest the digest of the content is returned in the first element.
+   */
+
+  private boolean
+  get
+  (
+    URL		url,
+    File	member,
+    String	etag,
+    String[]	digest,
+    Context	context
+  ) throws IOException
+  {
+    boolean	create = false;
+
+    if (member.isDirectory())
+    {
+      create = true;
+
+      for (Listener listener: listeners)
+      {
+        listener.startDelete(member);
+      }
+
+      if (hiddenFolderName != null)
       {
         moveToHiddenFolder(member, hiddenFolderName, renameDepth);
       }
@@ -1013,14 +1386,37 @@ public class Sync
 
     try
     {
-      if (renameFiles && renameDepth > 0 && member.exists())
+      File	partial = getPartialFile(member, etag);
+      boolean	resumable = isStrong(etag);
+      long	offset = resumable ? partial.length() : 0;
+      Headers	headersIn = new Headers();
+
+      if (offset > 0)
       {
-        moveToHigherVersion(member, renameDepth);
+        headersIn.set("Range", "bytes=" + String.valueOf(offset) + "-");
+        headersIn.set("If-Range", etag);
+        headersIn.set("Accept-Encoding", "identity");
+          // A range of a compressed body wouldn't fit the partial file.
       }
 
-      response = client.get(url, new String[0], new String[0], null);
+      response = client.operation(HTTPClient.GET, url, headersIn, null);
 
-      if (response.getStatusCode() != 200)
+      if (response.getStatusCode() == 416) // The partial file was complete.
+      {
+        response.close();
+        response = client.operation(HTTPClient.GET, url, new Headers(), null);
+      }
+
+      if
+      (
+        response.getStatusCode() != 200				&&
+        (
+          response.getStatusCode() != 206				||
+          response.getHeaders().get("Content-Range").length == 0	||
+          !response.getHeaders().get("Content-Range")[0].
+            startsWith("bytes " + String.valueOf(offset) + "-")
+        )
+      )
       {
         for (Listener listener: listeners)
         {
@@ -1030,7 +1426,59 @@ public class Sync
         return false;
       }
 
-      StreamConnector.copy(response.getBody(), new FileOutputStream(member));
+      boolean		complete = false;
+      MessageDigest	md = newDigest();
+
+      if (response.getStatusCode() == 206)
+      {
+        getDigest(partial, md); // Only the rest passes by.
+      }
+
+      DownloadSink	sink =
+        new DownloadSink
+        (
+          partial,
+          response.getStatusCode() == 206,
+          resumable ? -1 : getDownloadLength(response.getHeaders()),
+            // The length of a partial file tells where to resume after a
+            // crash, so it may not be given its final length up front.
+          md
+        );
+
+      try
+      {
+        response.download(sink);
+
+        if (context.fsync == Fsync.FILE)
+        {
+          sink.force();
+        }
+
+        complete = true;
+      }
+
+      finally
+      {
+        sink.close();
+
+        if (!complete && !resumable)
+        {
+          partial.delete();
+        }
+      }
+
+      if (renameFiles && renameDepth > 0 && member.exists())
+      {
+        moveToHigherVersion(member, renameDepth);
+      }
+
+      replace(partial, member);
+      digest[0] = toHex(md.digest());
+
+      if (context.fsync == Fsync.RUN)
+      {
+        context.downloaded.add(member);
+      }
 
       return true;
     }
@@ -1068,6 +1516,58 @@ public class Sync
 
 
 
+  /**
+   * Forces the files to the storage device and forgets them.
+   */
+
+  private static void
+  force(List<File> files) throws IOException
+  {
+    File[]	all;
+
+    synchronized (files)
+    {
+      all = files.toArray(new File[0]);
+      files.clear();
+    }
+
+    for (File file: all)
+    {
+      if (file.exists())
+      {
+        RandomAccessFile	f = new RandomAccessFile(file, "rw");
+
+        try
+        {
+          f.getChannel().force(true);
+        }
+
+        finally
+        {
+          f.close();
+        }
+      }
+    }
+  }
+
+
+
+  private static void
+  forgetETag(Record record, Context context)
+  {
+    if
+    (
+      record != null					&&
+      record.etag != null				&&
+      record.path.equals(context.etagToPath.get(record.etag))
+    )
+    {
+      context.etagToPath.remove(record.etag);
+    }
+  }
+
+
+
   private Node
   getAcl(URL url) throws IOException
   {
@@ -1118,25 +1618,52 @@ public class Sync
 
 
 
+  /**
+   * Returns the attributes that were obtained when the parent directory was
+   * listed. Other files are asked directly.
+   * @return The attributes or <code>null</code> if the file doesn't exist.
+   */
+
+  private static BasicFileAttributes
+  getAttributes(File file, Context context)
+  {
+    BasicFileAttributes	result =
+      context.attributes.get(file.getAbsolutePath());
+
+    return result != null ? result : LocalScanner.readAttributes(file);
+  }
+
+
+
   private static Connection
   getConnection(File database) throws IOException, SQLException
   {
-    return getConnection(database, false);
+    return getConnection(database, false, false);
   }
 
 
 
-  private static Connection
-  getConnection(File database, boolean create) throws IOException, SQLException
+  /**
+   * Synchronized, because jobs can run concurrently and the database may have
+   * to be created or upgraded first.
+   * @param dryRun the connection doesn't commit automatically, so that an
+   * upgrade is rolled back with the rest of the dry run.
+   */
+
+  private static synchronized Connection
+  getConnection(File database, boolean create, boolean dryRun)
+    throws IOException, SQLException
   {
     if (!database.exists() && !create)
     {
       createDatabase(database);
     }
 
+    Connection	connection = null;
+
     try
     {
-      return
+      connection =
         DriverManager.getConnection
         (
           "jdbc:derby:" + database.getAbsolutePath() +
@@ -1149,7 +1676,17 @@ public class Sync
       //System.exit(0); // Locked by another instance of DAVbox.
     }
 
-    return null;
+    if (connection != null && !create)
+    {
+      if (dryRun)
+      {
+        connection.setAutoCommit(false);
+      }
+
+      upgradeDatabase(connection);
+    }
+
+    return connection;
   }
 
 
@@ -1174,6 +1711,18 @@ public class Sync
 
 
 
+  /**
+   * The default is 1.
+   */
+
+  public int
+  getConcurrency()
+  {
+    return concurrency;
+  }
+
+
+
   /**
    * The default is <code>false</code>.
    */
@@ -1202,6 +1751,33 @@ public class Sync
 
 
 
+  /**
+   * Updates the digest with the content of the file.
+   * @return The digest.
+   */
+
+  private static MessageDigest
+  getDigest(File file, MessageDigest digest) throws IOException
+  {
+    InputStream	in = new DigestInputStream(new FileInputStream(file), digest);
+
+    try
+    {
+      byte[]	buffer = new byte[0x10000];
+
+      while (in.read(buffer) != -1);
+    }
+
+    finally
+    {
+      in.close();
+    }
+
+    return digest;
+  }
+
+
+
   public Direction
   getDirection()
   {
@@ -1210,6 +1786,14 @@ public class Sync
 
 
 
+  public boolean
+  getDryRun()
+  {
+    return dryRun;
+  }
+
+
+
   private static File
   getDirectory()
   {
@@ -1226,37 +1810,100 @@ public class Sync
 
 
   private static String
-  getETagFromRemotePath(String path, Context context) throws SQLException
+  getDirectoryPath(File directory, File local)
   {
-    PreparedStatement	statement = null;
-    ResultSet		resultSet = null;
-
-    try
-    {
-      statement =
-        context.connection.prepareStatement
+    return
+      directory.equals(local) ?
+        "" :
         (
-          "select etag from remote_path " +
-            "where path = ? and local = ? and remote = ? and etag != 'none'"
+          getDirectoryPath(directory.getParentFile(), local) +
+            directory.getName() + "/"
         );
+  }
+
+
+
+  /**
+   * In daemon mode only the directories with local events and those of which
+   * the remote members differ from the previous cycle are walked.
+   * @return The directory paths or <code>null</code> if everything should be
+   * walked.
+   */
+
+  private SortedSet<String>
+  getDirtyPaths(Record tree)
+  {
+    if (watcher == null)
+    {
+      return null;
+    }
 
-      statement.setString(1, path);
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
-      resultSet = statement.executeQuery();
+    SortedSet<String>	result = watcher.takeDirty();
 
-      return resultSet.next() ? resultSet.getString("etag") : null;
+    if (streaming)
+    {
+      return null; // No remote tree is kept to compare with.
     }
 
-    finally
+    if (result != null)
+    {
+      if (previousTree != null)
+      {
+        collectRemoteChanges(previousTree, tree, "", result);
+      }
+      else
+      {
+        result = null;
+      }
+    }
+
+    previousTree = tree;
+
+    return result;
+  }
+
+
+
+  /**
+   * Returns the number of bytes the response body will put in the file or -1
+   * if it isn't known. The length of a compressed body is not that of the
+   * file.
+   */
+
+  private static long
+  getDownloadLength(Headers headers)
+  {
+    String[]	encoding = headers.get("Content-Encoding");
+    String[]	length = headers.get("Content-Length");
+
+    try
+    {
+      return
+        length.length > 0					&&
+          (
+            encoding.length == 0				||
+            encoding[0].equalsIgnoreCase("identity")
+          ) ? Long.parseLong(length[0]) : -1;
+    }
+
+    catch (NumberFormatException e)
     {
-      release(resultSet);
-      release(statement);
+      return -1;
     }
   }
 
 
 
+  private static String
+  getETagFromRemotePath(String path, Context context) throws SQLException
+  {
+    Row	row = context.read(context.paths, path);
+
+    return row != null && !"none".equals(row.etag) ? row.etag : null;
+  }
+
+
+
   public String[]
   getExclusions()
   {
@@ -1289,69 +1936,153 @@ public class Sync
 
 
 
-  private static long
-  getFileLastModified(File file, Context context) throws SQLException
-  {
-    PreparedStatement	statement = null;
-    ResultSet		resultSet = null;
+  /**
+   * Returns the file key, such as the inode, which survives a move within the
+   * file system.
+   * @return The key or <code>null</code> if the file system doesn't have
+   * them.
+   */
 
+  private static String
+  getFileKey(File file)
+  {
     try
     {
-      statement =
-        context.connection.prepareStatement
-        (
-          "select last_modified from file " +
-            "where filename = ? and local = ? and remote = ?"
-        );
+      Object	key =
+        Files.readAttributes(file.toPath(), BasicFileAttributes.class).
+          fileKey();
 
-      statement.setString(1, file.getAbsolutePath());
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
-      resultSet = statement.executeQuery();
-
-      return resultSet.next() ? resultSet.getLong("last_modified") : -1;
+      return key != null ? key.toString() : null;
     }
 
-    finally
+    catch (IOException e)
     {
-      release(resultSet);
-      release(statement);
+      return null;
     }
   }
 
 
 
-  private String[]
-  getFiles(File directory, Context context) throws IOException
+  private static String
+  getFileKey(File file, Context context)
   {
-    File[]		files = directory.listFiles();
-    List<String>	result = new ArrayList<String>();
-
-    for (int i = 0; i < files.length; ++i)
-    {
-      if (!shouldExcludePath("/" + createLocalPath(files[i], context.local)))
-      {
-        result.add(files[i].getName());
-      }
-    }
+    BasicFileAttributes	attributes = getAttributes(file, context);
 
-    return result.toArray(new String[0]);
+    return
+      attributes != null && attributes.fileKey() != null ?
+        attributes.fileKey().toString() : null;
   }
 
 
 
-  public Filter
-  getFilter()
+  private static long
+  getFileLastModified(File file, Context context) throws SQLException
   {
-    return filter;
+    Row	row = context.read(context.files, file.getAbsolutePath());
+
+    return row != null ? row.lastModified : -1;
   }
 
 
 
-  private static Headers
-  getHeaders(URL url) throws IOException
+  /**
+   * When the run downloads, partial downloads that don't belong to the
+   * current version of a remote member are removed. In an upload run they
+   * are left alone, like the other excluded files. The attributes of the
+   * other members are kept in the context for the rest of the walk through
+   * the directory.
+   * @return The sorted names in Unicode NFC or <code>null</code> if the
+   * directory couldn't be read.
+   */
+
+  private String[]
+  getFiles(File directory, Record record, Context context) throws IOException
   {
-    Headers	headers = new Headers();
+    SortedMap<String,BasicFileAttributes>	files =
+      context.scanner.list(directory);
+
+    if (files == null)
+    {
+      return null;
+    }
+
+    List<String>	result = new ArrayList<String>();
+
+    for (Map.Entry<String,BasicFileAttributes> entry: files.entrySet())
+    {
+      File	file = new File(directory, entry.getKey());
+      Matcher	partial = PARTIAL_FILENAME.matcher(entry.getKey());
+
+      if (partial.matches() && context.direction != Direction.UP)
+      {
+        Record	rec = record.members.get(partial.group(1));
+
+        if
+        (
+          rec == null							||
+          !file.equals
+          (
+            getPartialFile(new File(directory, partial.group(1)), rec.etag)
+          )
+        )
+        {
+          if (!dryRun)
+          {
+            file.delete();
+          }
+        }
+      }
+      else
+      {
+        if
+        (
+          !shouldExcludePath
+          (
+            "/" +
+              getPath
+              (
+                context.local,
+                file,
+                entry.getValue() != null && entry.getValue().isDirectory()
+              )
+          )
+        )
+        {
+          result.add(entry.getKey());
+
+          if (entry.getValue() != null)
+          {
+            context.attributes.put(file.getAbsolutePath(), entry.getValue());
+          }
+        }
+      }
+    }
+
+    return result.toArray(new String[0]);
+  }
+
+
+
+  public Filter
+  getFilter()
+  {
+    return filter;
+  }
+
+
+
+  public Fsync
+  getFsync()
+  {
+    return fsync;
+  }
+
+
+
+  private static Headers
+  getHeaders(URL url) throws IOException
+  {
+    Headers	headers = new Headers();
 
     HTTPClient.request
     (
@@ -1389,6 +2120,20 @@ public class Sync
 
 
 
+  /**
+   * Returns the size of the file like <code>File.length</code>.
+   */
+
+  private static long
+  getLength(File file, Context context)
+  {
+    BasicFileAttributes	attributes = getAttributes(file, context);
+
+    return attributes != null ? attributes.size() : 0;
+  }
+
+
+
   public File
   getLocal()
   {
@@ -1397,6 +2142,20 @@ public class Sync
 
 
 
+  /**
+   * Returns the modification time like <code>File.lastModified</code>.
+   */
+
+  private static long
+  getModificationTime(File file, Context context)
+  {
+    BasicFileAttributes	attributes = getAttributes(file, context);
+
+    return attributes != null ? attributes.lastModifiedTime().toMillis() : 0;
+  }
+
+
+
   public boolean
   getNoRecursion()
   {
@@ -1413,15 +2172,62 @@ public class Sync
 
 
 
+  /**
+   * The name of a partial file contains a digest of the ETag of the resource,
+   * so that a download is only resumed for the same version.
+   */
+
+  private static File
+  getPartialFile(File member, String etag)
+  {
+    String	digest = "0";
+
+    if (isStrong(etag))
+    {
+      try
+      {
+        digest =
+          toHex(newDigest().digest(etag.getBytes("UTF-8"))).substring(0, 16);
+      }
+
+      catch (UnsupportedEncodingException e)
+      {
+        throw new RuntimeException(e); // Would be a bug.
+      }
+    }
+
+    return
+      new File
+      (
+        member.getParentFile(),
+        "." + member.getName() + "." + digest + ".syncpart"
+      );
+  }
+
+
+
   private static String
   getPath(File localDirectory, File member)
+  {
+    return getPath(localDirectory, member, member.isDirectory());
+  }
+
+
+
+  /**
+   * The ancestors of the member are directories, so only the member itself
+   * has to be asked.
+   */
+
+  private static String
+  getPath(File localDirectory, File member, boolean directory)
   {
     return
       localDirectory.equals(member) ?
         "" :
         (
-          getPath(localDirectory, member.getParentFile()) + member.getName() +
-            (member.isDirectory() ? "/" : "")
+          getPath(localDirectory, member.getParentFile(), true) +
+            member.getName() + (directory ? "/" : "")
         );
   }
 
@@ -1469,6 +2275,14 @@ public class Sync
 
 
 
+  public int
+  getPrewarm()
+  {
+    return prewarm;
+  }
+
+
+
   public boolean
   getRecursive()
   {
@@ -1493,62 +2307,108 @@ public class Sync
       return null;
     }
 
-    PreparedStatement	statement = null;
-    ResultSet		resultSet = null;
+    return context.findPath(etag);
+  }
 
-    try
+
+
+  private static long
+  getRemotePathLastModified(String path, Context context) throws SQLException
+  {
+    Row	row = context.read(context.paths, path);
+
+    return row != null ? row.lastModified : -1;
+  }
+
+
+
+  /**
+   * When the server supports the <code>DAV:sync-collection</code> report the
+   * remote tree is kept in the database together with the synchronization
+   * token. Only the changes since the previous run are then fetched. The
+   * complete tree is fetched when there is no token or when the server
+   * doesn't accept it anymore.
+   *
+   * With <code>skipUnchanged</code> the tree is also kept. A Depth 0 probe
+   * then tells if anything has changed at all and during a Depth 1 crawl the
+   * subtrees of which the change marker is the same are taken from the
+   * stored tree.
+   */
+
+  private Record
+  getRemoteTree(Context context) throws IOException, SQLException
+  {
+    String			token = getSyncToken(context);
+    TreeMap<String,Record>	stored =
+      token != null || skipUnchanged ? readMembers(context) : null;
+
+    if (token != null)
     {
-      statement =
-        context.connection.prepareStatement
-        (
-          "select path from remote_path " +
-            "where etag = ? and local = ? and remote = ?"
-        );
+      Record	result = buildTree(stored, context);
 
-      statement.setString(1, etag);
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
-      resultSet = statement.executeQuery();
+      context.members = stored;
+
+      if (patchTree(result, token, context))
+      {
+        context.members = null;
+
+        return result;
+      }
 
-      return resultSet.next() ? resultSet.getString("path") : null;
+      context.etagToPath.clear();
+      stored = null; // It may have been patched partly.
     }
 
-    finally
+    String[]	probe = probeCollection(remote);
+    Record	root = stored != null ? stored.get("") : null;
+
+    if
+    (
+      skipUnchanged					&&
+      probe[1] != null					&&
+      root != null					&&
+      probe[1].equals(root.marker)
+    )
     {
-      release(resultSet);
-      release(statement);
+      return buildTree(stored, context);
     }
-  }
-
 
+    context.cached = skipUnchanged ? stored : null;
+    context.members =
+      probe[0] != null || skipUnchanged ? new TreeMap<String,Record>() : null;
 
-  private static long
-  getRemotePathLastModified(String path, Context context) throws SQLException
-  {
-    PreparedStatement	statement = null;
-    ResultSet		resultSet = null;
+    if (context.members != null)
+    {
+      root = new Record();
+      root.path = "";
+      root.marker = probe[1];
+      context.members.put(root.path, root);
+    }
 
     try
     {
-      statement =
-        context.connection.prepareStatement
+      Record	result = getTree(remote, null, context);
+
+      if (result != null && (context.members != null || token != null))
+      {
+        writeMembers
         (
-          "select last_modified from remote_path " +
-            "where path = ? and local = ? and remote = ?"
+          context.members != null ?
+            context.members : new HashMap<String,Record>(),
+          true,
+          context
         );
 
-      statement.setString(1, path);
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
-      resultSet = statement.executeQuery();
+        setSyncToken(probe[0], context);
+      }
 
-      return resultSet.next() ? resultSet.getLong("last_modified") : -1;
+      return result;
     }
 
     finally
     {
-      release(resultSet);
-      release(statement);
+      context.cached = null;
+      context.members = null;
     }
   }
 
@@ -1622,33 +2482,90 @@ public class Sync
   private static long
   getSynchronization(Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
-    ResultSet		resultSet = null;
-
-    try
+    synchronized (context)
     {
-      statement =
-        context.connection.prepareStatement
+      PreparedStatement	statement =
+        context.prepare
         (
           "select occurred from synchronization where local = ? and remote = ?"
         );
+      ResultSet		resultSet = null;
 
       statement.setString(1, context.local.getAbsolutePath());
       statement.setString(2, context.remote.toString());
-      resultSet = statement.executeQuery();
 
-      return resultSet.next() ? resultSet.getLong("occurred") : -1;
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        return resultSet.next() ? resultSet.getLong("occurred") : -1;
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
     }
+  }
 
-    finally
+
+
+  private static String
+  getSyncToken(Context context) throws SQLException
+  {
+    synchronized (context)
     {
-      release(resultSet);
-      release(statement);
+      PreparedStatement	statement =
+        context.prepare
+        (
+          "select sync_token from synchronization " +
+            "where local = ? and remote = ?"
+        );
+      ResultSet		resultSet = null;
+
+      statement.setString(1, context.local.getAbsolutePath());
+      statement.setString(2, context.remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        return resultSet.next() ? resultSet.getString("sync_token") : null;
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
     }
   }
 
 
 
+  public TransferScheduler
+  getScheduler()
+  {
+    return scheduler;
+  }
+
+
+
+  public boolean
+  getSkipUnchanged()
+  {
+    return skipUnchanged;
+  }
+
+
+
+  public boolean
+  getStreaming()
+  {
+    return streaming;
+  }
+
+
+
   public File
   getTrash()
   {
@@ -1698,127 +2615,45 @@ public class Sync
 
 
   private Record
-  getTree(final URL url, Record top, final Context context) throws IOException
+  getTree(URL url, Record top, Context context) throws IOException
   {
-    final List<Record>	children = new ArrayList<Record>();
-    final boolean[]	empty = new boolean[]{true};
-    Client.Response	response = null;
-    final Record	result = top != null ? top : new Record();
+    List<Record>	children = new ArrayList<Record>();
+    boolean[]		empty = new boolean[]{true};
+    Record		result = top != null ? top : new Record();
+    int			statusCode =
+      listCollection(url, result, children, empty, context);
 
-    try
+    if (statusCode == 403 && "infinity".equals(context.depth))
     {
-      response =
-        client.propfindSpecific
-        (
-          url,
-          new ExpandedName[]
-            {
-              new ExpandedName(Constants.DAV_URI, "getcontenttype"),
-              new ExpandedName(Constants.DAV_URI, "getetag"),
-              new ExpandedName(Constants.DAV_URI, "getlastmodified"),
-              new ExpandedName(Constants.DAV_URI, "resourcetype")
-            },
-          context.depth
-        );
+      context.depth = "1";
 
-      if (response.getStatusCode() == 403 && "infinity".equals(context.depth))
-      {
-        context.depth = "1";
-        response.close();
-        response = null;
+      return getTree(url, result, context);
+    }
 
-        return getTree(url, result, context);
-      }
+    if (statusCode != 207)
+    {
+      return null;
+    }
 
-      if (response.getStatusCode() != 207)
+    result.path = url.getFile();
+
+    if ("1".equals(context.depth))
+    {
+      int	width =
+        scheduler != null ? scheduler.getPerAuthority() : concurrency;
+
+      if (width > 1 && children.size() > 0)
       {
-        for (Listener listener: listeners)
+        Crawler	crawler = new Crawler(width, result, context);
+
+        for (Record record: children)
         {
-          listener.error(response);
+          crawler.submit(record);
         }
 
-        return null;
+        return crawler.await() ? result : null;
       }
 
-      result.path = url.getFile();
-
-      be.re.webdav.Util.readPropertyList
-      (
-        url,
-        response,
-        new be.re.webdav.Util.PropertyHandler()
-        {
-          public boolean
-          handle(URL href, Element[] properties, int statusCode)
-          {
-            if (statusCode == 200 && properties.length > 0)
-            {
-              Record	record = new Record();
-
-              try
-              {
-                if (!href.getFile().endsWith("/") && isCollection(properties))
-                {
-                  href = new URL(href.toString() + "/");
-                }
-
-                record.path = createPath(href, context.remote);
-
-                if
-                (
-                  !url.toString().equals(href.toString())	&&
-                  getRecord(result, record.path) == null
-                )
-                {
-                  setRecordProperties(record, properties, href, context);
-
-                  if
-                  (
-                    addToTree(result, record)	&&
-                    "1".equals(context.depth)	&&
-                    record.path.endsWith("/")
-                  )
-                  {
-                    children.add(record);
-                  }
-                }
-
-                empty[0] = false;
-              }
-
-              catch (MalformedURLException e)
-              {
-                throw new RuntimeException(e); // Would be a bug.
-              }
-            }
-
-            return true;
-          }
-        },
-        false
-      );
-    }
-
-    catch (Throwable e)
-    {
-      for (Listener listener: listeners)
-      {
-        listener.exception(url, HTTPClient.PROPFIND, e);
-      }
-
-      return null;
-    }
-
-    finally
-    {
-      if (response != null)
-      {
-        response.close();
-      }
-    }
-
-    if ("1".equals(context.depth))
-    {
       for (Record record: children)
       {
         if
@@ -1875,12 +2710,48 @@ public class Sync
 
 
 
+  /**
+   * A newer modification time is confirmed with the size and the digest of
+   * the content when they are known. A file that was only touched gets its
+   * new time stored, so that it isn't read again.
+   */
+
   private static boolean
   hasChanged(File file, Context context) throws IOException, SQLException
   {
-    long	lastCheck = getFileLastModified(file, context);
+    Row			row = context.read(context.files, file.getAbsolutePath());
+    BasicFileAttributes	attributes = getAttributes(file, context);
+
+    if
+    (
+      row == null						||
+      attributes == null					||
+      attributes.lastModifiedTime().toMillis() <= row.lastModified
+    )
+    {
+      return false;
+    }
+
+    if
+    (
+      row.digest == null					||
+      !attributes.isRegularFile()				||
+      attributes.size() != row.contentLength			||
+      !row.digest.equals(toHex(getDigest(file, newDigest()).digest()))
+    )
+    {
+      return true;
+    }
+
+    Row	touched = new Row();
 
-    return lastCheck != -1 && file.lastModified() > lastCheck;
+    touched.contentLength = row.contentLength;
+    touched.digest = row.digest;
+    touched.fileKey = getFileKey(file, context);
+    touched.lastModified = attributes.lastModifiedTime().toMillis();
+    context.write(context.files, file.getAbsolutePath(), touched);
+
+    return false;
   }
 
 
@@ -1895,15 +2766,91 @@ public class Sync
 
 
 
+  /**
+   * Tells if the directory still contains everything the remote collection
+   * had. A file key alone is no proof that a directory was moved, because it
+   * can be reused for a new directory right after the old one was removed.
+   */
+
+  private static boolean
+  hasSameMembers(File directory, Record record)
+  {
+    String[]	names = directory.list();
+
+    if (names == null || record.members.isEmpty())
+    {
+      return false;
+    }
+
+    Set<String>	local = new HashSet<String>();
+
+    for (int i = 0; i < names.length; ++i)
+    {
+      local.add(normalize(names[i]));
+    }
+
+    return local.containsAll(record.members.keySet());
+  }
+
+
+
+  private static boolean
+  hasTasks(Plan plan)
+  {
+    for (Plan.Operation operation: plan.getOperations())
+    {
+      if (operation.getTask() != null)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+
   private boolean
-  insert(File member, Context context) throws IOException, SQLException
+  insert(final File member, final Context context)
+    throws IOException, SQLException
   {
-    String	path = getPath(context.local, member);
-    boolean	result = true;
-    URL		url = getUrl(context.remote, context.local, member);
+    final URL	url = getUrl(context.remote, context.local, member);
 
     checkout(URLManager.getParent(url), context);
 
+    if (!isDirectory(member, context))
+    {
+      return
+        schedule
+        (
+          Plan.Type.UPLOAD,
+          getPath(context.local, member, false),
+          getLength(member, context),
+          context,
+          new TransferScheduler.Task()
+          {
+            public boolean
+            run() throws Exception
+            {
+              return insertFile(member, url, context);
+            }
+          }
+        );
+    }
+
+    boolean	result = true;
+    Record	record = new Record();
+
+    record.path = getPath(context.local, member, true);
+
+    if (dryRun)
+    {
+      plan(Plan.Type.MKCOL, record.path, null, false, context);
+      record.planned = true;
+
+      return getNoRecursion() || sync(record, member, context);
+    }
+
     for (Listener listener: listeners)
     {
       listener.startCreate(url);
@@ -1911,52 +2858,137 @@ public class Sync
 
     try
     {
-      long[]	time = new long[1];
+      try
+      {
+        client.mkcol(url);
+        writeFilename(member, context);
+        writeUrl(url, context);
+      }
 
-      if (member.isDirectory())
+      catch (Throwable e)
       {
-        try
+        for (Listener listener: listeners)
         {
-          client.mkcol(url);
-          writeFilename(member, context);
-          writeUrl(url, context);
+          listener.exception(url, HTTPClient.MKCOL, e);
         }
 
-        catch (Throwable e)
-        {
-          for (Listener listener: listeners)
-          {
-            listener.exception(url, HTTPClient.MKCOL, e);
-          }
+        return false;
+      }
 
-          return false;
-        }
+      result = getNoRecursion() || sync(record, member, context);
+
+      if (result && getDefaultAcl() != null)
+      {
+        setAcl(url);
+      }
+    }
+
+    finally
+    {
+      for (Listener listener: listeners)
+      {
+        listener.endCreate(url);
+      }
+    }
+
+    return result;
+  }
 
-        Record	record = new Record();
 
-        record.path = getPath(context.local, member);
-        result = getNoRecursion() || sync(record, member, context);
+
+  private boolean
+  insert(final Record record, final File member, final Context context)
+    throws IOException, SQLException
+  {
+    if (record.path.endsWith("/"))
+    {
+      if (dryRun)
+      {
+        plan(Plan.Type.MKCOL, record.path, null, true, context);
       }
       else
       {
-        try
+        for (Listener listener: listeners)
         {
-          put(url, member, null, time, context);
-          writeFilename(member, context);
-          writeUrl(url, time[0], context);
+          listener.startCreate(member);
         }
 
-        catch (Throwable e)
+        member.mkdir();
+        writeFilename(member, context);
+        writeRemotePath(record, context);
+
+        for (Listener listener: listeners)
         {
-          for (Listener listener: listeners)
+          listener.endCreate(member);
+        }
+      }
+
+      return getNoRecursion() || sync(record, member, context);
+    }
+
+    return
+      schedule
+      (
+        Plan.Type.DOWNLOAD,
+        record.path,
+        record.contentLength,
+        context,
+        new TransferScheduler.Task()
+        {
+          public boolean
+          run() throws Exception
           {
-            listener.exception(url, HTTPClient.PUT, e);
+            return insertFile(record, member, context);
           }
-
-          result = false;
         }
+      );
+  }
+
+
+
+  private boolean
+  insertFile(File member, URL url, Context context) throws IOException
+  {
+    boolean	result = true;
+
+    for (Listener listener: listeners)
+    {
+      listener.startCreate(url);
+    }
+
+    try
+    {
+      String[]	digest = new String[1];
+      Headers	headersOut = new Headers();
+
+      result = put(url, member, null, headersOut, digest, context);
+
+      if (result)
+      {
+        writeUploaded
+        (
+          getPath(url, context.remote),
+          url,
+          member,
+          headersOut,
+          digest[0],
+          context
+        );
+      }
+    }
+
+    catch (Throwable e)
+    {
+      for (Listener listener: listeners)
+      {
+        listener.exception(url, HTTPClient.PUT, e);
       }
 
+      result = false;
+    }
+
+    try
+    {
       if (result && getDefaultAcl() != null)
       {
         setAcl(url);
@@ -1977,36 +3009,27 @@ public class Sync
 
 
   private boolean
-  insert(Record record, File member, Context context)
-    throws IOException, SQLException
+  insertFile(Record record, File member, Context context) throws IOException
   {
+    URL	url = getUrl(context.remote, record.path);
+
     for (Listener listener: listeners)
     {
       listener.startCreate(member);
     }
 
-    if (record.path.endsWith("/"))
+    try
     {
-      member.mkdir();
-      writeFilename(member, context);
-      writeRemotePath(record, context);
+      String[]	digest = new String[1];
 
-      for (Listener listener: listeners)
+      if (!get(url, member, record.etag, digest, context))
       {
-        listener.endCreate(member);
+        return false;
       }
 
-      return getNoRecursion() || sync(record, member, context);
-    }
-
-    URL	url = getUrl(context.remote, record.path);
-
-    try
-    {
-      get(url, member);
       member.setLastModified(record.lastModified);
-      writeFilename(member, context);
-      writeRemotePath(record, context);
+      writeFilename(member, digest[0], context);
+      writeRemotePath(record, digest[0], context);
 
       return true;
     }
@@ -2032,6 +3055,23 @@ public class Sync
 
 
 
+  /**
+   * Forgets what is known about earlier cycles in daemon mode.
+   */
+
+  private void
+  invalidate()
+  {
+    previousTree = null;
+
+    if (watcher != null)
+    {
+      watcher.markFull();
+    }
+  }
+
+
+
   private static boolean
   isCollection(Element[] properties)
   {
@@ -2057,23 +3097,223 @@ public class Sync
 
 
 
-  public static void
-  main(String[] args) throws Exception
+  private static boolean
+  isDirectory(File file, Context context)
   {
-    boolean	bi = false;
-    File	configFile = null;
-    File	directory = null;
-    boolean	down = false;
-    String	excludes = null;
-    List	extra = new ArrayList();
-    String	hiddenFolderName = null;
+    BasicFileAttributes	attributes = getAttributes(file, context);
+
+    return attributes != null && attributes.isDirectory();
+  }
+
+
+
+  /**
+   * Tells if the file still has the content that was stored for it. The
+   * digest is only consulted when the modification time differs.
+   */
+
+  private static boolean
+  isSameContent(File file, Row row) throws IOException
+  {
+    return
+      (row.contentLength == -1 || file.length() == row.contentLength) &&
+        (
+          file.lastModified() == row.lastModified ||
+            (
+              row.digest != null &&
+                row.digest.equals(toHex(getDigest(file, newDigest()).digest()))
+            )
+        );
+  }
+
+
+
+  private static boolean
+  isStrong(String etag)
+  {
+    return etag != null && !etag.startsWith("W/");
+  }
+
+
+
+  /**
+   * Performs one PROPFIND and adds the entries to the tree. In Depth 1 mode
+   * the collections that should be listed next are added to
+   * <code>children</code>. The tree is locked while an entry is added to it,
+   * because several collections can be listed at the same time.
+   * @return The status code of the response or -1 if an exception occurred.
+   * Failures are reported to the listeners, except for a 403 on a Depth
+   * infinity request, which can be retried with Depth 1.
+   */
+
+  private int
+  listCollection
+  (
+    final URL		url,
+    final Record	tree,
+    final List<Record>	children,
+    final boolean[]	empty,
+    final Context	context
+  ) throws IOException
+  {
+    Client.Response	response = null;
+
+    try
+    {
+      response =
+        client.propfindSpecific(url, TREE_PROPERTIES, context.depth);
+
+      if (response.getStatusCode() == 403 && "infinity".equals(context.depth))
+      {
+        return 403;
+      }
+
+      if (response.getStatusCode() != 207)
+      {
+        for (Listener listener: listeners)
+        {
+          listener.error(response);
+        }
+
+        return response.getStatusCode();
+      }
+
+      be.re.webdav.Util.readPropertyList
+      (
+        url,
+        response,
+        new be.re.webdav.Util.PropertyHandler()
+        {
+          public boolean
+          handle(URL href, Element[] properties, int statusCode)
+          {
+            if (statusCode == 200 && properties.length > 0)
+            {
+              Record	record = new Record();
+
+              try
+              {
+                if (!href.getFile().endsWith("/") && isCollection(properties))
+                {
+                  href = new URL(href.toString() + "/");
+                }
+
+                record.path = createPath(href, context.remote);
+
+                synchronized (tree)
+                {
+                  if
+                  (
+                    !url.toString().equals(href.toString())	&&
+                    getRecord(tree, record.path) == null
+                  )
+                  {
+                    setRecordProperties(record, properties, href, context);
+
+                    if (context.members != null)
+                    {
+                      context.members.put(record.path, record);
+                    }
+
+                    if (!addToTree(tree, record))
+                    {
+                      record.marker = null; // Its subtree isn't fetched.
+                      forgetETag(record, context);
+                    }
+                    else
+                    {
+                      if
+                      (
+                        "1".equals(context.depth)		&&
+                        !streaming				&&
+                        record.path.endsWith("/")		&&
+                        !reuseSubtree(tree, record, context)
+                      )
+                      {
+                        children.add(record);
+                      }
+                    }
+                  }
+                }
+
+                empty[0] = false;
+              }
+
+              catch (MalformedURLException e)
+              {
+                throw new RuntimeException(e); // Would be a bug.
+              }
+            }
+
+            return true;
+          }
+        },
+        false
+      );
+
+      return 207;
+    }
+
+    catch (Throwable e)
+    {
+      for (Listener listener: listeners)
+      {
+        listener.exception(url, HTTPClient.PROPFIND, e);
+      }
+
+      return -1;
+    }
+
+    finally
+    {
+      if (response != null)
+      {
+        response.close();
+      }
+    }
+  }
+
+
+
+  /**
+   * Fetches the members of a collection in streaming mode.
+   */
+
+  private boolean
+  listMembers(Record record, Context context) throws IOException
+  {
+    return
+      getTree(getUrl(context.remote, record.path), context.tree, context) !=
+        null;
+  }
+
+
+
+  public static void
+  main(String[] args) throws Exception
+  {
+    boolean	bi = false;
+    int		concurrency = 1;
+    File	configFile = null;
+    File	directory = null;
+    boolean	down = false;
+    boolean	dryRun = false;
+    String	excludes = null;
+    List	extra = new ArrayList();
+    Fsync	fsync = Fsync.NEVER;
+    String	hiddenFolderName = null;
     String	interval = null;
+    int		jobs = 1;
+    RateSchedule	limits = new RateSchedule();
     boolean	noRecursion = false;
+    int		prewarm = 0;
     boolean	recursive = false;
     int		renameDepth = 10;
     boolean	renameFiles = false;
     boolean	reset = false;
     boolean	showUsage = false;
+    boolean	skipUnchanged = false;
+    boolean	streaming = false;
     boolean	up = false;
     String	url = null;
 
@@ -2211,7 +3451,122 @@ public class Sync
                                   }
                                   else
                                   {
-                                    extra.add(args[i]);
+                                    if ("-concurrency".equals(args[i]))
+                                    {
+                                      if
+                                      (
+                                        i == args.length - 1		||
+                                        !be.re.util.Util.
+                                          isInteger(args[i + 1])	||
+                                        Integer.parseInt(args[i + 1]) < 1
+                                      )
+                                      {
+                                        showUsage = true;
+                                      }
+                                      else
+                                      {
+                                        concurrency =
+                                          Integer.parseInt(args[++i]);
+                                      }
+                                    }
+                                    else
+                                    {
+                                      if ("-skip-unchanged".equals(args[i]))
+                                      {
+                                        skipUnchanged = true;
+                                      }
+                                      else
+                                      {
+                                        if ("-streaming".equals(args[i]))
+                                        {
+                                          streaming = true;
+                                        }
+                                        else
+                                        {
+                                          if ("-jobs".equals(args[i]))
+                                          {
+                                            if
+                                            (
+                                              i == args.length - 1	||
+                                              !be.re.util.Util.
+                                                isInteger(args[i + 1])	||
+                                              Integer.
+                                                parseInt(args[i + 1]) < 1
+                                            )
+                                            {
+                                              showUsage = true;
+                                            }
+                                            else
+                                            {
+                                              jobs =
+                                                Integer.parseInt(args[++i]);
+                                            }
+                                          }
+                                          else
+                                          {
+                                            if ("-dry-run".equals(args[i]))
+                                            {
+                                              dryRun = true;
+                                            }
+                                            else
+                                            {
+                                              if ("-limit".equals(args[i]))
+                                              {
+                                                showUsage |=
+                                                  i >= args.length - 2 ||
+                                                    !addLimit
+                                                    (
+                                                      limits,
+                                                      args[++i],
+                                                      args[++i]
+                                                    );
+                                              }
+                                              else
+                                              {
+                                                if
+                                                (
+                                                  "-prewarm".equals(args[i])
+                                                )
+                                                {
+                                                  if
+                                                  (
+                                                    i == args.length - 1 ||
+                                                    !be.re.util.Util.
+                                                      isInteger(args[i + 1])
+                                                  )
+                                                  {
+                                                    showUsage = true;
+                                                  }
+                                                  else
+                                                  {
+                                                    prewarm =
+                                                      Integer.parseInt
+                                                      (
+                                                        args[++i]
+                                                      );
+                                                  }
+                                                }
+                                                else
+                                                {
+                                                  if ("-fsync".equals(args[i]))
+                                                  {
+                                                    fsync =
+                                                      i < args.length - 1 ?
+                                                        parseFsync(args[++i]) :
+                                                        null;
+                                                    showUsage |= fsync == null;
+                                                  }
+                                                  else
+                                                  {
+                                                    extra.add(args[i]);
+                                                  }
+                                                }
+                                              }
+                                            }
+                                          }
+                                        }
+                                      }
+                                    }
                                   }
                                 }
                               }
@@ -2242,6 +3597,10 @@ public class Sync
     (
       showUsage					||
       extra.size() > 0				||
+      (
+        dryRun					&&
+        interval != null
+      )						||
       (
         interval != null			&&
         (
@@ -2254,6 +3613,7 @@ public class Sync
         (
           url == null				||
           !validateUrl(url)			||
+          jobs != 1				||
           (
             !bi					&&
             !down				&&
@@ -2283,7 +3643,12 @@ public class Sync
           down					||
           up					||
           recursive				||
-          noRecursion
+          noRecursion				||
+          skipUnchanged				||
+          streaming				||
+          concurrency != 1			||
+          prewarm != 0				||
+          fsync != Fsync.NEVER
         )
       )
     )
@@ -2327,80 +3692,112 @@ public class Sync
       return;
     }
 
-    if (reset)
+    if (reset && !dryRun)
     {
       removeSynchronizationMark(new URL(url), directory, getDatabase());
     }
 
-    boolean	end = false;
+    if (!limits.isEmpty())
+    {
+      limits.start();
+    }
+
+    if (configFile != null)
+    {
+      try
+      {
+        new JobScheduler
+        (
+          configFile,
+          System.err,
+          interval != null ? (Integer.parseInt(interval) * 1000L) : -1,
+          jobs,
+          dryRun
+        ).run();
+      }
+
+      catch (Exception e)
+      {
+        printException(e, null);
+      }
+
+      reportStatistics(limits);
+
+      return;
+    }
+
+    Map<String,Sync>	daemons =
+      interval != null ? new HashMap<String,Sync>() : null;
+    boolean		end = false;
 
     while (!end)
     {
       try
       {
-        if (configFile != null)
+        if (interactive)
         {
-          sync(configFile, System.err, interval != null);
+          startBusy();
         }
-        else
+
+        try
         {
-          if (interactive)
-          {
-            startBusy();
-          }
+          Sync	sync = daemons != null ? daemons.get("") : null;
 
-          try
+          if (sync == null)
           {
-            Sync	sync = new Sync();
+            sync = new Sync();
+            sync.addListener(new Reporter(interactive ? null : System.out));
 
-            sync.setExclusions
-            (
-              excludes != null ?
-                be.re.util.Util.split(excludes, " ,") : new String[0]
-            );
+            if (daemons != null)
+            {
+              daemons.put("", sync);
+                // Kept between cycles, because it watches the directory.
+            }
+          }
 
-            sync.setDirection
-            (
-              bi ?
-                Direction.BIDIRECTIONAL :
-                (down ? Direction.DOWN : Direction.UP)
-            );
+          sync.setExclusions
+          (
+            excludes != null ?
+              be.re.util.Util.split(excludes, " ,") : new String[0]
+          );
 
-            sync.setLocal(directory);
-            sync.setRemote(new URL(url));
-            sync.setInteractive(interactive);
-            sync.setDaemonMode(interval != null);
-            sync.setRecursive(recursive);
-            sync.setRenameFiles(renameFiles);
-            sync.setRenameDepth(renameDepth);
-            sync.setHiddenFolderName(hiddenFolderName);
-            sync.setNoRecursion(noRecursion);
-            sync.addListener(new Reporter(interactive ? null : System.out));
+          sync.setDirection
+          (
+            bi ?
+              Direction.BIDIRECTIONAL :
+              (down ? Direction.DOWN : Direction.UP)
+          );
 
-            sync.run();
-          }
+          sync.setLocal(directory);
+          sync.setRemote(new URL(url));
+          sync.setInteractive(interactive);
+          sync.setDaemonMode(interval != null);
+          sync.setRecursive(recursive);
+          sync.setRenameFiles(renameFiles);
+          sync.setRenameDepth(renameDepth);
+          sync.setHiddenFolderName(hiddenFolderName);
+          sync.setNoRecursion(noRecursion);
+          sync.setConcurrency(concurrency);
+          sync.setPrewarm(prewarm);
+          sync.setFsync(fsync);
+          sync.setSkipUnchanged(skipUnchanged);
+          sync.setStreaming(streaming);
+          sync.setDryRun(dryRun);
+          sync.run();
+        }
 
-          finally
+        finally
+        {
+          if (interactive)
           {
-            if (interactive)
-            {
-              endBusy();
-            }
+            endBusy();
           }
         }
       }
 
       catch (Exception e)
       {
-        if (e.getMessage() != null)
-        {
-          System.err.println(e.getMessage());
-          be.re.util.Util.printStackTrace(e);
-        }
-        else
-        {
-          e.printStackTrace();
-        }
+        printException(e, null);
       }
 
       if (interval == null)
@@ -2409,16 +3806,11 @@ public class Sync
       }
       else
       {
-        try
-        {
-          Thread.sleep(Integer.parseInt(interval) * 1000);
-        }
-
-        catch (InterruptedException e)
-        {
-        }
+        awaitChanges(daemons.values(), Integer.parseInt(interval) * 1000L);
       }
     }
+
+    reportStatistics(limits);
   }
 
 
@@ -2426,7 +3818,7 @@ public class Sync
   private static void
   monitorFile(File file)
   {
-    while (System.currentTimeMillis() - file.lastModified() < 2000)
+    while (System.currentTimeMillis() - file.lastModified() < QUIET_PERIOD)
     {
       try
       {
@@ -2478,6 +3870,61 @@ public class Sync
 
 
 
+  private boolean
+  moveOrInsert(File member, Context context) throws IOException, SQLException
+  {
+    Record	record = tryMovedLocally(member, context);
+
+    if (record == null)
+    {
+      return insert(member, context);
+    }
+
+    onBothSides(record, member, context);
+
+    return true;
+  }
+
+
+
+  private boolean
+  moveRemote(URL from, URL to, Context context) throws IOException
+  {
+    for (Listener listener: listeners)
+    {
+      listener.startRename(from, to);
+    }
+
+    try
+    {
+      checkout(URLManager.getParent(from), context);
+      checkout(URLManager.getParent(to), context);
+      client.move(from, to, false);
+
+      return true;
+    }
+
+    catch (Throwable e)
+    {
+      for (Listener listener: listeners)
+      {
+        listener.exception(from, HTTPClient.MOVE, e);
+      }
+
+      return false;
+    }
+
+    finally
+    {
+      for (Listener listener: listeners)
+      {
+        listener.endRename(from, to);
+      }
+    }
+  }
+
+
+
   private void
   moveRecords() throws IOException, SQLException
   {
@@ -2486,7 +3933,6 @@ public class Sync
     try
     {
       context = new Context(local, remote, database);
-      context.connection.setAutoCommit(false);
 
       File	localFiles =
         new File(getStorage(remote, local), ".local_files");
@@ -2502,7 +3948,7 @@ public class Sync
         copyLastSynchronization(lastSynchronization, context);
       }
 
-      context.connection.commit();
+      context.flush(true);
       localFiles.delete();
       remoteFiles.delete();
       lastSynchronization.delete();
@@ -2513,7 +3959,7 @@ public class Sync
     {
       if (context != null)
       {
-        context.connection.rollback();
+        context.rollback();
       }
     }
 
@@ -2669,27 +4115,28 @@ public class Sync
 
 
 
-  private static String
-  normalize(String s)
+  private static MessageDigest
+  newDigest()
   {
-    return
-      !Normalizer.isNormalized(s, Normalizer.Form.NFC) ?
-        Normalizer.normalize(s, Normalizer.Form.NFC) : s;
-  }
-
+    try
+    {
+      return MessageDigest.getInstance("MD5");
+    }
 
-
-  private static String[]
-  normalize(String[] s)
-  {
-    String[]	result = new String[s.length];
-
-    for (int i = 0; i < s.length; ++i)
+    catch (NoSuchAlgorithmException e)
     {
-      result[i] = normalize(s[i]);
+      throw new RuntimeException(e); // Would be a bug.
     }
+  }
 
-    return result;
+
+
+  private static String
+  normalize(String s)
+  {
+    return
+      !Normalizer.isNormalized(s, Normalizer.Form.NFC) ?
+        Normalizer.normalize(s, Normalizer.Form.NFC) : s;
   }
 
 
@@ -2700,7 +4147,7 @@ public class Sync
   {
     return
       context.direction == Direction.UP ?
-        delete(record, context) :
+        deleteOrDefer(record, member, context) :
         (
           context.direction == Direction.DOWN ?
             (
@@ -2713,7 +4160,8 @@ public class Sync
                 onBothSides(record, member, context) :
                 (
                   getFileLastModified(member, context) != -1 ?
-                    delete(record, context) : insert(record, member, context)
+                    deleteOrDefer(record, member, context) :
+                    insert(record, member, context)
                 )
             )
         );
@@ -2724,7 +4172,7 @@ public class Sync
   private boolean
   notOnServer(File member, Context context) throws IOException, SQLException
   {
-    if (!member.exists())
+    if (getAttributes(member, context) == null)
     {
       return false;
         // It was already renamed and the path will never have a trailing slash,
@@ -2733,7 +4181,8 @@ public class Sync
     }
 
     Record	newRecord;
-    String	path = getPath(context.local, member);
+    String	path =
+      getPath(context.local, member, isDirectory(member, context));
 
     return
       context.direction == Direction.DOWN ?
@@ -2748,7 +4197,7 @@ public class Sync
         ) :
         (
           context.direction == Direction.UP ?
-            insert(member, context) :
+            moveOrInsert(member, context) :
             (
               (newRecord = tryRenamedTo(path, member, context)) != null ?
                 onBothSides
@@ -2759,7 +4208,7 @@ public class Sync
                 ) :
                 (
                   getRemotePathLastModified(path, context) != -1 ?
-                    delete(member, context) : insert(member, context)
+                    delete(member, context) : moveOrInsert(member, context)
                 )
             )
         );
@@ -2787,7 +4236,7 @@ public class Sync
                 )
             ) ||
               (
-                member.isDirectory() &&
+                isDirectory(member, context) &&
                   (
                     context.direction == Direction.UP ||
                       context.direction == Direction.BIDIRECTIONAL
@@ -2808,6 +4257,174 @@ public class Sync
 
 
 
+  /**
+   * Returns the fsync policy with the name or <code>null</code> if there is
+   * none.
+   */
+
+  private static Fsync
+  parseFsync(String name)
+  {
+    try
+    {
+      return Fsync.valueOf(name.toUpperCase());
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
+
+
+
+  /**
+   * Applies the changes since the state identified by <code>token</code> to
+   * the tree and stores them with the new token.
+   * @return <code>false</code> if the changes couldn't be obtained, in which
+   * case the complete tree should be fetched.
+   */
+
+  private boolean
+  patchTree(final Record tree, String token, final Context context)
+    throws IOException, SQLException
+  {
+    final Map<String,Record>	changes = new HashMap<String,Record>();
+      // A null value is a deletion.
+    final boolean[]		truncated = new boolean[1];
+
+    do
+    {
+      Client.Response	response = null;
+
+      truncated[0] = false;
+
+      try
+      {
+        response =
+          client.syncCollection(remote, token, true, TREE_PROPERTIES);
+
+        if (response.getStatusCode() != 207)
+        {
+          // The token has expired or the report isn't supported anymore.
+
+          return false;
+        }
+
+        token =
+          be.re.webdav.Util.readSyncCollection
+          (
+            remote,
+            response,
+            new be.re.webdav.Util.PropertyHandler()
+            {
+              public boolean
+              handle(URL href, Element[] properties, int statusCode)
+                throws IOException
+              {
+                if (statusCode == 200 && properties.length > 0)
+                {
+                  Record	record = new Record();
+
+                  if (!href.getFile().endsWith("/") && isCollection(properties))
+                  {
+                    href = new URL(href.toString() + "/");
+                  }
+
+                  record.path = createPath(href, context.remote);
+
+                  if (record.path != null && record.path.length() > 0)
+                  {
+                    forgetETag(context.members.get(record.path), context);
+                    setRecordProperties(record, properties, href, context);
+                    addToTree(tree, record);
+                    context.members.put(record.path, record);
+                    changes.put(record.path, record);
+                  }
+                }
+
+                return true;
+              }
+            },
+            new be.re.webdav.Util.ReportMultistatus()
+            {
+              public boolean
+              report(URL href, int code, Element error, String description)
+              {
+                if (code == 507 && href.getFile().equals(remote.getFile()))
+                {
+                  truncated[0] = true;
+                }
+                else
+                {
+                  if (code == 404)
+                  {
+                    String	path = createPath(href, context.remote);
+
+                    if (path != null && path.length() > 0)
+                    {
+                      removeMember(tree, path, changes, context);
+                    }
+                  }
+                }
+
+                return true;
+              }
+            }
+          );
+      }
+
+      catch (Throwable e)
+      {
+        for (Listener listener: listeners)
+        {
+          listener.exception(remote, HTTPClient.REPORT, e);
+        }
+
+        return false;
+      }
+
+      finally
+      {
+        if (response != null)
+        {
+          response.close();
+        }
+      }
+
+      if (token == null)
+      {
+        return false;
+      }
+    } while (truncated[0]);
+
+    writeMembers(changes, false, context);
+    setSyncToken(token, context);
+
+    return true;
+  }
+
+
+
+  /**
+   * Records an operation that is not executed, because it is a dry run.
+   */
+
+  private static void
+  plan
+  (
+    Plan.Type	type,
+    String	path,
+    String	target,
+    boolean	local,
+    Context	context
+  )
+  {
+    context.plan.add(new Plan.Operation(type, path, target, local, 0, null));
+  }
+
+
+
   private static InputStream
   prepareMessage(Node node)
   {
@@ -2829,18 +4446,153 @@ public class Sync
 
 
 
+  private static void
+  printException(Throwable e, String tag)
+  {
+    if (e.getMessage() != null)
+    {
+      System.err.
+        println((tag != null ? ("[" + tag + "] ") : "") + e.getMessage());
+      be.re.util.Util.printStackTrace(e);
+    }
+    else
+    {
+      e.printStackTrace();
+    }
+  }
+
+
+
+  /**
+   * Fetches the cheap properties of the collection itself.
+   * @return The first element is the current value of the
+   * <code>DAV:sync-token</code> property. It is <code>null</code> if the
+   * server doesn't support the <code>DAV:sync-collection</code> report for the
+   * collection. The second element is the change marker of the collection,
+   * which may also be <code>null</code>.
+   */
+
+  private String[]
+  probeCollection(URL url) throws IOException
+  {
+    Client.Response	response =
+      client.propfindSpecific
+      (
+        url,
+        new ExpandedName[]
+        {
+          new ExpandedName(Constants.DAV_URI, "sync-token"),
+          new ExpandedName(Constants.DAV_URI, "getetag"),
+          new ExpandedName(Constants.CS_URI, "getctag")
+        },
+        "0"
+      );
+    final String[]	result = new String[3];
+
+    try
+    {
+      if (response.getStatusCode() == 207)
+      {
+        be.re.webdav.Util.readPropertyList
+        (
+          url,
+          response,
+          new be.re.webdav.Util.PropertyHandler()
+          {
+            public boolean
+            handle(URL href, Element[] properties, int statusCode)
+            {
+              for (int i = 0; i < properties.length && statusCode == 200; ++i)
+              {
+                String	value =
+                  be.re.xml.Util.getText(properties[i]).trim();
+
+                if (value.length() > 0)
+                {
+                  if ("sync-token".equals(properties[i].getLocalName()))
+                  {
+                    result[0] = value;
+                  }
+                  else
+                  {
+                    if ("getctag".equals(properties[i].getLocalName()))
+                    {
+                      result[1] = value;
+                    }
+                    else
+                    {
+                      if ("getetag".equals(properties[i].getLocalName()))
+                      {
+                        result[2] = value;
+                      }
+                    }
+                  }
+                }
+              }
+
+              return true;
+            }
+          },
+          true
+        );
+      }
+    }
+
+    finally
+    {
+      response.close();
+    }
+
+    return new String[]{result[0], result[1] != null ? result[1] : result[2]};
+  }
+
+
+
+  /**
+   * Uploads the member with one request. What is known about the resource
+   * comes from the remote tree, so the server isn't asked about it first. The
+   * upload is conditional on that knowledge, which lets the server refuse it
+   * when the resource has changed in the meantime.
+   * @param record the resource as it was found in the remote tree. It is
+   * <code>null</code> when the resource isn't in the tree.
+   * @param headersOut the headers of the PUT response.
+   */
+
   private boolean
-  put(URL url, File member, String mimeType, long[] time, Context context)
-    throws IOException
+  put
+  (
+    URL		url,
+    File	member,
+    Record	record,
+    Headers	headersOut,
+    String[]	digest,
+    Context	context
+  ) throws IOException
   {
     if (getDaemonMode())
     {
-      monitorFile(member);
+      if (watcher == null)
+      {
+        monitorFile(member); // There may not be a next cycle.
+      }
+      else
+      {
+        if (!watcher.isQuiet(member))
+        {
+          // The file is still being written. It is picked up again in the
+          // next cycle.
+
+          watcher.markDirty(member.getParentFile());
+
+          return false;
+        }
+      }
     }
 
     boolean	create = false;
+    Headers	headersIn = new Headers();
 
-    if (new URLManager().isContainer(url))
+    if (record != null && record.path.endsWith("/"))
     {
       create = true;
       checkout(URLManager.getParent(url), context);
@@ -2895,26 +4647,59 @@ public class Sync
 
     try
     {
-      if (renameFiles && renameDepth > 0 && new URLManager().exists(url))
+      if (record != null && !create && renameFiles && renameDepth > 0)
       {
         checkout(URLManager.getParent(url), context);
         moveToHigherVersion(url, renameDepth);
+        create = true;
       }
       else
       {
         checkout(url, context);
       }
 
-      Headers	headersOut = new Headers();
-      int	statusCode =
-        put
-        (
-          url,
-          member,
-          mimeType != null ?
-            mimeType : MimeType.getContentTypeFromName(member.getName()),
-          headersOut
-        );
+      if (record == null || create)
+      {
+        headersIn.set("If-None-Match", "*");
+      }
+      else
+      {
+        if (isStrong(record.etag))
+        {
+          headersIn.set("If-Match", record.etag);
+        }
+      }
+
+      String		contentType =
+        record != null && record.contentType != null ?
+          record.contentType :
+          MimeType.getContentTypeFromName(member.getName());
+      MessageDigest	md = newDigest();
+      int		statusCode =
+        put(url, member, contentType, headersIn, headersOut, md);
+
+      if (statusCode == 412 && record == null)
+      {
+        // The resource isn't in the remote tree, but it exists. It may have
+        // been left out because it was excluded or not listed. It is then
+        // updated, as before.
+
+        Headers		headers = getHeaders(url);
+        String[]	etag = headers.get("ETag");
+
+        if ("200".equals(headers.get("Status-Code")[0]))
+        {
+          headersIn.remove("If-None-Match");
+
+          if (etag.length > 0 && isStrong(etag[0]))
+          {
+            headersIn.set("If-Match", etag[0]);
+          }
+
+          headersOut.clear();
+          statusCode = put(url, member, contentType, headersIn, headersOut, md);
+        }
+      }
 
       if (statusCode != 200 && statusCode != 201 && statusCode != 204)
       {
@@ -2926,7 +4711,7 @@ public class Sync
         return false;
       }
 
-      time[0] = be.re.net.Util.getTimeHeader(headersOut, "Date");
+      digest[0] = toHex(md.digest());
 
       return true;
     }
@@ -2962,19 +4747,44 @@ public class Sync
   public static int
   put(URL url, File file, String mimeType, Headers headersOut)
     throws IOException
+  {
+    return put(url, file, mimeType, new Headers(), headersOut, null);
+  }
+
+
+
+  /**
+   * @param headersIn extra request headers, such as preconditions.
+   * @param digest when it is not <code>null</code> it is updated with the
+   * content that is sent.
+   */
+
+  public static int
+  put
+  (
+    URL			url,
+    File		file,
+    String		mimeType,
+    Headers		headersIn,
+    Headers		headersOut,
+    MessageDigest	digest
+  ) throws IOException
   {
     boolean	canRetry = true;
+    long	length = file.length();
+    boolean	large = length >= 1024 * 1024;
     int		statusCode = -1;
 
+    headersIn.set
+    (
+      "Content-Type",
+      mimeType != null ? mimeType : "application/octet-stream"
+    );
+
     while (canRetry)
     {
-      Headers	headersIn = new Headers();
-
-      headersIn.set
-      (
-        "Content-Type",
-        mimeType != null ? mimeType : "application/octet-stream"
-      );
+      // The client updates the digest while it sends the file, also when the
+      // kernel copies a large file to the socket.
 
       HTTPClient.request
       (
@@ -2988,7 +4798,8 @@ public class Sync
         null,
         null,
         HTTPClient.getExpect100(),
-        file.length() >= 1024 * 1024 ? file.length() : -1
+        large ? length : -1,
+        digest
       ).close();
 
       statusCode = Integer.parseInt(headersOut.get("Status-Code")[0]);
@@ -3136,26 +4947,184 @@ public class Sync
       {
         result[i].noRecursion = true;
       }
-    }
 
-    return result;
-  }
+      node = be.re.xml.Util.selectFirstChild(sync[i], "skip-unchanged");
 
+      if (node != null)
+      {
+        result[i].skipUnchanged = true;
+      }
 
+      node = be.re.xml.Util.selectFirstChild(sync[i], "streaming");
 
-  private static void
-  release(Context context) throws IOException
-  {
-    if (context != null)
-    {
-      try
+      if (node != null)
       {
-        context.close();
+        result[i].streaming = true;
       }
 
-      catch (SQLException e)
+      node = be.re.xml.Util.selectFirstChild(sync[i], "concurrency");
+
+      if (node != null)
       {
-        throw new be.re.io.IOException(e);
+        value = be.re.xml.Util.getText(node);
+
+        if (be.re.util.Util.isInteger(value) && Integer.parseInt(value) >= 1)
+        {
+          result[i].concurrency = Integer.parseInt(value);
+        }
+      }
+
+      node = be.re.xml.Util.selectFirstChild(sync[i], "prewarm");
+
+      if (node != null)
+      {
+        value = be.re.xml.Util.getText(node);
+
+        if (be.re.util.Util.isInteger(value) && Integer.parseInt(value) >= 0)
+        {
+          result[i].prewarm = Integer.parseInt(value);
+        }
+      }
+
+      node = be.re.xml.Util.selectFirstChild(sync[i], "fsync");
+
+      if (node != null)
+      {
+        value = be.re.xml.Util.getText(node);
+
+        if (value == null || parseFsync(value.trim()) == null)
+        {
+          throw new Exception("Wrong fsync value \"" + value + "\".");
+        }
+
+        result[i].fsync = parseFsync(value.trim());
+      }
+
+      node = be.re.xml.Util.selectFirstChild(sync[i], "interval");
+
+      if (node != null)
+      {
+        value = be.re.xml.Util.getText(node);
+
+        if (be.re.util.Util.isInteger(value) && Integer.parseInt(value) >= 0)
+        {
+          result[i].interval = Integer.parseInt(value) * 1000L;
+        }
+      }
+
+      node = be.re.xml.Util.selectFirstChild(sync[i], "priority");
+
+      if (node != null)
+      {
+        value = be.re.xml.Util.getText(node);
+
+        if (be.re.util.Util.isInteger(value))
+        {
+          result[i].priority = Integer.parseInt(value);
+        }
+      }
+
+      node = be.re.xml.Util.selectFirstChild(sync[i], "name");
+
+      if (node != null)
+      {
+        value = be.re.xml.Util.getText(node);
+
+        if (value != null && value.trim().length() > 0)
+        {
+          result[i].name = value.trim();
+        }
+      }
+
+      node = be.re.xml.Util.selectFirstChild(sync[i], "database");
+
+      if (node != null)
+      {
+        value = be.re.xml.Util.getText(node);
+
+        if (value != null && value.trim().length() > 0)
+        {
+          result[i].database = new File(value.trim());
+        }
+      }
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Loads the remote tree that was stored by a previous run.
+   */
+
+  private static TreeMap<String,Record>
+  readMembers(Context context) throws SQLException
+  {
+    TreeMap<String,Record>	result = new TreeMap<String,Record>();
+
+    synchronized (context)
+    {
+      PreparedStatement	statement =
+        context.prepare
+        (
+          "select path, content_type, etag, last_modified, marker, " +
+            "content_length from remote_member where local = ? and " +
+            "remote = ?"
+        );
+      ResultSet		resultSet = null;
+
+      statement.setString(1, context.local.getAbsolutePath());
+      statement.setString(2, context.remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        while (resultSet.next())
+        {
+          Record	record = new Record();
+
+          record.path = resultSet.getString(1);
+          record.contentType = resultSet.getString(2);
+          record.etag = resultSet.getString(3);
+          record.lastModified = resultSet.getLong(4);
+          record.marker = resultSet.getString(5);
+          record.contentLength = resultSet.getLong(6);
+
+          if (resultSet.wasNull())
+          {
+            record.contentLength = -1;
+          }
+
+          result.put(record.path, record);
+        }
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+    }
+
+    return result;
+  }
+
+
+
+  private static void
+  release(Context context) throws IOException
+  {
+    if (context != null)
+    {
+      try
+      {
+        context.close();
+      }
+
+      catch (SQLException e)
+      {
+        throw new be.re.io.IOException(e);
       }
     }
   }
@@ -3184,6 +5153,51 @@ public class Sync
 
 
 
+  /**
+   * A removed collection is reported without its members, so they are
+   * removed as well.
+   */
+
+  private static void
+  removeMember
+  (
+    Record		tree,
+    String		path,
+    Map<String,Record>	changes,
+    Context		context
+  )
+  {
+    String		key =
+      path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    List<String>	removed = new ArrayList<String>();
+
+    if (context.members.containsKey(key))
+    {
+      removed.add(key);
+    }
+
+    removed.addAll(context.members.subMap(key + "/", key + "0").keySet());
+
+    for (String member: removed)
+    {
+      Record	record = context.members.remove(member);
+
+      forgetETag(record, context);
+      changes.put(member, null);
+    }
+
+    Record	record = getRecord(tree, key);
+
+    if (record != null && record.parent != null)
+    {
+      String[]	segments = be.re.util.Util.getPathSegments(normalize(key));
+
+      record.parent.members.remove(segments[segments.length - 1]);
+    }
+  }
+
+
+
   public void
   removeListener(Listener listener)
   {
@@ -3201,11 +5215,11 @@ public class Sync
     try
     {
       context = new Context(directory, url, database);
-      context.connection.setAutoCommit(false);
       deleteAllFiles(context);
       deleteAllRemotePaths(context);
+      deleteAll("remote_member", context);
       deleteSynchronization(context);
-      context.connection.commit();
+      context.flush(true);
     }
 
     catch (SQLException e)
@@ -3224,35 +5238,106 @@ public class Sync
   private static void
   renameFile(File oldFile, File newFile, Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
+    context.attributes.remove(oldFile.getAbsolutePath());
+    context.attributes.remove(newFile.getAbsolutePath());
+    context.scanner.invalidate(oldFile.getParentFile());
+    context.scanner.invalidate(newFile.getParentFile());
 
-    try
+    synchronized (context)
     {
-      statement =
-        context.connection.prepareStatement
-        (
-          "update file set filename = ? " +
-            "where filename = ? and local = ? and remote = ?"
-        );
+      Row	row = context.read(context.files, oldFile.getAbsolutePath());
 
-      statement.setString(1, newFile.getAbsolutePath());
-      statement.setString(2, oldFile.getAbsolutePath());
-      statement.setString(3, context.local.getAbsolutePath());
-      statement.setString(4, context.remote.toString());
-      statement.execute();
+      if (row != null)
+      {
+        context.write(context.files, oldFile.getAbsolutePath(), null);
+        context.write(context.files, newFile.getAbsolutePath(), row);
+      }
     }
+  }
 
-    finally
+
+
+  /**
+   * Gives the record and its descendants the new path prefix.
+   */
+
+  private static void
+  renameRecord(Record record, String from, String to, Context context)
+  {
+    String	path = to + record.path.substring(from.length());
+
+    if
+    (
+      record.etag != null					&&
+      record.path.equals(context.etagToPath.get(record.etag))
+    )
+    {
+      context.etagToPath.put(record.etag, path);
+    }
+
+    record.path = path;
+
+    for (Record member: record.members.values())
+    {
+      renameRecord(member, from, to, context);
+    }
+  }
+
+
+
+  /**
+   * Moves the file in place atomically if the file system supports it.
+   */
+
+  private static void
+  replace(File source, File target) throws IOException
+  {
+    try
+    {
+      Files.move
+      (
+        source.toPath(),
+        target.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    }
+
+    catch (AtomicMoveNotSupportedException e)
     {
-      release(statement);
+      Files.move
+      (
+        source.toPath(),
+        target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING
+      );
     }
   }
 
 
 
   private boolean
-  replaceDirectory(File directory) throws IOException
+  replaceDirectory(File directory, Context context) throws IOException
   {
+    if (dryRun)
+    {
+      if (!directory.exists())
+      {
+        return true; // It is created in the plan.
+      }
+
+      plan
+      (
+        Plan.Type.CONFLICT,
+        getPath(context.local, directory, false),
+        null,
+        true,
+        context
+      );
+
+      return false;
+    }
+
     if (!deleteConflict(directory))
     {
       return false;
@@ -3298,8 +5383,22 @@ public class Sync
 
 
   private boolean
-  replaceDirectory(URL url) throws IOException
+  replaceDirectory(URL url, Context context) throws IOException
   {
+    if (dryRun)
+    {
+      plan
+      (
+        Plan.Type.CONFLICT,
+        getPath(url, context.remote),
+        null,
+        false,
+        context
+      );
+
+      return false;
+    }
+
     if (!deleteConflict(url))
     {
       return false;
@@ -3353,48 +5452,367 @@ public class Sync
 
 
 
-  public Conflict[]
-  run() throws IOException
+  /**
+   * The conflicts are added to the plan of the dry run, which is then handed
+   * to the listeners in the order it would have been executed.
+   */
+
+  private void
+  reportPlan(Context context)
   {
-    for (Listener listener: listeners)
+    for (Conflict conflict: context.conflicts)
     {
-      listener.start();
+      plan
+      (
+        Plan.Type.CONFLICT,
+        getPath(conflict.getUrl(), context.remote),
+        null,
+        conflict.getType() == ConflictType.DELETE_LOCAL,
+        context
+      );
     }
 
-    Context	context = null;
+    context.plan.sort();
 
-    try
+    for (Listener listener: listeners)
     {
-      moveRecords();
+      listener.plan(context.plan);
+    }
+  }
 
-      context = new Context(local, remote, database);
-      context.checkedOut =
-        supportsFeature(getOptions(client, remote), "version-control") ?
-          new HashSet<String>() : null;
-      context.direction = direction;
-      context.lastSynchronization = getSynchronization(context);
-      context.depth = recursive ? "1" : "infinity";
-      context.conflicts = new ArrayList<Conflict>();
-      context.tree = getTree(remote, null, context);
 
-      if (context.tree != null && sync(context.tree, local, context))
-      {
-        setSynchronization(context);
-      }
 
-      return context.conflicts.toArray(new Conflict[0]);
-    }
+  /**
+   * Tells how long the traffic has been held back by the limits and how long
+   * it took to set up the connections. The latter is only reported when TLS
+   * was used, because then the handshakes can be significant.
+   */
 
-    catch (SQLException e)
+  private static void
+  reportStatistics(RateSchedule limits)
+  {
+    ConnectionStatistics	statistics = HTTPClient.getStatistics();
+
+    limits.stop();
+
+    if (statistics.getHandshakes() > 0)
     {
-      throw new be.re.io.IOException(e);
+      System.err.println
+      (
+        MessageFormat.format
+        (
+          Util.getResource("msg_sync_connections"),
+          new Object[]
+          {
+            String.valueOf(statistics.getConnections()),
+            String.valueOf(statistics.getConnectTime()),
+            String.valueOf(statistics.getHandshakes()),
+            String.valueOf(statistics.getResumedHandshakes()),
+            String.valueOf(statistics.getHandshakeTime())
+          }
+        )
+      );
     }
 
-    finally
+    if (!limits.isEmpty())
     {
-      checkin(context);
+      System.err.println
+      (
+        MessageFormat.format
+        (
+          Util.getResource("msg_sync_throttled"),
+          new Object[]
+          {
+            String.valueOf(HTTPClient.getUploadLimiter().getThrottledTime()),
+            String.valueOf(HTTPClient.getDownloadLimiter().getThrottledTime()),
+            String.valueOf(HTTPClient.getRequestThrottledTime())
+          }
+        )
+      );
+    }
+  }
 
-      for (Listener listener: listeners)
+
+
+  /**
+   * Copies the stored subtree of a collection of which the change marker
+   * hasn't changed.
+   * @return <code>false</code> if the subtree should be fetched.
+   */
+
+  private boolean
+  reuseSubtree(Record tree, Record collection, Context context)
+  {
+    Record	stored =
+      context.cached != null ? context.cached.get(collection.path) : null;
+
+    if
+    (
+      stored == null					||
+      collection.marker == null				||
+      !collection.marker.equals(stored.marker)
+    )
+    {
+      return false;
+    }
+
+    for
+    (
+      Record record:
+        context.cached.
+          subMap(collection.path, false, collection.path + "\uffff", false).
+          values()
+    )
+    {
+      if (record.etag != null)
+      {
+        context.etagToPath.put(record.etag, record.path);
+      }
+
+      addToTree(tree, record);
+      context.members.put(record.path, record);
+    }
+
+    return true;
+  }
+
+
+
+  public Conflict[]
+  run() throws IOException
+  {
+    for (Listener listener: listeners)
+    {
+      listener.start();
+    }
+
+    boolean		completed = false;
+    Context		context = null;
+    Listener		failures = null;
+    TransferScheduler	ownScheduler = null;
+
+    try
+    {
+      if (!dryRun)
+      {
+        if (!local.exists())
+        {
+          local.mkdir();
+        }
+
+        moveRecords();
+      }
+
+      if (daemonMode && watcher == null && cycles > 0)
+      {
+        // Only from the second cycle on, because a single run in daemon
+        // mode, such as the Ant task, has no use for it.
+
+        try
+        {
+          watcher = new LocalWatcher(local, QUIET_PERIOD, RESCAN_INTERVAL);
+        }
+
+        catch (IOException e)
+        {
+          // Every cycle will walk everything.
+        }
+      }
+
+      if (watcher != null)
+      {
+        failures =
+          new ListenerAdapter()
+          {
+            public void
+            error(Client.Response response)
+            {
+              watcher.markFull();
+            }
+
+            public void
+            error(URL url, String method, int statusCode)
+            {
+              watcher.markFull();
+            }
+
+            public void
+            exception(URL url, String method, Throwable e)
+            {
+              watcher.markFull();
+            }
+          };
+
+        addListener(failures);
+      }
+
+      context = new Context(local, remote, database, dryRun);
+      context.plan = new Plan(local, remote);
+      context.checkedOut =
+        supportsFeature(getOptions(client, remote), "version-control") ?
+          Collections.synchronizedSet(new HashSet<String>()) : null;
+
+      if (!streaming)
+      {
+        context.preload();
+      }
+
+      context.direction = direction;
+      context.lastSynchronization = getSynchronization(context);
+      context.depth = recursive || streaming ? "1" : "infinity";
+      context.conflicts =
+        Collections.synchronizedList(new ArrayList<Conflict>());
+
+      if (scheduler != null)
+      {
+        context.batch = scheduler.newBatch();
+      }
+      else
+      {
+        if (concurrency > 1)
+        {
+          ownScheduler = new TransferScheduler(concurrency, concurrency);
+          context.batch = ownScheduler.newBatch();
+        }
+      }
+
+      context.fsync = fsync;
+      context.prewarm = prewarm;
+
+      if (prewarm > 0)
+      {
+        HTTPClient.prewarm(remote, prewarm);
+      }
+
+      if (streaming)
+      {
+        // The members of a collection are fetched when it is visited.
+
+        context.tree = new Record();
+        context.tree.path = remote.getFile();
+      }
+      else
+      {
+        context.tree = getRemoteTree(context);
+      }
+
+      if (context.tree != null)
+      {
+        context.dirty = getDirtyPaths(context.tree);
+
+        if (context.dirty == null && !getNoRecursion())
+        {
+          // Everything is walked, so subtrees can be scanned ahead.
+
+          context.scanner.close();
+          context.scanner =
+            new LocalScanner
+            (
+              SCAN_THREADS,
+              new FileFilter()
+              {
+                public boolean
+                accept(File file)
+                {
+                  return !shouldExcludePath("/" + getPath(local, file, true));
+                }
+              }
+            );
+        }
+
+        boolean	updates = sync(context.tree, local, context);
+
+        updates |= deleteDisappeared(context);
+
+        if (dryRun)
+        {
+          reportPlan(context);
+        }
+        else
+        {
+          updates |= execute(context.plan, context);
+        }
+
+        if (context.batch != null)
+        {
+          updates |= context.batch.await();
+        }
+
+        force(context.downloaded);
+
+        if (updates && !dryRun)
+        {
+          setSynchronization(context);
+        }
+
+        completed = true;
+      }
+
+      return context.conflicts.toArray(new Conflict[0]);
+    }
+
+    catch (IOException e)
+    {
+      throw e;
+    }
+
+    catch (RuntimeException e)
+    {
+      throw e;
+    }
+
+    catch (Exception e)
+    {
+      throw new be.re.io.IOException(e);
+    }
+
+    finally
+    {
+      if (context != null && context.batch != null)
+      {
+        try
+        {
+          context.batch.await();
+            // Transfers may still be running when the walk failed.
+        }
+
+        catch (Exception e)
+        {
+        }
+      }
+
+      if (context != null)
+      {
+        try
+        {
+          force(context.downloaded);
+        }
+
+        catch (IOException e)
+        {
+        }
+      }
+
+      if (ownScheduler != null)
+      {
+        ownScheduler.shutdown();
+      }
+
+      if (failures != null)
+      {
+        removeListener(failures);
+      }
+
+      ++cycles;
+
+      if (!completed && watcher != null)
+      {
+        watcher.markFull();
+      }
+
+      checkin(context);
+
+      for (Listener listener: listeners)
       {
         listener.end();
       }
@@ -3405,6 +5823,48 @@ public class Sync
 
 
 
+  /**
+   * Adds the task to the plan of the run, which is executed after the walk.
+   * Without a plan the task is submitted right away.
+   * @param bytes the estimated number of bytes that are transferred or -1 if
+   * it is not known.
+   * @return <code>false</code> when the task isn't executed right away. Its
+   * outcome is collected at the end of the run.
+   */
+
+  private boolean
+  schedule
+  (
+    Plan.Type			type,
+    String			path,
+    long			bytes,
+    Context			context,
+    TransferScheduler.Task	task
+  ) throws IOException, SQLException
+  {
+    if (context.plan == null)
+    {
+      return submit(path, context, task);
+    }
+
+    context.plan.add
+    (
+      new Plan.Operation
+      (
+        type,
+        path,
+        null,
+        type == Plan.Type.DOWNLOAD,
+        bytes,
+        dryRun ? null : task
+      )
+    );
+
+    return false;
+  }
+
+
+
   private void
   setAcl(URL url) throws IOException
   {
@@ -3468,10 +5928,39 @@ public class Sync
 
 
 
+  /**
+   * The maximum number of transfers that run at the same time against the
+   * server. With a value larger than 1 the GET, PUT and DELETE requests that
+   * are decided during the synchronization are executed by a
+   * <code>TransferScheduler</code>. When the tree is fetched with Depth 1
+   * this is also the number of PROPFIND requests that are in flight. Listeners
+   * are then called from several threads and should be thread-safe. When a
+   * shared scheduler is set its limit per authority is used instead.
+   * @see #setScheduler(TransferScheduler)
+   */
+
+  public void
+  setConcurrency(int concurrency)
+  {
+    if (concurrency < 1)
+    {
+      throw new IllegalArgumentException("The concurrency should be positive.");
+    }
+
+    this.concurrency = concurrency;
+  }
+
+
+
   public void
   setDaemonMode(boolean daemonMode)
   {
     this.daemonMode = daemonMode;
+
+    if (!daemonMode)
+    {
+      stopWatching();
+    }
   }
 
 
@@ -3495,11 +5984,29 @@ public class Sync
   public void
   setDirection(Direction direction)
   {
+    if (direction != this.direction)
+    {
+      invalidate();
+    }
+
     this.direction = direction;
   }
 
 
 
+  /**
+   * In a dry run the walk only produces the plan, which is handed to the
+   * listeners. Nothing is changed locally, on the server or in the database.
+   */
+
+  public void
+  setDryRun(boolean dryRun)
+  {
+    this.dryRun = dryRun;
+  }
+
+
+
   /**
    * Setting this to <code>null</code> will save an empty array.
    */
@@ -3507,22 +6014,21 @@ public class Sync
   public void
   setExclusions(String[] exclusions)
   {
-    if (exclusions == null)
+    String[]	result =
+      new String[exclusions != null ? exclusions.length : 0];
+
+    for (int i = 0; i < result.length; ++i)
     {
-      this.exclusions = new String[0];
+      result[i] = exclusions[i].replace('\\', '/').trim();
     }
-    else
-    {
-      String[]	result = new String[exclusions.length];
-
-      for (int i = 0; i < result.length; ++i)
-      {
-        result[i] = exclusions[i].replace('\\', '/').trim();
-      }
 
-      this.exclusions = result;
+    if (!Arrays.equals(result, this.exclusions))
+    {
+      invalidate();
     }
 
+    this.exclusions = result;
+
     exclusionPatterns = toPattern(this.exclusions);
   }
 
@@ -3541,6 +6047,23 @@ public class Sync
 
 
 
+  /**
+   * Sets when downloaded files are forced to the storage device. With
+   * <code>FILE</code> each file is forced before it replaces the member,
+   * which is the safest and the slowest. With <code>RUN</code> the files are
+   * forced together at the end of the run, before the run is recorded as a
+   * synchronization. With <code>NEVER</code>, the default, it is left to the
+   * operating system.
+   */
+
+  public void
+  setFsync(Fsync fsync)
+  {
+    this.fsync = fsync;
+  }
+
+
+
   /**
    * When set deletions will be implemented as moves to the hidden folder, which
    * is created in the same folder as the file or folder that has to be deleted.
@@ -3580,9 +6103,9 @@ public class Sync
         );
     }
 
-    if (!local.exists())
+    if (!local.equals(this.local))
     {
-      local.mkdir();
+      stopWatching();
     }
 
     this.local = local;
@@ -3603,6 +6126,21 @@ public class Sync
 
 
 
+  /**
+   * Opens this number of connections to the server before the run and again
+   * before the transfers of the plan are started, so they don't wait for
+   * connections and TLS handshakes. It is best set to the concurrency. The
+   * default is 0, which means connections are opened when they are needed.
+   */
+
+  public void
+  setPrewarm(int prewarm)
+  {
+    this.prewarm = prewarm;
+  }
+
+
+
   private static void
   setRecordProperties
   (
@@ -3612,6 +6150,8 @@ public class Sync
     Context	context
   )
   {
+    String	ctag = null;
+
     for (int i = 0; i < properties.length; ++i)
     {
       // We should test for the namespace, but there seem to be servers such as
@@ -3650,18 +6190,49 @@ public class Sync
           {
             record.contentType = be.re.xml.Util.getText(properties[i]);
           }
-        }
-      }
-    }
-
-    // There are servers that don't return the getlastmodified property despite
-    // the fact that they have the Last-Modified header.
-
+          else
+          {
+            if ("getctag".equals(properties[i].getLocalName()))
+            {
+              ctag = be.re.xml.Util.getText(properties[i]).trim();
+            }
+            else
+            {
+              if ("getcontentlength".equals(properties[i].getLocalName()))
+              {
+                try
+                {
+                  record.contentLength =
+                    Long.parseLong
+                    (
+                      be.re.xml.Util.getText(properties[i]).trim()
+                    );
+                }
+
+                catch (NumberFormatException e)
+                {
+                  // Only an estimate for the plan.
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+
+    // There are servers that don't return the getlastmodified property despite
+    // the fact that they have the Last-Modified header.
+
     if (record.lastModified == -1)
     {
       record.lastModified =
         cutMillis(be.re.net.HTTPClient.Util.getLastModified(url));
     }
+
+    if (record.path != null && record.path.endsWith("/"))
+    {
+      record.marker = ctag != null && ctag.length() > 0 ? ctag : record.etag;
+    }
   }
 
 
@@ -3689,9 +6260,20 @@ public class Sync
   {
     try
     {
-      this.remote =
+      URL	url =
         !remote.toString().endsWith("/") ?
           new URL(remote.toString() + "/") : remote;
+
+      if
+      (
+        this.remote == null				||
+        !url.toString().equals(this.remote.toString())
+      )
+      {
+        invalidate();
+      }
+
+      this.remote = url;
     }
 
     catch (MalformedURLException e)
@@ -3743,39 +6325,155 @@ public class Sync
 
 
 
+  /**
+   * All buffered state changes are committed together with the
+   * synchronization mark.
+   */
+
   private static void
   setSynchronization(long time, Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
+    synchronized (context)
+    {
+      context.flush(false);
 
-    try
+      setSynchronizationColumn
+      (
+        "occurred",
+        Long.valueOf(time != -1 ? time : System.currentTimeMillis() + 5000),
+          // Add a small margin for clock differences.
+        context
+      );
+
+      context.commit();
+    }
+  }
+
+
+
+  /**
+   * The synchronization row also holds the token of the stored remote tree,
+   * so it can exist before the first synchronization has occurred. It then
+   * has -1 as its occurrence.
+   */
+
+  private static void
+  setSynchronizationColumn(String column, Object value, Context context)
+    throws SQLException
+  {
+    PreparedStatement	statement =
+      context.prepare
+      (
+        "update synchronization set " + column + " = ? " +
+          "where local = ? and remote = ?"
+      );
+
+    statement.setObject
+    (
+      1,
+      value,
+      "occurred".equals(column) ? Types.BIGINT : Types.VARCHAR
+    );
+    statement.setString(2, context.local.getAbsolutePath());
+    statement.setString(3, context.remote.toString());
+
+    if (statement.executeUpdate() == 0)
     {
       statement =
-        context.connection.prepareStatement
+        context.prepare
         (
-          getSynchronization(context) != -1 ?
-            (
-              "update synchronization set occurred = ? " +
-                "where local = ? and remote = ? "
-            ) :
-            (
-              "insert into synchronization (occurred, local, remote) " +
-                "values (?, ?, ?)"
-            )
+          "insert into synchronization (occurred, sync_token, local, remote) " +
+            "values (?, ?, ?, ?)"
         );
 
-      statement.
-        setLong(1, time != -1 ? time : System.currentTimeMillis() + 5000);
-        // Add a small margin for clock differences.
-      statement.setString(2, context.local.getAbsolutePath());
-      statement.setString(3, context.remote.toString());
+      statement.setLong
+      (
+        1,
+        "occurred".equals(column) ? ((Long) value).longValue() : -1
+      );
+
+      statement.setString
+      (
+        2,
+        "sync_token".equals(column) ? (String) value : null
+      );
+
+      statement.setString(3, context.local.getAbsolutePath());
+      statement.setString(4, context.remote.toString());
       statement.execute();
     }
+  }
 
-    finally
+
+
+  /**
+   * Stores the token that goes with the stored remote tree together with the
+   * buffered state changes.
+   */
+
+  private static void
+  setSyncToken(String token, Context context) throws SQLException
+  {
+    synchronized (context)
+    {
+      context.flush(false);
+      setSynchronizationColumn("sync_token", token, context);
+      context.commit();
+    }
+  }
+
+
+
+  /**
+   * Sets a scheduler that can be shared with other synchronizations. The
+   * limit per URL authority of the scheduler applies to all of them together.
+   */
+
+  public void
+  setScheduler(TransferScheduler scheduler)
+  {
+    this.scheduler = scheduler;
+  }
+
+
+
+  /**
+   * When set the remote tree is stored and the subtrees of collections of
+   * which the <code>CS:getctag</code> or <code>DAV:getetag</code> property
+   * hasn't changed are not fetched again. This should only be used with
+   * servers that change those properties whenever something changes anywhere
+   * in the collection. The default is <code>false</code>.
+   */
+
+  public void
+  setSkipUnchanged(boolean skipUnchanged)
+  {
+    this.skipUnchanged = skipUnchanged;
+  }
+
+
+
+  /**
+   * When set the remote tree isn't fetched before the synchronization starts.
+   * Instead the members of a collection are fetched with a Depth 1 PROPFIND
+   * when it is visited and they are released when its subtree is done. Memory
+   * then depends on the depth of the tree and the width of the collections
+   * instead of the total number of resources. Remote renames are only
+   * detected within the collections that are being visited and the stored
+   * state isn't preloaded. The options <code>recursive</code> and
+   * <code>skipUnchanged</code> have no effect in this mode. The default is
+   * <code>false</code>.
+   */
+
+  public void
+  setStreaming(boolean streaming)
+  {
+    if (streaming != this.streaming)
     {
-      release(statement);
+      invalidate();
     }
+
+    this.streaming = streaming;
   }
 
 
@@ -3794,7 +6492,8 @@ public class Sync
     if
     (
       name.equals(hiddenFolderName)					||
-      (renameFiles && VERSIONED_FILENAME.matcher(name).matches())
+      (renameFiles && VERSIONED_FILENAME.matcher(name).matches())	||
+      PARTIAL_FILENAME.matcher(name).matches()
     )
     {
       return true;
@@ -3891,6 +6590,82 @@ public class Sync
 
 
 
+  private void
+  stopWatching()
+  {
+    if (watcher != null)
+    {
+      try
+      {
+        watcher.close();
+      }
+
+      catch (IOException e)
+      {
+      }
+
+      watcher = null;
+    }
+
+    previousTree = null;
+  }
+
+
+
+  /**
+   * Executes the task right away when there is no scheduler for the
+   * synchronization. Otherwise the task is submitted and <code>false</code>
+   * is returned. The outcome of the task is then collected at the end of the
+   * run.
+   */
+
+  private static boolean
+  submit(String path, Context context, TransferScheduler.Task task)
+    throws IOException, SQLException
+  {
+    if (context.batch == null)
+    {
+      try
+      {
+        return task.run();
+      }
+
+      catch (IOException e)
+      {
+        throw e;
+      }
+
+      catch (SQLException e)
+      {
+        throw e;
+      }
+
+      catch (RuntimeException e)
+      {
+        throw e;
+      }
+
+      catch (Exception e)
+      {
+        throw new be.re.io.IOException(e);
+      }
+    }
+
+    try
+    {
+      context.batch.submit(context.remote.getAuthority(), path, task);
+    }
+
+    catch (InterruptedException e)
+    {
+      throw new be.re.io.IOException(e);
+    }
+
+    return false;
+  }
+
+
+
   private static boolean
   supportsFeature(Client.Options options, String feature)
   {
@@ -3903,28 +6678,51 @@ public class Sync
   sync(Record record, File directory, Context context)
     throws IOException, SQLException
   {
+    if (context.dirty != null)
+    {
+      String	path = normalize(getDirectoryPath(directory, context.local));
+
+      if (!context.dirty.contains(path))
+      {
+        return syncDirty(record, directory, path, context);
+      }
+    }
+
+    if
+    (
+      streaming							&&
+      record.path.endsWith("/")					&&
+      !record.planned						&&
+      !listMembers(record, context)
+    )
+    {
+      return false; // The error has been reported.
+    }
+
     String[]	names =
       (String[]) record.members.keySet().toArray(new String[0]);
-    String[]	list = getFiles(directory, context);
+    String[]	list = getFiles(directory, record, context);
     URL		url = getUrl(context.remote, record.path);
 
     if (list == null)
     {
       list = new String[0];
 
-      if (!directory.isDirectory() && !replaceDirectory(directory))
+      if
+      (
+        !directory.isDirectory()				&&
+        !replaceDirectory(directory, context)
+      )
       {
         return false;
       }
     }
     else
     {
-      list = normalize(list);
       Arrays.sort(names);
-      Arrays.sort(list);
     }
 
-    if (!record.path.endsWith("/") && !replaceDirectory(url))
+    if (!record.path.endsWith("/") && !replaceDirectory(url, context))
     {
       return false;
     }
@@ -3961,34 +6759,87 @@ public class Sync
       }
     }
 
+    context.checkpoint();
+
+    for (int i = 0; i < list.length; ++i)
+    {
+      context.attributes.remove(new File(directory, list[i]).getAbsolutePath());
+    }
+
+    if (streaming)
+    {
+      // The subtree is done. Only the ancestors are kept.
+
+      for (Record rec: record.members.values())
+      {
+        forgetETag(rec, context);
+      }
+
+      record.members.clear();
+    }
+
     return updates;
   }
 
 
 
-  private static void
-  sync(File configFile, OutputStream out, boolean daemonMode) throws Exception
+  /**
+   * Nothing has changed directly in a clean directory, so only the
+   * subdirectories that lead to dirty ones are visited.
+   */
+
+  private boolean
+  syncDirty(Record record, File directory, String path, Context context)
+    throws IOException, SQLException
   {
-    Job[]	jobs = readJobs(configFile);
+    boolean	updates = false;
+
+    if (getNoRecursion())
+    {
+      return false;
+    }
 
-    for (int i = 0; i < jobs.length; ++i)
+    List<Map.Entry<String,Record>>	entries =
+      new ArrayList<Map.Entry<String,Record>>(record.members.entrySet());
+        // A copy, because a local move changes the tree.
+
+    for (Map.Entry<String,Record> entry: entries)
     {
-      Sync	sync = new Sync();
+      String		child = path + entry.getKey() + "/";
+      SortedSet<String>	tail = context.dirty.tailSet(child);
+
+      if
+      (
+        entry.getValue().path != null		&&
+        entry.getValue().path.endsWith("/")	&&
+        !tail.isEmpty()				&&
+        tail.first().startsWith(child)
+      )
+      {
+        updates |=
+          sync(entry.getValue(), new File(directory, entry.getKey()), context);
+      }
+    }
+
+    return updates;
+  }
+
+
+
+  private static String
+  toHex(byte[] bytes)
+  {
+    StringBuilder	result = new StringBuilder(bytes.length * 2);
 
-      sync.setLocal(jobs[i].directory);
-      sync.setRemote(jobs[i].url);
-      sync.setDirection(jobs[i].direction);
-      sync.setDefaultAcl(jobs[i].acl);
-      sync.setExclusions(jobs[i].excludes);
-      sync.setDaemonMode(daemonMode);
-      sync.setRenameFiles(jobs[i].rename);
-      sync.setRenameDepth(jobs[i].renameDepth);
-      sync.setHiddenFolderName(jobs[i].hiddenFolderName);
-      sync.setRecursive(jobs[i].recursive);
-      sync.setNoRecursion(jobs[i].noRecursion);
-      sync.addListener(new Reporter(out));
-      sync.run();
+    for (int i = 0; i < bytes.length; ++i)
+    {
+      result.append
+      (
+        Integer.toHexString((bytes[i] & 0xff) | 0x100).substring(1)
+      );
     }
+
+    return result.toString();
   }
 
 
@@ -4014,32 +6865,163 @@ public class Sync
 
 
 
-  private boolean
-  tryRenamedFrom(Record record, File file, Context context) throws SQLException
-  {
-    String	oldPath = getRemotePathFromETag(record.etag, context);
+  /**
+   * Looks for a file that has disappeared from its stored location and has
+   * the same file key as <code>file</code>. The corresponding server resource
+   * is then moved instead of being deleted and uploaded again. A directory
+   * must also still contain all members of the collection.
+   * @return The moved record or <code>null</code> if nothing was moved.
+   */
 
-    if (oldPath != null && getFileLastModified(file, context) == -1)
-                           // Exists already because of multiple bindings.
+  private Record
+  tryMovedLocally(File file, Context context) throws IOException, SQLException
+  {
+    if (context.storedFiles == null && context.disappeared.isEmpty())
     {
-      File	oldFile = getFile(context.local, oldPath);
+      return null; // Avoid a table scan for every new file.
+    }
 
-      if (file.exists() && !oldFile.exists())
-      {
-        return true; // It was renamed already.
-      }
+    String	key = getFileKey(file, context);
+    String	oldName = key != null ? context.findFile(key) : null;
 
-      boolean	result = oldFile.exists();
+    if (oldName == null)
+    {
+      return null;
+    }
 
-      if (result)
-      {
-        for (Listener listener: listeners)
-        {
-          listener.startRename(oldFile, file);
-        }
+    boolean	directory = isDirectory(file, context);
+    File	oldFile = new File(oldName);
+    String	relative = context.compact(oldName);
+    Row		row = context.read(context.files, oldName);
 
-        file.getParentFile().mkdirs();
-        result = oldFile.renameTo(file);
+    if
+    (
+      oldFile.equals(file)					||
+      relative.equals(oldName)				||
+      oldFile.exists()						||
+      row == null						||
+      (!directory && !isSameContent(file, row))
+    )
+    {
+      return null;
+    }
+
+    String	oldPath =
+      relative.replace(File.separatorChar, '/') + (directory ? "/" : "");
+    String	newPath = getPath(context.local, file, directory);
+    Record	record = context.disappeared.get(oldPath);
+
+    if (record == null)
+    {
+      record = getRecord(context.tree, oldPath);
+    }
+
+    if
+    (
+      record == null						||
+      record.done						||
+      !record.path.equals(oldPath)				||
+      (
+        directory						&&
+        streaming						&&
+        record.members.isEmpty()				&&
+        !listMembers(record, context)
+      )								||
+      (
+        directory ?
+          !hasSameMembers(file, record) : hasChanged(record, context)
+      )
+    )
+    {
+      return null;
+    }
+
+    if (dryRun)
+    {
+      plan(Plan.Type.RENAME, oldPath, newPath, false, context);
+    }
+    else
+    {
+      if
+      (
+        !moveRemote
+        (
+          getUrl(context.remote, oldPath),
+          getUrl(context.remote, newPath),
+          context
+        )
+      )
+      {
+        return null;
+      }
+    }
+
+    context.disappeared.remove(oldPath);
+    context.rename(context.files, oldName, file.getAbsolutePath());
+    context.rename(context.paths, oldPath, newPath);
+
+    if (record.parent != null)
+    {
+      record.parent.members.values().remove(record);
+    }
+
+    renameRecord(record, oldPath, newPath, context);
+
+    String	parentPath =
+      newPath.substring
+      (
+        0,
+        newPath.lastIndexOf('/', newPath.length() - 2) + 1
+      );
+
+    record.parent =
+      parentPath.length() > 0 ?
+        getRecord(context.tree, parentPath) : context.tree;
+
+    if (record.parent != null)
+    {
+      record.parent.members.put(normalize(file.getName()), record);
+    }
+
+    return record;
+  }
+
+
+
+  private boolean
+  tryRenamedFrom(Record record, File file, Context context) throws SQLException
+  {
+    String	oldPath = getRemotePathFromETag(record.etag, context);
+
+    if (oldPath != null && getFileLastModified(file, context) == -1)
+                           // Exists already because of multiple bindings.
+    {
+      File	oldFile = getFile(context.local, oldPath);
+
+      if (file.exists() && !oldFile.exists())
+      {
+        return true; // It was renamed already.
+      }
+
+      boolean	result = oldFile.exists();
+
+      if (result && dryRun)
+      {
+        plan(Plan.Type.RENAME, oldPath, record.path, true, context);
+        record.done = true; // The renamed file isn't there to compare.
+
+        return true;
+      }
+
+      if (result)
+      {
+        for (Listener listener: listeners)
+        {
+          listener.startRename(oldFile, file);
+        }
+
+        file.getParentFile().mkdirs();
+        result = oldFile.renameTo(file);
 
         if (result)
         {
@@ -4066,7 +7048,8 @@ public class Sync
     String	etag = getETagFromRemotePath(oldPath, context);
     String	newPath = etag != null ? context.etagToPath.get(etag) : null;
 
-    if (newPath != null)
+    if (newPath != null && getRecord(context.tree, newPath) != null)
+      // The record may be excluded or already released in streaming mode.
     {
       File	newFile = getFile(context.local, newPath);
 
@@ -4082,6 +7065,15 @@ public class Sync
 
       boolean	result = file.exists();
 
+      if (result && dryRun)
+      {
+        plan(Plan.Type.RENAME, oldPath, newPath, true, context);
+        getRecord(context.tree, newPath).done = true;
+          // The renamed file isn't there to compare.
+
+        return getRecord(context.tree, newPath);
+      }
+
       if (result)
       {
         for (Listener listener: listeners)
@@ -4114,6 +7106,11 @@ public class Sync
   private boolean
   updateConflict(File file)
   {
+    if (dryRun)
+    {
+      return false; // Nobody is asked in a dry run.
+    }
+
     boolean	objection = false;
 
     for (Listener listener: listeners)
@@ -4129,6 +7126,11 @@ public class Sync
   private boolean
   updateConflict(URL url)
   {
+    if (dryRun)
+    {
+      return false; // Nobody is asked in a dry run.
+    }
+
     boolean	objection = false;
 
     for (Listener listener: listeners)
@@ -4154,15 +7156,67 @@ public class Sync
 
 
 
+  /**
+   * Databases that were created by an earlier version are brought up to date
+   * with <code>res/syncdb.sql</code>. An entry in <code>UPGRADES</code> is
+   * applied when its table or column doesn't exist yet.
+   */
+
+  private static void
+  upgradeDatabase(Connection connection) throws SQLException
+  {
+    for (int i = 0; i < UPGRADES.length; ++i)
+    {
+      ResultSet	resultSet =
+        UPGRADES[i][1] != null ?
+          connection.getMetaData().
+            getColumns(null, null, UPGRADES[i][0], UPGRADES[i][1]) :
+          connection.getMetaData().
+            getTables(null, null, UPGRADES[i][0], null);
+      boolean	exists;
+
+      try
+      {
+        exists = resultSet.next();
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+
+      if (!exists)
+      {
+        Statement	statement = connection.createStatement();
+
+        try
+        {
+          statement.execute(UPGRADES[i][2]);
+        }
+
+        finally
+        {
+          release(statement);
+        }
+      }
+    }
+  }
+
+
+
   private static void
   usage(int exitCode)
   {
     System.err.println
     (
-      "be.re.webdav.cmd.Sync [-h] [-i seconds] [-reset] " +
-        "(-c config_file | [(-r|-no-recursion)] [-rename] " +
-        "[-rename-depth number] [-hidden-folder] " +
-        "[-e comma_separated_patterns] (-down|-up|-bi) -u URL -d directory)"
+      "be.re.webdav.cmd.Sync [-h] [-i seconds] [-reset] [-dry-run] " +
+        "(-c config_file [-jobs number] | [(-r|-no-recursion)] [-rename] " +
+        "[-rename-depth number] [-hidden-folder] [-concurrency number] " +
+        "[-prewarm number] [-fsync (never|file|run)] [-skip-unchanged] " +
+        "[-streaming] " +
+        "[-e comma_separated_patterns] " +
+        "(-down|-up|-bi) -u URL -d directory) " +
+        "[-limit (up|down|requests) rate[K|M|G][@hour-hour]]..."
     );
 
     //System.exit(exitCode);
@@ -4226,37 +7280,129 @@ public class Sync
 
 
 
+  /**
+   * @param digest the digest of the content that was transferred. It may be
+   * <code>null</code>.
+   */
+
+  private static void
+  writeFilename(File file, String digest, Context context) throws SQLException
+  {
+    Row	row = new Row();
+
+    row.fileKey = getFileKey(file);
+    row.lastModified = file.lastModified();
+
+    if (digest != null)
+    {
+      row.contentLength = file.length();
+      row.digest = digest;
+    }
+
+    context.write(context.files, file.getAbsolutePath(), row);
+  }
+
+
+
   private static void
   writeFilename(File file, long time, Context context) throws SQLException
   {
-    PreparedStatement	statement = null;
+    Row	row = new Row();
 
-    try
+    row.fileKey = getFileKey(file);
+    row.lastModified = time != -1 ? time : file.lastModified();
+    context.write(context.files, file.getAbsolutePath(), row);
+  }
+
+
+
+  /**
+   * Stores changes to the remote tree. With <code>all</code> the stored tree
+   * is replaced.
+   * @param members the changed members. A null value is a deletion.
+   */
+
+  private static void
+  writeMembers(Map<String,Record> members, boolean all, Context context)
+    throws SQLException
+  {
+    synchronized (context)
     {
-      statement =
-        context.connection.prepareStatement
+      if (all)
+      {
+        deleteAll("remote_member", context);
+      }
+
+      PreparedStatement	delete =
+        context.prepare
         (
-          getFileLastModified(file, context) != -1 ?
-            (
-              "update file set last_modified = ? " +
-                "where filename = ? and local = ? and remote = ? "
-            ) :
-            (
-              "insert into file (last_modified, filename, local, remote) " +
-                "values (?, ?, ?, ?)"
-            )
+          "delete from remote_member where path = ? and local = ? and remote = ?"
+        );
+      int		deletes = 0;
+      PreparedStatement	insert =
+        context.prepare
+        (
+          "insert into remote_member " +
+            "(content_length, content_type, etag, last_modified, marker, " +
+            "path, local, remote) values (?, ?, ?, ?, ?, ?, ?, ?)"
         );
+      int		inserts = 0;
 
-      statement.setLong(1, time != -1 ? time : file.lastModified());
-      statement.setString(2, file.getAbsolutePath());
-      statement.setString(3, context.local.getAbsolutePath());
-      statement.setString(4, context.remote.toString());
-      statement.execute();
-    }
+      for (Map.Entry<String,Record> entry: members.entrySet())
+      {
+        if (!all)
+        {
+          delete.setString(1, entry.getKey());
+          delete.setString(2, context.local.getAbsolutePath());
+          delete.setString(3, context.remote.toString());
+          delete.addBatch();
+          ++deletes;
+        }
 
-    finally
-    {
-      release(statement);
+        Record	record = entry.getValue();
+
+        if (record != null)
+        {
+          if (record.contentLength != -1)
+          {
+            insert.setLong(1, record.contentLength);
+          }
+          else
+          {
+            insert.setNull(1, Types.BIGINT);
+          }
+
+          insert.setString(2, record.contentType);
+          insert.setString(3, record.etag);
+          insert.setLong(4, record.lastModified);
+          insert.setString(5, record.marker);
+          insert.setString(6, entry.getKey());
+          insert.setString(7, context.local.getAbsolutePath());
+          insert.setString(8, context.remote.toString());
+          insert.addBatch();
+
+          if (++inserts % Context.FLUSH_SIZE == 0)
+          {
+            if (deletes > 0)
+            {
+              delete.executeBatch();
+              deletes = 0;
+            }
+
+            insert.executeBatch();
+          }
+        }
+      }
+
+      if (deletes > 0)
+      {
+        delete.executeBatch();
+      }
+
+      if (inserts % Context.FLUSH_SIZE > 0)
+      {
+        insert.executeBatch();
+      }
     }
   }
 
@@ -4265,7 +7411,23 @@ public class Sync
   private static void
   writeRemotePath(Record record, Context context) throws SQLException
   {
-    writeRemotePath(record.path, record.lastModified, record.etag, context);
+    writeRemotePath(record, null, context);
+  }
+
+
+
+  private static void
+  writeRemotePath(Record record, String digest, Context context)
+    throws SQLException
+  {
+    writeRemotePath
+    (
+      record.path,
+      record.lastModified,
+      record.etag,
+      digest,
+      context
+    );
   }
 
 
@@ -4274,36 +7436,71 @@ public class Sync
   writeRemotePath(String path, long lastModified, String etag, Context context)
     throws SQLException
   {
-    PreparedStatement	statement = null;
+    writeRemotePath(path, lastModified, etag, null, context);
+  }
 
-    try
-    {
-      statement =
-        context.connection.prepareStatement
-        (
-          getRemotePathLastModified(path, context) != -1 ?
-            (
-              "update remote_path set last_modified = ?, etag = ? " +
-                "where path = ? and local = ? and remote = ? "
-            ) :
-            (
-              "insert into remote_path " +
-                "(last_modified, etag, path, local, remote) " +
-                "values (?, ?, ?, ?, ?)"
-            )
-        );
 
-      statement.setLong(1, lastModified);
-      statement.setString(2, etag != null ? etag : "none");
-      statement.setString(3, path);
-      statement.setString(4, context.local.getAbsolutePath());
-      statement.setString(5, context.remote.toString());
-      statement.execute();
-    }
 
-    finally
+  private static void
+  writeRemotePath
+  (
+    String	path,
+    long	lastModified,
+    String	etag,
+    String	digest,
+    Context	context
+  ) throws SQLException
+  {
+    Row	row = new Row();
+
+    row.digest = digest;
+    row.etag = etag != null ? etag : "none";
+    row.lastModified = lastModified;
+    context.write(context.paths, path, row);
+  }
+
+
+
+  /**
+   * Stores the state after an upload with the validators of the PUT
+   * response. Only when the response has no ETag the server is asked for it.
+   */
+
+  private static void
+  writeUploaded
+  (
+    String	path,
+    URL		url,
+    File	member,
+    Headers	headersOut,
+    String	digest,
+    Context	context
+  ) throws IOException, SQLException
+  {
+    String[]	etag = headersOut.get("ETag");
+    String[]	lastModified = headersOut.get("Last-Modified");
+    long	time = be.re.net.Util.getTimeHeader(headersOut, "Date");
+
+    writeFilename(member, digest, context);
+
+    if (etag.length == 0)
     {
-      release(statement);
+      writeUrl(url, time, digest, context);
+    }
+    else
+    {
+      writeRemotePath
+      (
+        path,
+        lastModified.length > 0 ?
+          cutMillis(be.re.net.Util.httpDate(lastModified[0])) :
+          (cutMillis(time) + 2000),
+          // Add a margin in case the update on the server is not visible
+          // immediately.
+        etag[0],
+        digest,
+        context
+      );
     }
   }
 
@@ -4355,6 +7552,15 @@ public class Sync
 
   private static void
   writeUrl(URL url, long time, Context context) throws IOException, SQLException
+  {
+    writeUrl(url, time, null, context);
+  }
+
+
+
+  private static void
+  writeUrl(URL url, long time, String digest, Context context)
+    throws IOException, SQLException
   {
     Headers	headers = getHeaders(url);
 
@@ -4373,6 +7579,7 @@ public class Sync
           -1
       ),
       headers.get("ETag").length > 0 ? headers.get("ETag")[0] : null,
+      digest,
       context
     );
   }
@@ -4427,124 +7634,1614 @@ public class Sync
 
 
 
-    public File
-    getLocal()
+    public File
+    getLocal()
+    {
+      return local;
+    }
+
+
+
+    public URL
+    getRemote()
+    {
+      return remote;
+    }
+
+
+
+    public ConflictType
+    getType()
+    {
+      return type;
+    }
+
+
+
+    public URL
+    getUrl()
+    {
+      return url;
+    }
+
+
+
+    public int
+    hashCode()
+    {
+      return file.getAbsolutePath().hashCode() + url.toString().hashCode();
+    }
+
+  } // Conflict
+
+
+
+  /**
+   * State changes are buffered and written as JDBC batches in an explicit
+   * transaction. A change is only buffered after the transfer it describes has
+   * been done, so an interrupted run can lose state, but it never records a
+   * transfer that didn't happen. Reads see the buffered changes.
+   *
+   * After <code>preload</code> all the state of the synchronization pair is
+   * kept in memory, indexed by filename, path and ETag, and the database is
+   * only written.
+   */
+
+  private static class Context
+
+  {
+
+    private static final int	FLUSH_SIZE = 500;
+
+    private static int	memoryDatabases;
+
+    private Map<String,BasicFileAttributes>	attributes =
+      new ConcurrentHashMap<String,BasicFileAttributes>();
+      // The members of the directories that are being walked.
+    private TransferScheduler.Batch		batch;
+    private TreeMap<String,Record>		cached;
+      // The stored remote tree that can be reused.
+    private Set<String>				checkedOut;
+    private List<Conflict>			conflicts =
+      new ArrayList<Conflict>();
+    private Connection				connection;
+    private String				depth = "infinity";
+    private Direction				direction;
+    private boolean				dryRun;
+      // Nothing is committed.
+    private SortedSet<String>			dirty;
+      // The directories to walk in daemon mode. Null means all of them.
+    private Map<String,Record>			disappeared =
+      new HashMap<String,Record>();
+      // The remote deletions that wait for a possible local move.
+    private List<File>				downloaded =
+      Collections.synchronizedList(new ArrayList<File>());
+      // The files that are forced at the end of the run.
+    private Map<String,String>			etagToPath =
+      new HashMap<String,String>();
+    private Map<String,String>			etags;
+    private Map<String,String>			fileKeys;
+    private Map<String,Row>			files = new HashMap<String,Row>();
+      // A null value is a deletion.
+    private Fsync				fsync;
+    private long				lastSynchronization = -1;
+    private File				local;
+    private String				memoryDatabase;
+      // The database of a dry run when there is none yet.
+    private TreeMap<String,Record>		members;
+      // The unfiltered remote tree when it is stored.
+    private boolean				noRecursion;
+    private Map<String,Row>			paths = new HashMap<String,Row>();
+      // A null value is a deletion.
+    private Plan				plan;
+    private int					prewarm;
+      // The number of connections to open before transfers.
+    private URL					remote;
+    private LocalScanner			scanner = new LocalScanner(1, null);
+    private Map<String,PreparedStatement>	statements =
+      new HashMap<String,PreparedStatement>();
+    private Map<String,Row>			storedFiles;
+      // Keys are relative to the local directory.
+    private Map<String,Row>			storedPaths;
+    private Record				tree;
+
+
+
+    private
+    Context(File local, URL remote, File database)
+      throws IOException, SQLException
+    {
+      this(local, remote, database, false);
+    }
+
+
+
+    /**
+     * A dry run that finds no database gets an empty one in memory, which is
+     * dropped when the context is closed.
+     */
+
+    private
+    Context(File local, URL remote, File database, boolean dryRun)
+      throws IOException, SQLException
+    {
+      if (dryRun && !database.exists())
+      {
+        memoryDatabase = "memory:syncdb" + nextMemoryDatabase();
+        connection =
+          DriverManager.
+            getConnection("jdbc:derby:" + memoryDatabase + ";create=true");
+        createTables(connection);
+      }
+      else
+      {
+        connection = getConnection(database, false, dryRun);
+      }
+
+      this.dryRun = dryRun;
+      this.remote = remote;
+      this.local = local;
+
+      if (connection != null)
+      {
+        connection.setAutoCommit(false);
+      }
+    }
+
+
+
+    /**
+     * Commits the buffered changes, which is done at the end of each
+     * directory.
+     */
+
+    private synchronized void
+    checkpoint() throws SQLException
+    {
+      if (files.size() > 0 || paths.size() > 0)
+      {
+        flush(true);
+      }
+    }
+
+
+
+    private synchronized void
+    close() throws SQLException
+    {
+      scanner.close();
+
+      if (connection != null)
+      {
+        try
+        {
+          if (dryRun)
+          {
+            connection.rollback();
+          }
+          else
+          {
+            flush(true);
+          }
+        }
+
+        catch (SQLException e)
+        {
+          connection.rollback();
+          throw e;
+        }
+
+        finally
+        {
+          for (PreparedStatement statement: statements.values())
+          {
+            release(statement);
+          }
+
+          statements.clear();
+          connection.close();
+          connection = null;
+
+          if (memoryDatabase != null)
+          {
+            dropMemoryDatabase(memoryDatabase);
+          }
+        }
+      }
+    }
+
+
+
+    private synchronized void
+    commit() throws SQLException
+    {
+      if (!dryRun)
+      {
+        connection.commit();
+      }
+    }
+
+
+
+    /**
+     * Filenames are stored relative to the local directory in memory, because
+     * they all share that prefix.
+     */
+
+    private String
+    compact(String filename)
+    {
+      String	prefix = local.getAbsolutePath() + File.separator;
+
+      return
+        filename.startsWith(prefix) ?
+          filename.substring(prefix.length()) : filename;
+    }
+
+
+
+    private synchronized void
+    discard(String table)
+    {
+      if ("file".equals(table))
+      {
+        files.clear();
+
+        if (storedFiles != null)
+        {
+          storedFiles.clear();
+          fileKeys.clear();
+        }
+      }
+      else
+      {
+        if ("remote_path".equals(table))
+        {
+          paths.clear();
+
+          if (storedPaths != null)
+          {
+            storedPaths.clear();
+            etags.clear();
+          }
+        }
+      }
+    }
+
+
+
+    /**
+     * Derby reports with an exception that the database was dropped.
+     */
+
+    private static void
+    dropMemoryDatabase(String name)
+    {
+      try
+      {
+        DriverManager.getConnection("jdbc:derby:" + name + ";drop=true");
+      }
+
+      catch (SQLException e)
+      {
+      }
+    }
+
+
+
+    /**
+     * Without the preloaded state this is a table scan.
+     * @return The absolute filename that has the file key in the stored state
+     * or <code>null</code> if there is none.
+     */
+
+    private synchronized String
+    findFile(String fileKey) throws SQLException
+    {
+      if (fileKeys != null)
+      {
+        String	filename = fileKeys.get(fileKey);
+
+        return
+          filename != null ?
+            new File(local, filename).getAbsolutePath() : null;
+      }
+
+      for (Map.Entry<String,Row> entry: files.entrySet())
+      {
+        if
+        (
+          entry.getValue() != null				&&
+          fileKey.equals(entry.getValue().fileKey)
+        )
+        {
+          return entry.getKey();
+        }
+      }
+
+      PreparedStatement	statement =
+        prepare
+        (
+          "select filename from file " +
+            "where file_key = ? and local = ? and remote = ?"
+        );
+      ResultSet		resultSet = null;
+
+      statement.setString(1, fileKey);
+      statement.setString(2, local.getAbsolutePath());
+      statement.setString(3, remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        while (resultSet.next())
+        {
+          String	filename = resultSet.getString("filename");
+
+          if (!files.containsKey(filename))
+          {
+            return filename;
+          }
+        }
+
+        return null;
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+    }
+
+
+
+    private synchronized String
+    findPath(String etag) throws SQLException
+    {
+      if (etags != null)
+      {
+        return etags.get(etag);
+      }
+
+      for (Map.Entry<String,Row> entry: paths.entrySet())
+      {
+        if (entry.getValue() != null && etag.equals(entry.getValue().etag))
+        {
+          return entry.getKey();
+        }
+      }
+
+      PreparedStatement	statement =
+        prepare
+        (
+          "select path from remote_path " +
+            "where etag = ? and local = ? and remote = ?"
+        );
+      ResultSet		resultSet = null;
+
+      statement.setString(1, etag);
+      statement.setString(2, local.getAbsolutePath());
+      statement.setString(3, remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        while (resultSet.next())
+        {
+          String	path = resultSet.getString("path");
+
+          if (!paths.containsKey(path)) // Otherwise the buffer is more recent.
+          {
+            return path;
+          }
+        }
+
+        return null;
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+    }
+
+
+
+    private synchronized void
+    flush(boolean commit) throws SQLException
+    {
+      flush
+      (
+        files,
+        "delete from file where filename = ? and local = ? and remote = ?",
+        "insert into file " +
+          "(last_modified, content_length, file_key, digest, filename, " +
+          "local, remote) values (?, ?, ?, ?, ?, ?, ?)"
+      );
+
+      flush
+      (
+        paths,
+        "delete from remote_path where path = ? and local = ? and remote = ?",
+        "insert into remote_path " +
+          "(last_modified, etag, digest, path, local, remote) " +
+          "values (?, ?, ?, ?, ?, ?)"
+      );
+
+      if (commit)
+      {
+        commit();
+      }
+    }
+
+
+
+    /**
+     * Derby has no upsert, so every buffered key is deleted first and then
+     * inserted again if it wasn't a deletion.
+     */
+
+    private void
+    flush(Map<String,Row> buffer, String delete, String insert)
+      throws SQLException
+    {
+      if (buffer.isEmpty())
+      {
+        return;
+      }
+
+      PreparedStatement	deleteStatement = prepare(delete);
+      boolean		inserts = false;
+      PreparedStatement	insertStatement = prepare(insert);
+
+      for (Map.Entry<String,Row> entry: buffer.entrySet())
+      {
+        deleteStatement.setString(1, entry.getKey());
+        deleteStatement.setString(2, local.getAbsolutePath());
+        deleteStatement.setString(3, remote.toString());
+        deleteStatement.addBatch();
+
+        if (entry.getValue() != null)
+        {
+          int	i = 1;
+
+          insertStatement.setLong(i++, entry.getValue().lastModified);
+
+          if (buffer == paths)
+          {
+            insertStatement.setString(i++, entry.getValue().etag);
+          }
+          else
+          {
+            if (entry.getValue().contentLength != -1)
+            {
+              insertStatement.setLong(i++, entry.getValue().contentLength);
+            }
+            else
+            {
+              insertStatement.setNull(i++, Types.BIGINT);
+            }
+
+            insertStatement.setString(i++, entry.getValue().fileKey);
+          }
+
+          insertStatement.setString(i++, entry.getValue().digest);
+
+          insertStatement.setString(i++, entry.getKey());
+          insertStatement.setString(i++, local.getAbsolutePath());
+          insertStatement.setString(i++, remote.toString());
+          insertStatement.addBatch();
+          inserts = true;
+        }
+      }
+
+      deleteStatement.executeBatch();
+
+      if (inserts)
+      {
+        insertStatement.executeBatch();
+      }
+
+      buffer.clear();
+    }
+
+
+
+    /**
+     * Returns the stored keys that are equal to <code>key</code> or that are
+     * below it.
+     */
+
+    private synchronized Set<String>
+    list(Map<String,Row> buffer, String key) throws SQLException
+    {
+      String	prefix =
+        key +
+          (
+            key.endsWith("/") ?
+              "" : (buffer == files ? File.separator : "/")
+          );
+      Set<String>	result = new HashSet<String>();
+
+      for (Map.Entry<String,Row> entry: buffer.entrySet())
+      {
+        if
+        (
+          entry.getValue() != null				&&
+          (entry.getKey().equals(key) || entry.getKey().startsWith(prefix))
+        )
+        {
+          result.add(entry.getKey());
+        }
+      }
+
+      if (storedFiles != null)
+      {
+        if (buffer == files)
+        {
+          for (String filename: storedFiles.keySet())
+          {
+            String	full = new File(local, filename).getAbsolutePath();
+
+            if (full.equals(key) || full.startsWith(prefix))
+            {
+              result.add(full);
+            }
+          }
+        }
+        else
+        {
+          for (String path: storedPaths.keySet())
+          {
+            if (path.equals(key) || path.startsWith(prefix))
+            {
+              result.add(path);
+            }
+          }
+        }
+
+        return result;
+      }
+
+      String		column = buffer == files ? "filename" : "path";
+      PreparedStatement	statement =
+        prepare
+        (
+          "select " + column + " from " +
+            (buffer == files ? "file" : "remote_path") +
+            " where (" + column + " = ? or " + column +
+            " like ? escape '!') and local = ? and remote = ?"
+        );
+      ResultSet		resultSet = null;
+
+      statement.setString(1, key);
+      statement.setString
+      (
+        2,
+        prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%"
+      );
+      statement.setString(3, local.getAbsolutePath());
+      statement.setString(4, remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        while (resultSet.next())
+        {
+          if (!buffer.containsKey(resultSet.getString(1)))
+          {
+            // Otherwise the buffer is more recent.
+
+            result.add(resultSet.getString(1));
+          }
+        }
+
+        return result;
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+    }
+
+
+
+    private static synchronized int
+    nextMemoryDatabase()
+    {
+      return ++memoryDatabases;
+    }
+
+
+
+    /**
+     * Loads the complete state of the synchronization pair in one scan per
+     * table.
+     */
+
+    private synchronized void
+    preload() throws SQLException
+    {
+      Map<String,String>	etagIndex = new HashMap<String,String>();
+      Map<String,String>	fileKeyIndex = new HashMap<String,String>();
+      Map<String,Row>		filesIndex = new HashMap<String,Row>();
+      Map<String,Row>		pathsIndex = new HashMap<String,Row>();
+      ResultSet			resultSet = null;
+      PreparedStatement		statement =
+        prepare
+        (
+          "select filename, last_modified, content_length, digest, " +
+            "file_key from file where local = ? and remote = ?"
+        );
+
+      statement.setString(1, local.getAbsolutePath());
+      statement.setString(2, remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        while (resultSet.next())
+        {
+          Row	row = new Row();
+
+          row.lastModified = resultSet.getLong(2);
+          row.contentLength = resultSet.getLong(3);
+
+          if (resultSet.wasNull())
+          {
+            row.contentLength = -1;
+          }
+
+          row.digest = resultSet.getString(4);
+          row.fileKey = resultSet.getString(5);
+          store
+          (
+            filesIndex,
+            compact(resultSet.getString(1)),
+            row,
+            fileKeyIndex
+          );
+        }
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+
+      statement =
+        prepare
+        (
+          "select path, last_modified, etag, digest from remote_path " +
+            "where local = ? and remote = ?"
+        );
+
+      statement.setString(1, local.getAbsolutePath());
+      statement.setString(2, remote.toString());
+      resultSet = null;
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        while (resultSet.next())
+        {
+          Row	row = new Row();
+          String	path = resultSet.getString(1);
+
+          row.lastModified = resultSet.getLong(2);
+          row.etag = resultSet.getString(3);
+          row.digest = resultSet.getString(4);
+          pathsIndex.put(path, row);
+
+          if (!"none".equals(row.etag) && !etagIndex.containsKey(row.etag))
+          {
+            etagIndex.put(row.etag, path);
+          }
+        }
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+
+      for (Map.Entry<String,Row> entry: files.entrySet())
+      {
+        store
+        (
+          filesIndex,
+          compact(entry.getKey()),
+          entry.getValue(),
+          fileKeyIndex
+        );
+      }
+
+      for (Map.Entry<String,Row> entry: paths.entrySet())
+      {
+        store(pathsIndex, entry.getKey(), entry.getValue(), etagIndex);
+      }
+
+      storedFiles = filesIndex;
+      storedPaths = pathsIndex;
+      etags = etagIndex;
+      fileKeys = fileKeyIndex;
+    }
+
+
+
+    private synchronized PreparedStatement
+    prepare(String sql) throws SQLException
+    {
+      PreparedStatement	result = statements.get(sql);
+
+      if (result == null)
+      {
+        result = connection.prepareStatement(sql);
+        statements.put(sql, result);
+      }
+
+      return result;
+    }
+
+
+
+    private synchronized Row
+    read(Map<String,Row> buffer, String key) throws SQLException
+    {
+      if (buffer.containsKey(key))
+      {
+        return buffer.get(key);
+      }
+
+      if (storedFiles != null)
+      {
+        return
+          buffer == files ?
+            storedFiles.get(compact(key)) : storedPaths.get(key);
+      }
+
+      PreparedStatement	statement =
+        prepare
+        (
+          buffer == files ?
+            (
+              "select last_modified, content_length, digest, file_key " +
+                "from file where filename = ? and local = ? and remote = ?"
+            ) :
+            (
+              "select last_modified, etag, digest from remote_path " +
+                "where path = ? and local = ? and remote = ?"
+            )
+        );
+      ResultSet		resultSet = null;
+
+      statement.setString(1, key);
+      statement.setString(2, local.getAbsolutePath());
+      statement.setString(3, remote.toString());
+
+      try
+      {
+        resultSet = statement.executeQuery();
+
+        if (!resultSet.next())
+        {
+          return null;
+        }
+
+        Row	result = new Row();
+
+        result.lastModified = resultSet.getLong("last_modified");
+        result.digest = resultSet.getString("digest");
+
+        if (buffer == paths)
+        {
+          result.etag = resultSet.getString("etag");
+        }
+        else
+        {
+          result.contentLength = resultSet.getLong("content_length");
+
+          if (resultSet.wasNull())
+          {
+            result.contentLength = -1;
+          }
+
+          result.fileKey = resultSet.getString("file_key");
+        }
+
+        return result;
+      }
+
+      finally
+      {
+        release(resultSet);
+      }
+    }
+
+
+
+    /**
+     * Moves the stored rows of <code>from</code> and those below it to
+     * <code>to</code>.
+     */
+
+    private synchronized void
+    rename(Map<String,Row> buffer, String from, String to) throws SQLException
+    {
+      List<String>	keys = new ArrayList<String>(list(buffer, from));
+      List<Row>		rows = new ArrayList<Row>();
+
+      for (String key: keys)
+      {
+        rows.add(read(buffer, key));
+        write(buffer, key, null);
+      }
+
+      for (int i = 0; i < keys.size(); ++i)
+      {
+        write(buffer, to + keys.get(i).substring(from.length()), rows.get(i));
+      }
+    }
+
+
+
+    /**
+     * Drops the buffered changes and rolls back the transaction.
+     */
+
+    private synchronized void
+    rollback() throws SQLException
+    {
+      files.clear();
+      paths.clear();
+      storedFiles = null;
+      storedPaths = null;
+      etags = null;
+      fileKeys = null;
+      connection.rollback();
+    }
+
+
+
+    /**
+     * @param secondary the index on the ETag of remote paths or on the file
+     * key of files.
+     */
+
+    private static void
+    store
+    (
+      Map<String,Row>		index,
+      String			key,
+      Row			row,
+      Map<String,String>	secondary
+    )
+    {
+      Row	old = row == null ? index.remove(key) : index.put(key, row);
+
+      if (secondary != null)
+      {
+        String	oldValue = old != null ? old.getSecondary() : null;
+        String	value = row != null ? row.getSecondary() : null;
+
+        if (oldValue != null && key.equals(secondary.get(oldValue)))
+        {
+          secondary.remove(oldValue);
+        }
+
+        if (value != null && !secondary.containsKey(value))
+        {
+          secondary.put(value, key);
+        }
+      }
+    }
+
+
+
+    private synchronized void
+    write(Map<String,Row> buffer, String key, Row row) throws SQLException
+    {
+      buffer.put(key, row);
+
+      if (storedFiles != null)
+      {
+        if (buffer == files)
+        {
+          store(storedFiles, compact(key), row, fileKeys);
+        }
+        else
+        {
+          store(storedPaths, key, row, etags);
+        }
+      }
+
+      if (files.size() + paths.size() >= FLUSH_SIZE)
+      {
+        flush(true);
+      }
+    }
+
+  } // Context
+
+
+
+  /**
+   * Lists collections in Depth 1 mode with several PROPFIND requests in
+   * flight. The collections that are found are queued until a worker is
+   * free. When one of the requests fails the queued collections are skipped
+   * and the tree is abandoned.
+   */
+
+  private class Crawler
+
+  {
+
+    private Context		context;
+    private IOException		exception;
+    private ExecutorService	executor;
+    private boolean		failed;
+    private int			pending;
+    private Record		tree;
+
+
+
+    private
+    Crawler(int width, Record tree, Context context)
+    {
+      this.tree = tree;
+      this.context = context;
+
+      executor =
+        Executors.newFixedThreadPool
+        (
+          width,
+          new ThreadFactory()
+          {
+            public Thread
+            newThread(Runnable runnable)
+            {
+              Thread	thread = new Thread(runnable, "crawl");
+
+              thread.setDaemon(true);
+
+              return thread;
+            }
+          }
+        );
+    }
+
+
+
+    /**
+     * Waits until all collections have been listed or until one of them
+     * failed. In the latter case it still waits for the running requests,
+     * because they would otherwise modify the tree afterwards.
+     * @return <code>false</code> if a listing failed.
+     */
+
+    private boolean
+    await() throws IOException
+    {
+      try
+      {
+        synchronized (this)
+        {
+          while (pending > 0)
+          {
+            wait();
+          }
+
+          if (exception != null)
+          {
+            throw exception;
+          }
+
+          return !failed;
+        }
+      }
+
+      catch (InterruptedException e)
+      {
+        synchronized (this)
+        {
+          failed = true;
+        }
+
+        return false;
+      }
+
+      finally
+      {
+        executor.shutdown();
+      }
+    }
+
+
+
+    private synchronized void
+    finished(boolean success)
+    {
+      failed |= !success;
+      --pending;
+      notifyAll();
+    }
+
+
+
+    private synchronized boolean
+    hasFailed()
+    {
+      return failed;
+    }
+
+
+
+    private void
+    list(Record collection)
+    {
+      List<Record>	children = new ArrayList<Record>();
+      boolean		success = false;
+
+      try
+      {
+        success =
+          hasFailed() ||
+            listCollection
+            (
+              getUrl(context.remote, collection.path),
+              tree,
+              children,
+              new boolean[1],
+              context
+            ) == 207;
+
+        if (success && !hasFailed())
+        {
+          for (Record record: children)
+          {
+            submit(record);
+          }
+        }
+      }
+
+      catch (IOException e)
+      {
+        synchronized (this)
+        {
+          if (exception == null)
+          {
+            exception = e; // Thrown by a listener.
+          }
+        }
+      }
+
+      finally
+      {
+        finished(success);
+      }
+    }
+
+
+
+    private void
+    submit(final Record collection)
+    {
+      synchronized (this)
+      {
+        ++pending;
+      }
+
+      executor.execute
+      (
+        new Runnable()
+        {
+          public void
+          run()
+          {
+            list(collection);
+          }
+        }
+      );
+    }
+
+  } // Crawler
+
+
+
+  public interface Filter
+
+  {
+
+    /**
+     * Return <code>true</code> if the particular synchronization should be
+     * excluded. This can be, for example, a transient condition.
+     */
+
+    public boolean	exclude	(File file, URL url);
+
+  } // Filter
+
+
+
+  private static class Job
+
+  {
+
+    private Node	acl;
+    private int		concurrency = 1;
+    private File	database;
+    private Direction	direction;
+    private File	directory;
+    private String[]	excludes;
+    private Fsync	fsync = Fsync.NEVER;
+    private String	hiddenFolderName;
+    private long	interval = -1;
+    private String	name;
+    private boolean	noRecursion;
+    private int		prewarm;
+    private int		priority;
+    private boolean	recursive;
+    private boolean	rename;
+    private int		renameDepth = 10;
+    private boolean	skipUnchanged;
+    private boolean	streaming;
+    private URL		url;
+
+
+
+    /**
+     * Jobs with the same key are the same between readings of the
+     * configuration file.
+     */
+
+    private String
+    getKey()
+    {
+      return
+        directory.getAbsolutePath() + " " + url.toString() +
+          (database != null ? (" " + database.getAbsolutePath()) : "");
+    }
+
+
+
+    private String
+    getTag()
+    {
+      return name != null ? name : directory.getName();
+    }
+
+  } // Job
+
+
+
+  /**
+   * Runs the jobs of a configuration file on a limited number of worker
+   * threads. In daemon mode a job is run again when its interval has passed
+   * or when its local changes have settled. Due jobs with a higher priority
+   * are started first. Jobs of which the local directories overlap or that
+   * name the same database of their own never run at the same time. Jobs
+   * without a database of their own all use the default one, but they are
+   * not serialised because of it. Its rows are keyed on the local directory
+   * and the URL and the embedded database serves several connections at
+   * once, so such jobs only wait for each other when their directories
+   * overlap. The configuration file is only read again when it has changed.
+   */
+
+  private static class JobScheduler
+
+  {
+
+    private File		configFile;
+    private long		configTime = -1;
+    private boolean		dryRun;
+    private Map<String,Entry>	entries = new HashMap<String,Entry>();
+    private ExecutorService	executor;
+    private long		interval;
+    private OutputStream	out;
+    private long		readAgain = -1;
+    private int			running;
+    private int			workers;
+
+
+
+    /**
+     * @param interval the default interval of a job in milliseconds. With
+     * <code>-1</code> every job is run only once.
+     * @param workers the maximum number of jobs that run at the same time.
+     * @param dryRun when set the jobs only report their plans.
+     */
+
+    private
+    JobScheduler
+    (
+      File		configFile,
+      OutputStream	out,
+      long		interval,
+      int		workers,
+      boolean		dryRun
+    )
+    {
+      this.configFile = configFile;
+      this.out = out;
+      this.interval = interval;
+      this.workers = workers;
+      this.dryRun = dryRun;
+
+      executor =
+        Executors.newFixedThreadPool
+        (
+          workers,
+          new ThreadFactory()
+          {
+            public Thread
+            newThread(Runnable runnable)
+            {
+              Thread	thread = new Thread(runnable, "job");
+
+              thread.setDaemon(true);
+
+              return thread;
+            }
+          }
+        );
+    }
+
+
+
+    private static boolean
+    conflicts(Job job1, Job job2)
+    {
+      String	directory1 = job1.directory.getAbsolutePath() + File.separator;
+      String	directory2 = job2.directory.getAbsolutePath() + File.separator;
+
+      return
+        directory1.startsWith(directory2)				||
+          directory2.startsWith(directory1)				||
+          (
+            job1.database != null					&&
+              job2.database != null					&&
+              job1.database.getAbsoluteFile().
+                equals(job2.database.getAbsoluteFile())
+          );
+    }
+
+
+
+    /**
+     * Starts the due jobs as long as there are free workers.
+     */
+
+    private void
+    dispatch()
+    {
+      List<Entry>	due = new ArrayList<Entry>();
+      long		now = System.currentTimeMillis();
+
+      for (Entry entry: entries.values())
+      {
+        if (!entry.running && isDue(entry, now))
+        {
+          due.add(entry);
+        }
+      }
+
+      Collections.sort
+      (
+        due,
+        new Comparator<Entry>()
+        {
+          public int
+          compare(Entry o1, Entry o2)
+          {
+            return
+              o1.job.priority != o2.job.priority ?
+                (o2.job.priority - o1.job.priority) :
+                (
+                  o1.lastEnd < o2.lastEnd ?
+                    -1 : (o1.lastEnd > o2.lastEnd ? 1 : 0)
+                );
+          }
+        }
+      );
+
+      for (Entry entry: due)
+      {
+        if (running >= workers)
+        {
+          return;
+        }
+
+        if (!isBlocked(entry))
+        {
+          start(entry);
+        }
+      }
+    }
+
+
+
+    private synchronized void
+    finished(Entry entry)
+    {
+      entry.running = false;
+      entry.lastEnd = System.currentTimeMillis();
+      --running;
+
+      if (entry.removed)
+      {
+        entry.sync.setDaemonMode(false);
+
+        if (entries.get(entry.job.getKey()) == entry)
+        {
+          entries.remove(entry.job.getKey());
+        }
+      }
+
+      notifyAll();
+    }
+
+
+
+    private boolean
+    isBlocked(Entry entry)
+    {
+      for (Entry other: entries.values())
+      {
+        if (other.running && conflicts(entry.job, other.job))
+        {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+
+
+    private boolean
+    isDone()
+    {
+      for (Entry entry: entries.values())
+      {
+        if (entry.running || entry.lastEnd == -1)
+        {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+
+
+    private boolean
+    isDue(Entry entry, long now)
     {
-      return local;
+      long	jobInterval =
+        entry.job.interval != -1 ? entry.job.interval : interval;
+
+      return
+        !entry.removed							&&
+          (
+            entry.lastEnd == -1						||
+              (
+                interval != -1						&&
+                  (
+                    now - entry.lastEnd >= jobInterval			||
+                      (
+                        entry.sync.watcher != null			&&
+                          entry.sync.watcher.isReady()
+                      )
+                  )
+              )
+          );
     }
 
 
 
-    public URL
-    getRemote()
+    private void
+    read() throws Exception
     {
-      return remote;
-    }
-
+      Job[]		jobs = readJobs(configFile);
+      Set<String>	keys = new HashSet<String>();
 
+      synchronized (this)
+      {
+        for (int i = 0; i < jobs.length; ++i)
+        {
+          String	key = jobs[i].getKey();
+          Entry		entry = entries.get(key);
 
-    public ConflictType
-    getType()
-    {
-      return type;
-    }
+          if (entry == null)
+          {
+            entry = new Entry();
+            entry.sync =
+              jobs[i].database != null ?
+                new Sync(jobs[i].database) : new Sync();
+            entries.put(key, entry);
+          }
 
+          if
+          (
+            entry.reporter == null					||
+            !entry.job.getTag().equals(jobs[i].getTag())
+          )
+          {
+            if (entry.reporter != null)
+            {
+              entry.sync.removeListener(entry.reporter);
+            }
 
+            entry.reporter = new Reporter(out, jobs[i].getTag());
+            entry.sync.addListener(entry.reporter);
+          }
 
-    public URL
-    getUrl()
-    {
-      return url;
-    }
+          entry.job = jobs[i]; // Applied when the job is started.
+          entry.removed = false;
+          keys.add(key);
+        }
 
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+        {
+          Entry	entry = i.next();
 
+          if (!keys.contains(entry.job.getKey()))
+          {
+            entry.removed = true;
 
-    public int
-    hashCode()
-    {
-      return file.getAbsolutePath().hashCode() + url.toString().hashCode();
+            if (!entry.running)
+            {
+              entry.sync.setDaemonMode(false);
+              i.remove();
+            }
+          }
+        }
+      }
     }
 
-  } // Conflict
 
 
+    /**
+     * Returns when all jobs have run once if there is no interval. Otherwise
+     * it never returns.
+     */
 
-  private static class Context
+    private void
+    run() throws Exception
+    {
+      try
+      {
+        for (;;)
+        {
+          long	now = System.currentTimeMillis();
 
-  {
+          if (configFile.lastModified() != configTime && now >= readAgain)
+          {
+            configTime = configFile.lastModified();
 
-    private Set<String>		checkedOut;
-    private List<Conflict>	conflicts = new ArrayList<Conflict>();
-    private Connection		connection;
-    private String		depth = "infinity";
-    private Direction		direction;
-    private Map<String,String>	etagToPath = new HashMap<String,String>();
-    private long		lastSynchronization = -1;
-    private File		local;
-    private boolean		noRecursion;
-    private URL			remote;
-    private Record		tree;
+            try
+            {
+              read();
+            }
 
+            catch (Exception e)
+            {
+              if (interval == -1)
+              {
+                throw e;
+              }
 
+              printException(e, null);
+              configTime = -1;
+              readAgain = now + interval;
+            }
+          }
 
-    private
-    Context(File local, URL remote, File database)
-      throws IOException, SQLException
-    {
-      connection = getConnection(database);
-      this.remote = remote;
-      this.local = local;
-    }
+          synchronized (this)
+          {
+            dispatch();
 
+            if (interval == -1 && isDone())
+            {
+              return;
+            }
 
+            wait(interval == -1 ? 0 : (QUIET_PERIOD / 4));
+          }
+        }
+      }
 
-    private void
-    close() throws SQLException
-    {
-      if (connection != null)
+      finally
       {
-        connection.close();
+        executor.shutdown();
       }
     }
 
-  } // Context
 
 
+    private void
+    start(final Entry entry)
+    {
+      final Job	job = entry.job;
+      final Sync	sync = entry.sync;
 
-  public interface Filter
+      entry.running = true;
+      ++running;
 
-  {
+      executor.execute
+      (
+        new Runnable()
+        {
+          public void
+          run()
+          {
+            try
+            {
+              sync.setLocal(job.directory);
+              sync.setRemote(job.url);
+              sync.setDirection(job.direction);
+              sync.setDefaultAcl(job.acl);
+              sync.setExclusions(job.excludes);
+              sync.setDaemonMode(interval != -1);
+              sync.setRenameFiles(job.rename);
+              sync.setRenameDepth(job.renameDepth);
+              sync.setHiddenFolderName(job.hiddenFolderName);
+              sync.setRecursive(job.recursive);
+              sync.setNoRecursion(job.noRecursion);
+              sync.setConcurrency(job.concurrency);
+              sync.setPrewarm(job.prewarm);
+              sync.setFsync(job.fsync);
+              sync.setSkipUnchanged(job.skipUnchanged);
+              sync.setStreaming(job.streaming);
+              sync.setDryRun(dryRun);
+              sync.run();
+            }
 
-    /**
-     * Return <code>true</code> if the particular synchronization should be
-     * excluded. This can be, for example, a transient condition.
-     */
+            catch (Throwable e)
+            {
+              printException(e, job.getTag());
+            }
 
-    public boolean	exclude	(File file, URL url);
+            finally
+            {
+              finished(entry);
+            }
+          }
+        }
+      );
+    }
 
-  } // Filter
 
 
+    private static class Entry
 
-  private static class Job
+    {
 
-  {
+      private Job	job;
+      private long	lastEnd = -1;
+      private boolean	removed;
+      private Reporter	reporter;
+      private boolean	running;
+      private Sync	sync;
 
-    private Node	acl;
-    private Direction	direction;
-    private File	directory;
-    private String[]	excludes;
-    private String	hiddenFolderName;
-    private boolean	noRecursion;
-    private boolean	recursive;
-    private boolean	rename;
-    private int		renameDepth = 10;
-    private URL		url;
+    } // Entry
 
-  } // Job
+  } // JobScheduler
 
 
 
+  /**
+   * Methods are added to this interface when <code>Sync</code> reports new
+   * events. Implementations should extend <code>ListenerAdapter</code> so
+   * that they keep compiling.
+   */
+
   public interface Listener
 
   {
@@ -4599,6 +9296,12 @@ public class Sync
 
     public void		endRename	(File from, File to);
 
+    /**
+     * Called when the URL has been moved because of a local move.
+     */
+
+    public void		endRename	(URL from, URL to);
+
     /**
      * Called when the URL has been updated.
      */
@@ -4632,6 +9335,13 @@ public class Sync
     public void		exception	(URL url, String method, Throwable e)
 					  throws IOException;
 
+    /**
+     * Called at the end of a dry run with the operations that would have been
+     * performed.
+     */
+
+    public void		plan		(Plan plan);
+
     /**
      * Called when the synchronization is about to start.
      */
@@ -4668,6 +9378,12 @@ public class Sync
 
     public void		startRename	(File from, File to);
 
+    /**
+     * Called when the URL is going to be moved because of a local move.
+     */
+
+    public void		startRename	(URL from, URL to);
+
     /**
      * Called when the local file is going to be updated.
      */
@@ -4771,6 +9487,13 @@ public class Sync
 
 
 
+    public void
+    endRename(URL from, URL to)
+    {
+    }
+
+
+
     public void
     endUpdate(URL url)
     {
@@ -4809,6 +9532,13 @@ public class Sync
 
 
 
+    public void
+    plan(Plan plan)
+    {
+    }
+
+
+
     public void
     start()
     {
@@ -4851,6 +9581,13 @@ public class Sync
 
 
 
+    public void
+    startRename(URL from, URL to)
+    {
+    }
+
+
+
     public void
     startUpdate(File file)
     {
@@ -4894,13 +9631,18 @@ public class Sync
 
   {
 
+    private long		contentLength = -1;
     private String		contentType;
     private boolean		done;
     private String		etag;
     private long		lastModified;
+    private String		marker;
+      // The change marker of a collection.
     private Map<String,Record>	members = new TreeMap<String,Record>();
     private Record		parent;
     private String		path;
+    private boolean		planned;
+      // It only exists in the plan of a dry run.
 
   } // Record
 
@@ -4911,6 +9653,7 @@ public class Sync
   {
 
     private boolean	interactive;
+    private String	tag;
     private PrintWriter	writer;
 
 
@@ -4923,6 +9666,21 @@ public class Sync
     public
     Reporter(OutputStream out)
     {
+      this(out, null);
+    }
+
+
+
+    /**
+     * @param tag when it is not <code>null</code> each line is prefixed with
+     * it, which distinguishes jobs that run at the same time.
+     */
+
+    public
+    Reporter(OutputStream out, String tag)
+    {
+      this.tag = tag;
+
       writer =
         new PrintWriter
         (
@@ -5007,16 +9765,110 @@ public class Sync
     public void
     end()
     {
-      writer.println(Util.getResource("msg_done"));
+      println(Util.getResource("msg_done"));
+      writer.flush();
+    }
+
+
+
+    private static String
+    label(Plan.Type type)
+    {
+      return
+        Util.getResource
+        (
+          type == Plan.Type.CONFLICT ?
+            "label_sync_conflict" :
+            (
+              type == Plan.Type.DELETE ?
+                "label_sync_delete" :
+                (
+                  type == Plan.Type.MKCOL ?
+                    "label_sync_create" :
+                    (
+                      type == Plan.Type.RENAME ?
+                        "label_sync_rename" : "label_sync_update"
+                    )
+                )
+            )
+        );
+    }
+
+
+
+    private static String
+    location(Plan plan, String path, boolean local)
+    {
+      try
+      {
+        return
+          local ?
+            getFile(plan.getLocal(), path).getAbsolutePath() :
+            be.re.net.Util.stripUserInfo(getUrl(plan.getRemote(), path)).
+              toString();
+      }
+
+      catch (MalformedURLException e)
+      {
+        return path;
+      }
+    }
+
+
+
+    public void
+    plan(Plan plan)
+    {
+      for (Plan.Operation operation: plan.getOperations())
+      {
+        println
+        (
+          label(operation.getType()) + (operation.getLocal() ? ": " : " ") +
+            location(plan, operation.getPath(), operation.getLocal()) +
+            (
+              operation.getTarget() != null ?
+                (
+                  " -> " +
+                    location(plan, operation.getTarget(), operation.getLocal())
+                ) : ""
+            ) +
+            (
+              operation.getBytes() > 0 ?
+                (" (" + String.valueOf(operation.getBytes()) + ")") : ""
+            )
+        );
+      }
+
+      println
+      (
+        MessageFormat.format
+        (
+          Util.getResource("msg_sync_plan"),
+          new Object[]
+          {
+            String.valueOf(plan.size()),
+            String.valueOf(plan.getBytes())
+          }
+        )
+      );
+
       writer.flush();
     }
 
 
 
+    private void
+    println(String line)
+    {
+      writer.println(tag != null ? ("[" + tag + "] " + line) : line);
+    }
+
+
+
     private void
     report(File member, String operation)
     {
-      writer.println(operation + ": " + member.getAbsolutePath());
+      println(operation + ": " + member.getAbsolutePath());
       writer.flush();
     }
 
@@ -5025,8 +9877,7 @@ public class Sync
     private void
     report(URL url, String operation)
     {
-      writer.
-        println(operation + " " + be.re.net.Util.stripUserInfo(url).toString());
+      println(operation + " " + be.re.net.Util.stripUserInfo(url).toString());
       writer.flush();
     }
 
@@ -5051,7 +9902,7 @@ public class Sync
       }
       else
       {
-        writer.println
+        println
         (
           url.toString() + ": " + Util.getResource("ERROR") + ": " +
             e.getMessage()
@@ -5096,7 +9947,7 @@ public class Sync
     public void
     startRename(File from, File to)
     {
-      writer.println
+      println
       (
         Util.getResource("label_sync_rename") + ": " +
           from.getAbsolutePath() + " -> " + to.getAbsolutePath()
@@ -5107,6 +9958,21 @@ public class Sync
 
 
 
+    public void
+    startRename(URL from, URL to)
+    {
+      println
+      (
+        Util.getResource("label_sync_rename") + ": " +
+          be.re.net.Util.stripUserInfo(from).toString() + " -> " +
+          be.re.net.Util.stripUserInfo(to).toString()
+      );
+
+      writer.flush();
+    }
+
+
+
     public void
     startUpdate(File file)
     {
@@ -5147,4 +10013,36 @@ public class Sync
 
   } // Reporter
 
+
+
+  /**
+   * A buffered row of the <code>file</code> or <code>remote_path</code> table.
+   */
+
+  private static class Row
+
+  {
+
+    private long	contentLength = -1;
+    private String	digest;
+    private String	etag;
+    private String	fileKey;
+    private long	lastModified;
+
+
+
+    /**
+     * Returns the ETag of a remote path or the file key of a file.
+     */
+
+    private String
+    getSecondary()
+    {
+      return
+        fileKey != null ?
+          fileKey : (etag != null && !"none".equals(etag) ? etag : null);
+    }
+
+  } // Row
+
 } // Sync
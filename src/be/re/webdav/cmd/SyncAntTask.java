@@ -16,14 +16,20 @@ public class SyncAntTask extends Task
 
 {
 
+  private int		concurrency = 1;
   private String	direction;
   private File		directory;
+  private boolean	dryRun;
   private String	excludes = "";
+  private String	fsync;
   private String	hiddenFolderName;
   private boolean	noRecursion;
+  private int		prewarm;
   private boolean	rename;
   private int		renameDepth = 10;
   private boolean	recur;
+  private boolean	skipUnchanged;
+  private boolean	streaming;
   private URL		url;
 
 
@@ -61,6 +67,22 @@ public class SyncAntTask extends Task
       throw new BuildException("The attribute \"url\" is required.");
     }
 
+    if
+    (
+      fsync != null				&&
+      !fsync.equals("never")			&&
+      !fsync.equals("file")			&&
+      !fsync.equals("run")
+    )
+    {
+      throw
+        new BuildException
+        (
+          "The attribute \"fsync\" should have the value \"never\", " +
+            "\"file\" or \"run\"."
+        );
+    }
+
     if (!url.toString().endsWith("/"))
     {
       throw
@@ -88,6 +110,17 @@ public class SyncAntTask extends Task
       sync.setRenameFiles(rename);
       sync.setRenameDepth(renameDepth);
       sync.setNoRecursion(noRecursion);
+      sync.setConcurrency(concurrency);
+      sync.setPrewarm(prewarm);
+
+      if (fsync != null)
+      {
+        sync.setFsync(Sync.Fsync.valueOf(fsync.toUpperCase()));
+      }
+
+      sync.setSkipUnchanged(skipUnchanged);
+      sync.setStreaming(streaming);
+      sync.setDryRun(dryRun);
 
       sync.setDirection
       (
@@ -110,6 +143,14 @@ public class SyncAntTask extends Task
 
 
 
+  public void
+  setConcurrency(int value)
+  {
+    concurrency = value;
+  }
+
+
+
   public void
   setDirection(String value)
   {
@@ -126,6 +167,14 @@ public class SyncAntTask extends Task
 
 
 
+  public void
+  setDryRun(boolean value)
+  {
+    dryRun = value;
+  }
+
+
+
   public void
   setExcludes(String value)
   {
@@ -134,6 +183,14 @@ public class SyncAntTask extends Task
 
 
 
+  public void
+  setFsync(String value)
+  {
+    fsync = value;
+  }
+
+
+
   public void
   setHiddenFolderName(String value)
   {
@@ -150,6 +207,14 @@ public class SyncAntTask extends Task
 
 
 
+  public void
+  setPrewarm(int value)
+  {
+    prewarm = value;
+  }
+
+
+
   public void
   setRecur(boolean value)
   {
@@ -174,6 +239,22 @@ public class SyncAntTask extends Task
 
 
 
+  public void
+  setSkipUnchanged(boolean value)
+  {
+    skipUnchanged = value;
+  }
+
+
+
+  public void
+  setStreaming(boolean value)
+  {
+    streaming = value;
+  }
+
+
+
   public void
   setUrl(URL value)
   {
@@ -0,0 +1,447 @@
+package be.re.webdav.cmd;
+
+import be.re.util.Threads;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+
+
+/**
+ * Runs the transfers that are decided by a synchronization on a pool of worker
+ * threads. The number of transfers that run at the same time for one URL
+ * authority is limited. Within a batch transfers are ordered by their key,
+ * which is a resource path. A transfer only starts when all the transfers that
+ * were submitted before it for the same path or for one of its ancestors have
+ * finished. When one of those fails the transfer is dropped.
+ *
+ * A scheduler can be shared by several synchronizations. Each of them should
+ * use its own batch.
+ * @author Werner Donn\u00e9
+ */
+
+public class TransferScheduler
+
+{
+
+  private Map<String,Integer>		active = new HashMap<String,Integer>();
+  private ExecutorService		executor;
+  private int				maxPending;
+  private int				perAuthority;
+  private Map<String,LinkedList<Entry>>	ready =
+    new HashMap<String,LinkedList<Entry>>();
+
+
+
+  /**
+   * @param threads the number of worker threads. It doesn't apply when
+   * <code>Threads</code> produces virtual threads.
+   * @param perAuthority the maximum number of transfers that run at the same
+   * time for a URL authority.
+   */
+
+  public
+  TransferScheduler(int threads, int perAuthority)
+  {
+    if (threads < 1 || perAuthority < 1)
+    {
+      throw new IllegalArgumentException("The limits should be at least 1.");
+    }
+
+    this.perAuthority = perAuthority;
+    maxPending = threads * 64;
+
+    executor = Threads.newPool(threads, "transfer", true);
+  }
+
+
+
+  private synchronized void
+  dispatch(Entry entry)
+  {
+    Integer	count = active.get(entry.authority);
+
+    if (count == null || count.intValue() < perAuthority)
+    {
+      active.put(entry.authority, count == null ? 1 : (count.intValue() + 1));
+      start(entry);
+    }
+    else
+    {
+      LinkedList<Entry>	queue = ready.get(entry.authority);
+
+      if (queue == null)
+      {
+        queue = new LinkedList<Entry>();
+        ready.put(entry.authority, queue);
+      }
+
+      queue.add(entry);
+    }
+  }
+
+
+
+  private void
+  finished(Entry entry, boolean success)
+  {
+    List<Entry>	released;
+
+    synchronized (this)
+    {
+      LinkedList<Entry>	queue = ready.get(entry.authority);
+
+      if (queue != null && queue.size() > 0)
+      {
+        start(queue.removeFirst());
+      }
+      else
+      {
+        int	count = active.get(entry.authority).intValue() - 1;
+
+        if (count == 0)
+        {
+          active.remove(entry.authority);
+          ready.remove(entry.authority);
+        }
+        else
+        {
+          active.put(entry.authority, count);
+        }
+      }
+    }
+
+    released = entry.batch.finished(entry, success);
+
+    for (Entry e: released)
+    {
+      dispatch(e);
+    }
+  }
+
+
+
+  private static String
+  parent(String key)
+  {
+    return
+      key.lastIndexOf('/') != -1 ?
+        key.substring(0, key.lastIndexOf('/')) :
+        (key.length() > 0 ? "" : null);
+  }
+
+
+
+  public int
+  getPerAuthority()
+  {
+    return perAuthority;
+  }
+
+
+
+  /**
+   * Creates a new group of transfers that can be waited for together.
+   */
+
+  public Batch
+  newBatch()
+  {
+    return new Batch();
+  }
+
+
+
+  /**
+   * Stops the worker threads after the submitted transfers have been executed.
+   */
+
+  public void
+  shutdown()
+  {
+    executor.shutdown();
+  }
+
+
+
+  private void
+  start(final Entry entry)
+  {
+    executor.execute
+    (
+      new Runnable()
+      {
+        public void
+        run()
+        {
+          boolean	success = false;
+
+          try
+          {
+            success = entry.task.run();
+          }
+
+          catch (Throwable e)
+          {
+            entry.batch.setException(e);
+          }
+
+          finally
+          {
+            finished(entry, success);
+          }
+        }
+      }
+    );
+  }
+
+
+
+  /**
+   * A group of transfers of which the ordering constraints are tracked
+   * together.
+   */
+
+  public class Batch
+
+  {
+
+    private Throwable			exception;
+    private Map<String,Entry>		last = new HashMap<String,Entry>();
+    private int				pending;
+    private Map<String,Set<Entry>>	subtree =
+      new HashMap<String,Set<Entry>>();
+    private boolean			updates;
+
+
+
+    private
+    Batch()
+    {
+    }
+
+
+
+    /**
+     * Waits until all submitted transfers have finished. If a transfer threw
+     * an exception the first one is rethrown here.
+     * @return <code>true</code> if at least one transfer succeeded.
+     */
+
+    public synchronized boolean
+    await() throws Exception
+    {
+      while (pending > 0)
+      {
+        wait();
+      }
+
+      if (exception != null)
+      {
+        Throwable	e = exception;
+
+        exception = null;
+
+        if (e instanceof Exception)
+        {
+          throw (Exception) e;
+        }
+
+        throw (Error) e;
+      }
+
+      return updates;
+    }
+
+
+
+    private synchronized List<Entry>
+    finished(Entry entry, boolean success)
+    {
+      List<Entry>	result = new ArrayList<Entry>();
+
+      updates |= success;
+      finished(entry, success, result);
+      notifyAll();
+
+      return result;
+    }
+
+
+
+    private void
+    finished(Entry entry, boolean success, List<Entry> result)
+    {
+      entry.done = true;
+      --pending;
+
+      if (last.get(entry.key) == entry)
+      {
+        last.remove(entry.key);
+      }
+
+      for (String k = parent(entry.key); k != null; k = parent(k))
+      {
+        Set<Entry>	entries = subtree.get(k);
+
+        entries.remove(entry);
+
+        if (entries.isEmpty())
+        {
+          subtree.remove(k);
+        }
+      }
+
+      for (Entry dependent: entry.dependents)
+      {
+        if (!dependent.done)
+        {
+          if (!success)
+          {
+            finished(dependent, false, result);
+              // Dropped, which counts as a failure for its own dependents.
+          }
+          else
+          {
+            if (--dependent.waitingFor == 0)
+            {
+              result.add(dependent);
+            }
+          }
+        }
+      }
+
+      entry.dependents.clear();
+    }
+
+
+
+    private void
+    setException(Throwable e)
+    {
+      synchronized (this)
+      {
+        if (exception == null)
+        {
+          exception = e;
+        }
+      }
+    }
+
+
+
+    /**
+     * Schedules a transfer. When there are too many pending transfers in the
+     * batch the method blocks until some have finished.
+     * @param authority the URL authority the transfer talks to.
+     * @param key the resource path the transfer acts upon. A trailing slash is
+     * ignored.
+     * @param task the transfer.
+     */
+
+    public void
+    submit(String authority, String key, Task task) throws InterruptedException
+    {
+      Entry	entry = new Entry();
+      boolean	runNow;
+
+      entry.authority = authority;
+      entry.batch = this;
+      entry.key =
+        key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+      entry.task = task;
+
+      synchronized (this)
+      {
+        while (pending >= maxPending)
+        {
+          wait();
+        }
+
+        Set<Entry>	previous = new HashSet<Entry>();
+
+        if (last.get(entry.key) != null)
+        {
+          previous.add(last.get(entry.key));
+        }
+
+        if (subtree.get(entry.key) != null)
+        {
+          previous.addAll(subtree.get(entry.key));
+        }
+
+        for (String k = parent(entry.key); k != null; k = parent(k))
+        {
+          Set<Entry>	entries = subtree.get(k);
+
+          if (last.get(k) != null)
+          {
+            previous.add(last.get(k));
+          }
+
+          if (entries == null)
+          {
+            entries = new HashSet<Entry>();
+            subtree.put(k, entries);
+          }
+
+          entries.add(entry);
+        }
+
+        for (Entry e: previous)
+        {
+          e.dependents.add(entry);
+        }
+
+        ++pending;
+        entry.waitingFor = previous.size();
+        last.put(entry.key, entry);
+        runNow = entry.waitingFor == 0;
+      }
+
+      if (runNow)
+      {
+        dispatch(entry);
+      }
+    }
+
+  } // Batch
+
+
+
+  private static class Entry
+
+  {
+
+    private String	authority;
+    private Batch	batch;
+    private List<Entry>	dependents = new ArrayList<Entry>();
+    private boolean	done;
+    private String	key;
+    private Task	task;
+    private int		waitingFor;
+
+  } // Entry
+
+
+
+  public interface Task
+
+  {
+
+    /**
+     * Performs the transfer.
+     * @return <code>true</code> if the transfer succeeded. Transfers that
+     * depend on a failed one are dropped.
+     */
+
+    public boolean	run	() throws Exception;
+
+  } // Task
+
+} // TransferScheduler
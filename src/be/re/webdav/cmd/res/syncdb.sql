@@ -1,5 +1,8 @@
 create table file
 (
+  content_length	bigint,
+  digest	character varying(64),
+  file_key	character varying(256),
   filename	character varying(2048) not null,
   last_modified	bigint not null,
   local		character varying(2048) not null,
@@ -7,8 +10,22 @@ create table file
   primary key (local, remote, filename)
 );
 
+create table remote_member
+(
+  content_length	bigint,
+  content_type	character varying(256),
+  etag		character varying(2048),
+  last_modified	bigint not null,
+  local		character varying(2048) not null,
+  marker	character varying(2048),
+  path		character varying(2048) not null,
+  remote	character varying(2048) not null,
+  primary key (local, remote, path)
+);
+
 create table remote_path
 (
+  digest	character varying(64),
   etag		character varying(2048) not null,
   last_modified	bigint not null,
   local		character varying(2048) not null,
@@ -22,5 +39,6 @@ create table synchronization
   local		character varying(2048) not null,
   occurred	bigint not null,
   remote	character varying(2048) not null,
+  sync_token	character varying(2048),
   primary key (local, remote)
 );